@@ -36,6 +36,7 @@ class ParameterException extends Exception {
 		"    -w            Perform write tests (may destroy data)\n" +    
 		"    -1            Test primary flash (default if no secondary Flash available\n" + 
 		"    -2            Test secondary Flash  (default if available)\n" + 
+		"    -S            Test striped volume of primary and secondary Flash\n" +
 		"    -p            Print bus info\n" +
 		"    -h            This help" );
     
@@ -56,12 +57,11 @@ class FlashBench extends Ztex1v1 {
     }
 
 // ******* testRW **************************************************************
-// measures read + write performance
+// measures read + write performance, the written data is verified using checksums
     public int testRW (boolean secondary, int num ) throws UsbException, InvalidFirmwareException, CapabilityException {
 	int flashSectorSize = secondary ? flash2SectorSize() : flashSectorSize();
 	int secNum = Math.max(1, 2048 / flashSectorSize);
 	byte[] buf1 = new byte[flashSectorSize * secNum];
-	byte[] buf2 = new byte[flashSectorSize * secNum];
 
 	long t0 = new Date().getTime();
 
@@ -72,19 +72,9 @@ class FlashBench extends Ztex1v1 {
 	    }
 
 	    System.out.print("Sector " + (i+l) + "/" + num+ "  " + Math.round(10000.0*(i+1)/num)/100.0 + "%    \r");
-	    if ( secondary ) {
-		flash2WriteSector(i,l,buf1);
-		flash2ReadSector(i,l,buf2);
-	    } else {
-		flashWriteSector(i,l,buf1);
-		flashReadSector(i,l,buf2);
-	    }
-	    int diffs=flashSectorSize*l;
-	    for (int k=0; k<flashSectorSize*l; k++) 
-		if ( buf1[k] == buf2[k] )
-		    diffs -= 1;
-	    if ( diffs!=0 ) {
-		System.out.println("Error occured at sector " + i +": " + diffs + " differences");
+	    int[] errors = secondary ? flash2WriteSectorVerified(i,l,buf1) : flashWriteSectorVerified(i,l,buf1);
+	    if ( errors.length>0 ) {
+		System.out.println("Re-programmed sectors: " + Arrays.toString(errors));
 	    } 
 	}
 
@@ -137,6 +127,36 @@ class FlashBench extends Ztex1v1 {
 	return (int) Math.round(num*flashSectorSize*1.0/(new Date().getTime() - t0));
     }
 
+// ******* testStripe **********************************************************
+// measures read and write performance of the striped volume of both Flash memories
+    public void testStripe ( int num, boolean writeTests ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	ZtexFlashStripe stripe = new ZtexFlashStripe( this );
+	if ( num < 2 ) num = stripe.sectorSize() > 1024 ? 32 : 16384;
+	if ( num > stripe.sectors() ) num = stripe.sectors();
+	int flashSectorSize = stripe.sectorSize();
+	System.out.println("Striped volume: " + stripe.sectors() + " sectors of " + flashSectorSize + " bytes, each stored in " + stripe.sectorsPerUnit(0) + " Flash sector(s) of " + flashSectorSize()
+	    + " bytes or " + stripe.sectorsPerUnit(1) + " Flash 2 sector(s) of " + flash2SectorSize() + " bytes");
+	byte[] backup = new byte[flashSectorSize * num];
+
+	long t0 = new Date().getTime();
+	stripe.readSector(0, num, backup);
+	System.out.println("Striped Read Performance: " + Math.round(num*flashSectorSize*1.0/(new Date().getTime() - t0 + 1)) + " kb/s     ");
+	if ( !writeTests ) return;
+
+	byte[] buf1 = new byte[flashSectorSize * num];
+	byte[] buf2 = new byte[flashSectorSize * num];
+	new Random().nextBytes(buf1);
+	t0 = new Date().getTime();
+	stripe.writeSector(0, num, buf1);
+	System.out.println("Striped Write Performance: " + Math.round(num*flashSectorSize*1.0/(new Date().getTime() - t0 + 1)) + " kb/s     ");
+	stripe.readSector(0, num, buf2);
+	for ( int i=0; i<num; i++ ) {
+	    if ( ! Arrays.equals(buf1, i*flashSectorSize, (i+1)*flashSectorSize, buf2, i*flashSectorSize, (i+1)*flashSectorSize) )
+		System.out.println("Error occured at striped sector " + i);
+	}
+	stripe.writeSector(0, num, backup);
+    }
+
 // ******* main ****************************************************************
     public static void main (String args[]) {
     
@@ -145,6 +165,7 @@ class FlashBench extends Ztex1v1 {
 	boolean flash1 = false, have1 = false;
 	boolean flash2 = false, have2 = false;
 	boolean writeTests = false;
+	boolean stripe = false;
 
 	if ( ! System.getProperty("os.name").equalsIgnoreCase("linux") ) {
 	    Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -188,6 +209,9 @@ class FlashBench extends Ztex1v1 {
 		else if ( args[i].equals("-2") ) {
 		    flash2 = true;
 		}
+		else if ( args[i].equals("-S") ) {
+		    stripe = true;
+		}
 		else if ( args[i].equals("-w") ) {
 		    writeTests = true;
 		}
@@ -256,6 +280,12 @@ class FlashBench extends Ztex1v1 {
 		}
 	    }
 
+// striped volume test
+	    if ( stripe && ztex.InterfaceCapabilities(CAPABILITY_FLASH) && ztex.InterfaceCapabilities(CAPABILITY_FLASH2) && ztex.flashEnabled() && ztex.flash2Enabled() ) {
+		System.out.println("Testing striped volume ...");
+		ztex.testStripe(sectors, writeTests);
+	    }
+
 // release resources
 	    ztex.dispose();
     
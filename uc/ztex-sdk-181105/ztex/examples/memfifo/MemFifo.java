@@ -20,6 +20,7 @@ import java.io.*;
 import java.util.*;
 import java.text.*;
 import java.nio.*;
+import java.util.concurrent.*;
 
 import org.usb4java.*;
 
@@ -225,6 +226,61 @@ class MemFifo extends Ztex1v1 {
 	return size;
     }
 
+    // writes bufs buffers through a duplex session with a credit window of two buffers and reads them back
+    // the writer is throttled by the credits, i.e. its transfers are usually finished when the slots are reused
+    // buffer i is filled with the value i; returns number of read bytes
+    public long duplexTest ( final int bufs, final int bufSize ) throws Exception {
+	final ZtexUsbDuplex duplex = new ZtexUsbDuplex( this, 8, bufSize );
+	final int[] responses = new int[1];
+	final String[] error = new String[1];
+	duplex.creditWindow = 2L*bufSize;
+	duplex.setListener( new ZtexUsbDuplex.ResponseListener() {
+	    public void response ( Object tag, long latency ) {
+		responses[0]++;
+	    }
+	} );
+	reset();
+	duplex.start();
+
+	Thread w = new Thread() {
+	    public void run() {
+		byte[] b = new byte[bufSize];
+		for ( int i=0; i<bufs && error[0]==null; i++ ) {
+		    Arrays.fill(b, (byte) i);
+		    try {
+			if ( duplex.write(ByteBuffer.wrap(b), Integer.valueOf(i), 5, TimeUnit.SECONDS) != bufSize ) error[0] = "Timeout transmitting buffer " + i;
+		    }
+		    catch ( Exception e ) {
+			error[0] = "Error transmitting buffer " + i + ": " + e.getLocalizedMessage();
+		    }
+		}
+	    }
+	};
+	w.start();
+
+	byte[] b = new byte[bufSize];
+	long size = 0;
+	long errors = 0;
+	try {
+	    while ( size < (long)bufs*bufSize && error[0]==null ) {
+		int k = duplex.read(b, 5, TimeUnit.SECONDS);
+		if ( k < 0 ) throw new UsbException("Timeout during reading after " + size + " bytes");
+		for ( int i=0; i<k; i++ )
+		    if ( b[i] != (byte) ((size+i) / bufSize) ) errors++;
+		size += k;
+		System.out.print("Buffer " + (size / bufSize) + ": " + errors + " data errors, " + (duplex.inFlight() >> 10) + " KByte in flight          \r");
+	    }
+	    w.join();
+	    System.out.println();
+	    System.out.println(responses[0] + " of " + bufs + " requests answered, write rate: " + Math.round(duplex.outRate()/1e6) + " MByte/s, read rate: " + Math.round(duplex.inRate()/1e6) + " MByte/s");
+	}
+	finally {
+	    if ( !duplex.close(5000) ) System.err.println("Unable to close duplex session");
+	}
+	if ( error[0] != null ) throw new UsbException(error[0]);
+	return size;
+    }
+
 // ******* main ****************************************************************
     public static void main (String args[]) {
     
@@ -398,6 +454,18 @@ class MemFifo extends Ztex1v1 {
 		System.out.println("USB write + read mode: 10 MByte/s read test");
 		ztex.verify(reader, 300, 10000, verbose, false);
 		ztex.debug2PrintNextLogMessages(System.out); 
+
+// Mode 0: duplex session with credit based flow control, uses an own event handler
+		reader.cancel();
+		if ( !writer.terminate(10000) ) System.err.println("Unable to cancel writing");
+		writer = null;
+		if ( !reader.cancelWait(10000) ) System.err.println("Unable to cancel reading");
+		reader = null;
+		if ( !eventHandler.terminate() ) System.err.println("Unable to terminate event handler");
+		eventHandler = null;
+		System.out.println("\nUSB duplex session test: credit window of 2 buffers");
+		ztex.duplexTest(400, 256*1024);
+		ztex.debug2PrintNextLogMessages(System.out); 
     	    }
 	    catch (Exception e) {
 		System.out.println("Error: "+e.getLocalizedMessage() );
@@ -60,6 +60,11 @@ class FWLoader {
 			"    -d <number>      Device Number (default: 0, use -p to get a list)\n"+
 			"    -f               Force uploads\n"+
 			"    -p               Print a list of available devices\n"+
+			"    -ufa <bitstream> Upload bitstream to the FPGA's of all devices found in parallel,\n"+
+			"                     without -f devices which have been configured with that bitstream\n"+
+			"                     by -ufd, -ufa or -ufm since they were connected are skipped\n"+
+			"    -sa <sn1,sn2,..> Only upload to devices with these serial numbers (used by -ufa)\n"+
+			"    -pb <number>     Maximum number of parallel uploads per USB bus (default: 2)\n"+
 			"    -h               This help \n\n"+
 			"Ordered parameters:\n"+
 			"    -i               Print device info\n"+
@@ -78,11 +83,25 @@ class FWLoader {
 			"    -bs 0|1|A        Bit swapping for bitstreams: 0: disable, 1: enable, A: automatic detection\n"+
 			"    -rf              Reset FPGA\n"+
 			"    -uf <bitstream>  Upload bitstream to FPGA\n"+
+			"    -ufd <bitstream> Upload bitstream to FPGA if it has not been configured with it\n"+
+			"                     by -ufd, -ufa or -ufm since the device was connected\n"+
+			"    -ufm <bitstream> Upload bitstream to all FPGA's of a multi-FPGA module,\n"+
+			"                     without -f FPGA's which have been configured with that bitstream\n"+
+			"                     by -ufd, -ufa or -ufm since the device was connected are skipped\n"+
 			"    -sf <number>     Select FPGA (default: 0)\n"+
 			"    -re              Reset Firmware in non-volatile memory\n"+
 			"    -ue <file>       Upload Firmware in ihx or img format to non-volatile memory\n"+
 			"    -rm              Reset bitstream in Flash\n"+
 			"    -um <bitstream>  Upload bitstream to Flash\n"+
+			"    -umd <bitstream> Upload bitstream to Flash, only sectors which differ are written\n"+
+			"    -fd <file>       Dump Flash to image file <file> (index: <file>.idx),\n"+
+			"                     without -f an interrupted dump is resumed\n"+
+			"    -fr <file>       Restore Flash from image file, only sectors which differ are written,\n"+
+			"                     without -f an interrupted restore is resumed\n"+
+			"    -f2d <file>      Dump 2nd Flash to image file\n"+
+			"    -f2r <file>      Restore 2nd Flash from image file\n"+
+			"    -u2d <file>      Write file to 2nd Flash (starting at sector 0),\n"+
+			"                     only sectors which differ are written\n"+
 			"    -uxf <ihx file>  Upload Firmware / data  to ATxmega Flash\n"+
 			"    -uxe <ihx file>  Upload data to ATxmega EEPROM\n"+
 			"    -rxf <index>     Read ATxmega Fuse\n" +
@@ -110,6 +129,9 @@ class FWLoader {
 	    boolean printBus = false;
 	    String snString = null;
 	    int bs = -1;
+	    String fleetFile = null;
+	    int fleetPerBus = 2;
+	    ArrayList<String> fleetSnStrings = null;
 	    
 	    if ( args.length == 0 ) {
 	    	    System.err.println(helpMsg);
@@ -176,13 +198,53 @@ class FWLoader {
 		    }
     		    snString = checkSnString(args[i]);
 		}
+		else if ( args[i].equals("-ufa") ) {
+		    i++;
+		    if (i>=args.length) {
+			System.err.println("Error: Filename expected after -ufa");
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		    fleetFile = args[i];
+		}
+		else if ( args[i].equals("-sa") ) {
+		    i++;
+		    if (i>=args.length) {
+			System.err.println("Error: Serial numbers expected after -sa");
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		    fleetSnStrings = new ArrayList<String>();
+		    for ( String sn : args[i].split(",") ) {
+			if ( sn.length() > 0 )
+			    fleetSnStrings.add( checkSnString(sn) );
+		    }
+		}
+		else if ( args[i].equals("-pb") ) {
+		    i++;
+		    try {
+			if (i>=args.length) 
+			    throw new Exception();
+			fleetPerBus = Integer.parseInt( args[i] );
+		    } 
+		    catch (Exception e) {
+			System.err.println("Error: Number expected after -pb");
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		}
+		else if ( args[i].equals("-bs") ) {		// needed by -ufa, checked and evaluated again below
+		    i++;
+		    if ( i<args.length )
+			bs = args[i].equals("0") ? 0 : args[i].equals("1") ? 1 : -1;
+		}
 		else if ( args[i].equals("-h") ) {
 		        System.err.println(helpMsg);
 	    	        System.exit(0);
 		}
 		else if ( args[i].equals("-i") || args[i].equals("-ii") || args[i].equals("-if") || args[i].equals("-ic") || args[i].equals("-il") || args[i].equals("-ru") || args[i].equals("-rf") || args[i].equals("-re") || args[i].equals("-rm") ) {
 		}
-		else if ( args[i].equals("-uu") || args[i].equals("-uf") || args[i].equals("-sf") || args[i].equals("-ue") || args[i].equals("-um") || args[i].equals("-bs") || args[i].equals("-uxf")  || args[i].equals("-uxe") || args[i].equals("-rxf") || args[i].equals("-ss") || args[i].equals("-sp")) {
+		else if ( args[i].equals("-uu") || args[i].equals("-uf") || args[i].equals("-ufd") || args[i].equals("-ufm") || args[i].equals("-sf") || args[i].equals("-ue") || args[i].equals("-um") || args[i].equals("-umd") || args[i].equals("-fd") || args[i].equals("-fr") || args[i].equals("-f2d") || args[i].equals("-f2r") || args[i].equals("-u2d") || args[i].equals("-uxf")  || args[i].equals("-uxe") || args[i].equals("-rxf") || args[i].equals("-ss") || args[i].equals("-sp")) {
 		    i+=1;
 		}
 		else if ( args[i].equals("-su") ) {
@@ -207,6 +269,27 @@ class FWLoader {
     	    if ( printBus )
 		bus.printBus(System.out);
 
+// configure all devices in parallel
+	    if ( fleetFile != null ) {
+		ZtexFleetConfigurator fleet = new ZtexFleetConfigurator( bus, fleetSnStrings );
+		bus.unref();
+		if ( fleet.size() <= 0 ) {
+		    System.err.println("No devices with the given serial numbers found");
+		    fleet.close();
+		    System.exit(0);
+		}
+		fleet.maxPerBus = fleetPerBus;
+		ZtexFleetConfigurator.Result[] results = fleet.configure( fleetFile, bs, forceUpload, !forceUpload, new ZtexFleetConfigurator.ProgressListener() {
+		    public void progress ( ZtexFleetConfigurator.Result result, int finished, int total ) {
+			System.out.println( "[" + finished + "/" + total + "] " + result );
+		    }
+		} );
+		fleet.close();
+		int f = ZtexFleetConfigurator.failures(results);
+		System.out.println( (results.length-f) + " of " + results.length + " devices configured successfully" );
+		System.exit( f > 0 ? 1 : 0 );
+	    }
+
 	    Ztex1v1 ztex = new Ztex1v1 ( bus.device(devNum) );
 	    bus.unref();
 	    
@@ -346,7 +429,28 @@ class FWLoader {
 			System.err.println(helpMsg);
 			System.exit(1);
 		    }
-		    System.out.println("FPGA configuration time: " + ztex.configureFpga( args[i], forceUpload, bs ) + " ms");
+		    System.out.println("FPGA configuration time: " + ztex.configureFpga( args[i], forceUpload, bs ) + " ms  (peak buffer memory: " + (ztex.fpgaConfigurationPeakMemory >> 10) + " KB)");
+		} 
+		else if ( args[i].equals("-ufd") ) {
+		    i++;
+    	    	    if ( i >= args.length ) {
+			System.err.println("Error: Filename expected after -ufd");
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		    long t = ztex.configureFpgaIfDifferent( args[i], bs );
+		    System.out.println( t < 0 ? "FPGA already configured with " + args[i] : "FPGA configuration time: " + t + " ms" );
+		} 
+		else if ( args[i].equals("-ufm") ) {
+		    i++;
+    	    	    if ( i >= args.length ) {
+			System.err.println("Error: Filename expected after -ufm");
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		    ZtexFpgaResult[] results = ztex.configureFpgas( args[i], bs, null, forceUpload, !forceUpload );
+		    for ( int j=0; j<results.length; j++ )
+			System.out.println( results[j].toString() );
 		} 
 		else if ( args[i].equals("-sf") ) {
 		    i++;
@@ -391,17 +495,67 @@ class FWLoader {
 		    ztex.flashResetBitstream();
 		    System.out.println("First free sector: " + ztex.flashFirstFreeSector() );
 		}
-		else if ( args[i].equals("-um") ) {
+		else if ( args[i].equals("-um") || args[i].equals("-umd") ) {
+		    ztex.flashDifferentialWrite = args[i].equals("-umd");
 		    i++;
     	    	    if ( i >= args.length ) {
-			System.err.println("Error: Filename expected after -um");
+			System.err.println("Error: Filename expected after " + args[i-1]);
 			System.err.println(helpMsg);
 			System.exit(1);
 		    }
 		    System.out.println("First free sector: " + ztex.flashFirstFreeSector() );
-		    System.out.println("FPGA configuration time: " + ztex.flashUploadBitstream( args[i], bs ) + " ms");
+		    long t = ztex.flashUploadBitstream( args[i], bs, new ZtexProgressListener() {
+			public void progress ( long done, long total ) {
+			    System.out.print( "\rWritten " + (done >> 10) + ( total >= 0 ? " of " + (total >> 10) : "" ) + " KB" );
+			}
+		    } );
+		    System.out.println();
+		    System.out.println("FPGA configuration time: " + t + " ms  (" + ztex.flashWrittenSectors + " sectors written)");
 		    System.out.println("First free sector: " + ztex.flashFirstFreeSector() );
 		}
+		else if ( args[i].equals("-fd") || args[i].equals("-fr") || args[i].equals("-f2d") || args[i].equals("-f2r") ) {
+		    boolean flash2 = args[i].startsWith("-f2");
+		    boolean restore = args[i].endsWith("r");
+		    i++;
+    	    	    if ( i >= args.length ) {
+			System.err.println("Error: Filename expected after " + args[i-1]);
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		    ZtexProgressListener listener = new ZtexProgressListener() {
+			public void progress ( long done, long total ) {
+			    System.out.print( "\r" + (done >> 10) + " of " + (total >> 10) + " KB" );
+			}
+		    };
+		    long t0 = new Date().getTime();
+		    int n = restore ? ZtexFlashImage.restore( ztex, flash2, args[i], !forceUpload, listener )
+				    : ZtexFlashImage.dump( ztex, flash2, args[i], !forceUpload, listener );
+		    System.out.println();
+		    System.out.println( (flash2 ? "2nd Flash " : "Flash ") + (restore ? "restore" : "dump") + " time: " + (new Date().getTime() - t0) + " ms  (" + n + " sectors " + (restore ? "written" : "read") + ")" );
+		}
+		else if ( args[i].equals("-u2d") ) {
+		    i++;
+    	    	    if ( i >= args.length ) {
+			System.err.println("Error: Filename expected after -u2d");
+			System.err.println(helpMsg);
+			System.exit(1);
+		    }
+		    byte[] data = java.nio.file.Files.readAllBytes( new File(args[i]).toPath() );
+		    int ss = ztex.flash2SectorSize();
+		    int num = (data.length + ss - 1) / ss;
+		    if ( num > ztex.flash2Sectors() )
+			throw new Exception( args[i] + ": File too large for 2nd Flash: " + data.length + " > " + ((long)ztex.flash2Sectors()*ss) + " bytes");
+		    byte[] buf = new byte[num*ss];
+		    if ( buf.length > data.length ) {	// keep the remainder of the last sector
+			byte[] last = new byte[ss];
+			ztex.flash2ReadSector( num-1, last );
+			System.arraycopy( last, 0, buf, (num-1)*ss, ss );
+		    }
+		    System.arraycopy( data, 0, buf, 0, data.length );
+		    long t0 = new Date().getTime();
+		    int n = ztex.flash2WriteChangedSectors( 0, num, buf );
+		    System.out.println("2nd Flash write time: " + (new Date().getTime() - t0) + " ms  (" + n + " of " + num + " sectors written)");
+		}
 		else if ( args[i].equals("-uxf") ) {
 		    i++;
     	    	    if ( i >= args.length ) {
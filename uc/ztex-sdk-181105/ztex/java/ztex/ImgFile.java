@@ -120,7 +120,7 @@ public class ImgFile {
 /**
   * Constructs an instance from a given file name.
   * This method can also read system resources, e.g. files from the current jar archive.
-  * @param in Input stream from which the firmware file is read.
+  * @param in Input stream from which the firmware file is read. Compressed data is detected and decompressed, see {@link JInputStream#decompress(InputStream)}.
   * @param name Name of the input.
   * @throws IOException If an read error occurred.
   * @throws ImgFileDamagedException If the firmware file is damaged.
@@ -133,6 +133,7 @@ public class ImgFile {
 	
 	boolean isImg = false;
 	
+	in = JInputStream.decompress( in );
 	cs = 0;
 	try {
 	    b = read(in);
@@ -28,12 +28,88 @@ package ztex;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.util.zip.*;
 
-/** * Creates an input stream from a regular file or a system resource file (i.e. a file from the current jar file). */
+/** 
+  * Creates an input stream from a regular file or a system resource file (i.e. a file from the current jar file).
+  * gzip and zlib compressed files are detected by their magic bytes and decompressed on the fly.
+  */
 public class JInputStream {
 
+// ******* Decompressor ********************************************************
+// detects compressed data on first access, i.e. construction never blocks or fails
+    private static class Decompressor extends FilterInputStream {
+	private boolean detected = false;
+
+	Decompressor ( InputStream p_in ) {
+	    super( p_in );
+	}
+
+	private void detect () throws IOException {
+	    if ( detected )
+		return;
+	    detected = true;
+	    BufferedInputStream bin = new BufferedInputStream( in, 8192 );
+	    bin.mark(2);
+	    int b0 = bin.read();
+	    int b1 = bin.read();
+	    bin.reset();
+	    if ( b0 == 0x1f && b1 == 0x8b )							// gzip
+		in = new GZIPInputStream( bin, 65536 );
+	    else if ( b0 == 0x78 && b1 >= 0 && (b1 & 0x20) == 0 && ((b0 << 8) | b1) % 31 == 0 )	// zlib, 32K window, no dictionary
+		in = new InflaterInputStream( bin, new Inflater(), 65536 );
+	    else
+		in = bin;
+	}
+
+	public int read () throws IOException {
+	    detect();
+	    return in.read();
+	}
+
+	public int read ( byte[] b, int off, int len ) throws IOException {
+	    detect();
+	    return in.read(b, off, len);
+	}
+
+	public long skip ( long n ) throws IOException {
+	    detect();
+	    return in.skip(n);
+	}
+
+	public int available () throws IOException {
+	    detect();
+	    return in.available();
+	}
+
+	public boolean markSupported () {
+	    return false;
+	}
+
+	public void mark ( int readlimit ) {
+	}
+
+	public void reset () throws IOException {
+	    throw new IOException("mark/reset not supported");
+	}
+    }
+
+// ******* decompress **********************************************************
+/** 
+  * Wraps an InputStream such that gzip and zlib compressed data is decompressed on the fly.
+  * The format is detected by the magic bytes when the first byte is read. Uncompressed data is passed through unchanged.
+  * Only the JDK inflater and buffers of constant size are used, i.e. memory usage does not depend on the size of the data.
+  * The returned stream does not support mark/reset. Marks of the given stream are not affected.
+  * @param in The input stream.
+  * @return The decompressing InputStream.
+  */
+    static public InputStream decompress ( InputStream in ) {
+	return in instanceof Decompressor ? in : new Decompressor( in );
+    }
+
 /** 
   * Creates an InputStream instance from a giving file name.
+  * Compressed files are decompressed on the fly, see {@link #decompress(InputStream)}.
   * @param fileName The file name.
   * @throws SecurityException Signals a security violation.
   * @throws FileNotFoundException Thrown if the file was not found.
@@ -52,7 +128,7 @@ public class JInputStream {
 	if ( is == null )
 	    throw new FileNotFoundException("File not found: "+fileName);
 	    
-	return is;
+	return decompress( is );
     }
 }    
 
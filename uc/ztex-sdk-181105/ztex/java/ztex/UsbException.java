@@ -64,4 +64,14 @@ public class UsbException extends Exception {
     public UsbException(Device dev,  String msg, int errNum) {
 	super( ZtexDevice1.name(dev) + ": " + msg + ": " + LibUsb.strError(errNum) );
     }
+
+/** 
+ * Constructs an instance from the given device, error message and cause.
+ * @param dev The device.
+ * @param msg The error message.
+ * @param cause The cause.
+ */
+    public UsbException(Device dev,  String msg, Throwable cause) {
+	super( ZtexDevice1.name(dev) + ": " + msg + ": " + ( cause.getLocalizedMessage() != null ? cause.getLocalizedMessage() : cause.toString() ), cause );
+    }
 }    
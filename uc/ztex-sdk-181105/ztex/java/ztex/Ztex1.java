@@ -31,6 +31,9 @@ package ztex;
 import java.io.*;
 import java.util.*;
 import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.lang.management.*;
 
 import org.usb4java.*;
 
@@ -44,19 +47,42 @@ import org.usb4java.*;
   * <p>
   * The interface dependent part of the communication protocol (currently only one is supported)
   * can be found in {@link Ztex1v1}.
+  * <p>
+  * Transfers are scheduled per device using separate lanes (see {@link ZtexLane}) for the control endpoint and for each bulk endpoint, i.e.
+  * control transfers do not wait for bulk transfers and vice versa. Short control transfers (up to {@link #PRIORITY_TRANSFER_SIZE} bytes of payload)
+  * are served first. Multi-step operations which require that the firmware is not disturbed by other operations of the same kind
+  * (e.g. FPGA configuration or flash memory access) are enclosed in sequences, see {@link #beginSequence()}. Sequences do not block
+  * single transfers of other threads, e.g. monitoring queries.
   * @see ZtexDevice1
   * @see Ztex1v1
   */
 public class Ztex1 {
-    private DeviceHandle handle = null;
-    private ZtexDevice1 dev = null;
+    private volatile DeviceHandle handle = null;
+    private volatile ZtexDevice1 dev = null;
     private Vector<String> oldDevices = new Vector<String>();
     private String oldDev = null;
     private boolean[] interfaceClaimed = new boolean[256];
     private boolean configurationSet = false;
 /** * The timeout for  control messages in ms. */    
     public int controlMsgTimeout = 2000;	// in ms
-    private long lastVendorCommandT = 0;
+    private volatile long lastVendorCommandT = System.nanoTime() - VENDOR_REQUEST_GAP;	// in ns
+    private static final long VENDOR_REQUEST_GAP = 1000000;	// minimum time between vendor command and vendor request in ns
+
+    private static ScheduledExecutorService asyncRetryExecutor = null;
+
+    private final ZtexLane controlLane = new ZtexLane();
+    private final ZtexLane[] bulkLanes = new ZtexLane[32];
+    private final ReentrantLock sequenceLock = new ReentrantLock();
+/** * Control transfers with up to this amount of payload data are preferred. */
+    public static final int PRIORITY_TRANSFER_SIZE = 64;
+
+    private ControlEndpoint endpoint = null;	// replaces LibUsb.controlTransfer in vendorCommand/vendorRequest if not null, see main
+
+// ******* ControlEndpoint *****************************************************
+// a simulated control endpoint, see main
+    private interface ControlEndpoint {
+	int controlTransfer ( byte requestType, byte request, short value, short index, ByteBuffer buf, long timeout );
+    }
 
     
 // ******* Ztex1 ***************************************************************
@@ -71,6 +97,11 @@ public class Ztex1 {
 	dev.ref();
     }
 
+// creates an instance for a simulated control endpoint, see main
+    private Ztex1 ( ControlEndpoint p_endpoint ) {
+	endpoint = p_endpoint;
+    }
+
 // ******* init ****************************************************************
 /** 
   * Initializates the class.
@@ -93,12 +124,18 @@ public class Ztex1 {
   */
     public synchronized void dispose () {
 	if ( handle != null ) {
-	    for (int i=0; i<256; i++)
-		if ( interfaceClaimed[i] ) 
-		    LibUsb.releaseInterface(handle, i);
+	    controlLane.acquire(false);		// wait for running control transfers
+	    try {
+		for (int i=0; i<256; i++)
+		    if ( interfaceClaimed[i] ) 
+			LibUsb.releaseInterface(handle, i);
 
-	    LibUsb.close(handle);
-	    handle = null;
+		LibUsb.close(handle);
+		handle = null;
+	    }
+	    finally {
+		controlLane.release();
+	    }
 	}
 	if ( dev != null ) {
 	    dev.unref();
@@ -118,7 +155,7 @@ public class Ztex1 {
 /** Returns the USB file handle.
   * @return the USB file handle.
   */  
-    public synchronized final DeviceHandle handle() 
+    public final DeviceHandle handle()
     {
         return handle;
     }
@@ -128,7 +165,7 @@ public class Ztex1 {
   * Returns the corresponding {@link ZtexDevice1}. 
   * @return the corresponding {@link ZtexDevice1}. 
   */
-    public synchronized final ZtexDevice1 dev() 
+    public final ZtexDevice1 dev()
     {
         return dev;
     }
@@ -138,7 +175,7 @@ public class Ztex1 {
   * Returns true if ZTEX descriptor 1 is available.
   * @return true if ZTEX descriptor 1 is available.
   */
-    public synchronized boolean valid ( ) {
+    public boolean valid ( ) {
 	return dev.valid();
     }
 
@@ -147,7 +184,7 @@ public class Ztex1 {
   * Checks whether ZTEX descriptor 1 is available.
   * @throws InvalidFirmwareException if ZTEX descriptor 1 is not available.
   */
-    public synchronized void checkValid () throws InvalidFirmwareException {
+    public void checkValid () throws InvalidFirmwareException {
 	if ( ! dev.valid() ) 
 	    throw new InvalidFirmwareException(this, "Can't read ZTEX descriptor 1");
     }
@@ -164,14 +201,21 @@ public class Ztex1 {
   * @return the number of bytes sent.
   * @throws UsbException if a communication error occurs.
   */
-    public synchronized int vendorCommand (int cmd, String func, int value, int index, ByteBuffer buf) throws UsbException {
-	long t0 = new Date().getTime()-100;
+    public int vendorCommand (int cmd, String func, int value, int index, ByteBuffer buf) throws UsbException {
+	if ( controlMsgTimeout < 400 ) controlMsgTimeout = 400;
+	final long t0 = System.nanoTime()-100000000L;
+	final long to = controlMsgTimeout*1000000L;
 	int trynum = 0;
 	int i = -1;
-	if ( controlMsgTimeout < 400 ) controlMsgTimeout = 400;
-	while ( (i<0) && new Date().getTime()-t0<controlMsgTimeout ) {		// repeat the message until the timeout has reached
-	    i = LibUsb.controlTransfer(handle, (byte)0x40, (byte)(cmd & 255), (short)(value & 0xffff), (short)(index & 0xffff), buf, controlMsgTimeout>>1);
-	    lastVendorCommandT = new Date().getTime();
+	while ( (i<0) && System.nanoTime()-t0<to ) {		// repeat the message until the timeout has reached
+	    controlLane.acquire( buf.capacity() <= PRIORITY_TRANSFER_SIZE );
+	    try {
+		i = controlTransfer((byte)0x40, (byte)(cmd & 255), (short)(value & 0xffff), (short)(index & 0xffff), buf, controlMsgTimeout>>1);
+		lastVendorCommandT = System.nanoTime();
+	    }
+	    finally {
+		controlLane.release();
+	    }
 	    if ( i < 0 ) {
 		System.err.println("Warning (try " + (trynum+1) + "): " + LibUsb.strError(i) );
 		try {
@@ -198,10 +242,15 @@ public class Ztex1 {
   * @return the number of bytes sent.
   * @throws UsbException if a communication error occurs.
   */
-    public synchronized int vendorCommand (int cmd, String func, int value, int index, byte[] buf, int length) throws UsbException {
-	ByteBuffer buffer = BufferUtils.allocateByteBuffer(length);
-	buffer.put(buf,0,length);
-	return vendorCommand(cmd, func, value, index, buffer);
+    public int vendorCommand (int cmd, String func, int value, int index, byte[] buf, int length) throws UsbException {
+	ByteBuffer buffer = ZtexBufferPool.shared().acquire(length);
+	try {
+	    buffer.put(buf,0,length);
+	    return vendorCommand(cmd, func, value, index, buffer);
+	}
+	finally {
+	    ZtexBufferPool.shared().release(buffer);
+	}
     }
 
 /**
@@ -215,7 +264,7 @@ public class Ztex1 {
   * @throws UsbException if a communication error occurs.
   */
     public int vendorCommand (int cmd, String func, int value, int index) throws UsbException {
-	return vendorCommand (cmd, func, value, index, ByteBuffer.allocateDirect(0));
+	return vendorCommand (cmd, func, value, index, ZtexBufferPool.EMPTY);
     }
 
 /**
@@ -227,8 +276,25 @@ public class Ztex1 {
   * @throws UsbException if a communication error occurs.
   */
     public int vendorCommand (int cmd, String func) throws UsbException {
-	byte[] buf = { 0 };
-	return vendorCommand (cmd, func, 0, 0, ByteBuffer.allocateDirect(0));
+	return vendorCommand (cmd, func, 0, 0, ZtexBufferPool.EMPTY);
+    }
+
+// ******* controlTransfer *****************************************************
+// performs a synchronous control transfer using libusb or the simulated endpoint
+    private int controlTransfer ( byte requestType, byte request, short value, short index, ByteBuffer buf, long timeout ) {
+	return endpoint != null ? endpoint.controlTransfer(requestType, request, value, index, buf, timeout)
+				: LibUsb.controlTransfer(handle, requestType, request, value, index, buf, timeout);
+    }
+
+// ******* pace ****************************************************************
+// waits until System.nanoTime() reaches the deadline with sub-millisecond precision:
+// the thread is parked for the major part of the time and spins for the last part
+    private static void pace ( long deadline ) {
+	long ns;
+	while ( (ns = deadline - System.nanoTime()) > 0 ) {
+	    if ( ns > 100000 ) LockSupport.parkNanos(ns - 50000);
+	    else Thread.onSpinWait();
+	}
     }
 
 // ******* vendorRequest *******************************************************
@@ -243,23 +309,22 @@ public class Ztex1 {
   * @return the number of bytes received.
   * @throws UsbException if a communication error occurs.
   */
-    public synchronized int vendorRequest (int cmd, String func, int value, int index, ByteBuffer buf) throws UsbException {
-	long t0 = new Date().getTime()-100;
+    public int vendorRequest (int cmd, String func, int value, int index, ByteBuffer buf) throws UsbException {
+	if ( controlMsgTimeout < 400 ) controlMsgTimeout = 400;
+	final long t0 = System.nanoTime()-100000000L;
+	final long to = controlMsgTimeout*1000000L;
 	int trynum = 0;
 	int i = -1;
-	if ( controlMsgTimeout < 400 ) controlMsgTimeout = 400;
-	while ( i<0 && new Date().getTime()-t0<controlMsgTimeout ) {		// we repeat the message until the timeout has reached
-	    //	Wait at least 1ms after the last command has been send
-	    long ms = new Date().getTime() - lastVendorCommandT;
-	    if ( ms < 2 ) {
-		try {
-    	    	    Thread.sleep(1);
-		}
-	    	    catch ( InterruptedException e ) {
-		}	
+	while ( i<0 && System.nanoTime()-t0<to ) {		// we repeat the message until the timeout has reached
+	    controlLane.acquire( buf.capacity() <= PRIORITY_TRANSFER_SIZE );
+	    try {
+		//	Wait at least 1ms after the last command has been send
+		pace(lastVendorCommandT + VENDOR_REQUEST_GAP);
+		i = controlTransfer((byte)(0xc0 & 255), (byte)(cmd & 255), (short)(value & 0xffff), (short)(index & 0xffff), buf, controlMsgTimeout>>1);
+	    }
+	    finally {
+		controlLane.release();
 	    }
-		
-	    i = LibUsb.controlTransfer(handle, (byte)(0xc0 & 255), (byte)(cmd & 255), (short)(value & 0xffff), (short)(index & 0xffff), buf, controlMsgTimeout>>1);
 	    if ( i < 0 ) {
 		System.err.println("Warning (try " + (trynum+1) + "): " + LibUsb.strError(i) );
 		try {
@@ -287,17 +352,16 @@ public class Ztex1 {
   * @return the number of bytes received.
   * @throws UsbException if a communication error occurs.
   */
-    public synchronized int vendorRequest (int cmd, String func, int value, int index, byte[] buf, int maxlen) throws UsbException {
-	ByteBuffer buffer = BufferUtils.allocateByteBuffer(maxlen);
-	int i = vendorRequest(cmd, func, value, index, buffer);
+    public int vendorRequest (int cmd, String func, int value, int index, byte[] buf, int maxlen) throws UsbException {
+	ByteBuffer buffer = ZtexBufferPool.shared().acquire(maxlen);
 	try {
-	    buffer.get(buf,0,maxlen);
+	    int i = vendorRequest(cmd, func, value, index, buffer);
+	    copy(buffer, i, buf, maxlen);
+	    return i;
 	}
-	catch ( Exception e ) {
-	    // errors can be ignored
+	finally {
+	    ZtexBufferPool.shared().release(buffer);
 	}
-	return i;
-	
     }
 
 /**
@@ -338,7 +402,7 @@ public class Ztex1 {
   * @param buf The payload data buffer. The full buffer is sent, i.e. transfer size is equal to buffer capacity.
   * @throws UsbException if a communication error occurs or if not all of the payload has been sent.
   */
-    public synchronized void vendorCommand2 (int cmd, String func, int value, int index, ByteBuffer buf) throws UsbException {
+    public void vendorCommand2 (int cmd, String func, int value, int index, ByteBuffer buf) throws UsbException {
 	int length = buf.capacity();
 	int i = vendorCommand (cmd, func, value, index, buf);
 	if ( i != length )
@@ -356,7 +420,7 @@ public class Ztex1 {
   * @param buf The payload data buffer.
   * @throws UsbException if a communication error occurs or if not all of the payload has been sent.
   */
-    public synchronized void vendorCommand2 (int cmd, String func, int value, int index, byte[] buf, int length) throws UsbException {
+    public void vendorCommand2 (int cmd, String func, int value, int index, byte[] buf, int length) throws UsbException {
 	int i = vendorCommand (cmd, func, value, index, buf, length);
 	if ( i != length )
 	    throw new UsbException( dev.dev(), (func != null ? func + ": " : "" ) + "Send " + i + " byte of data instead of " + length + " bytes");
@@ -422,6 +486,228 @@ public class Ztex1 {
 	vendorRequest2(cmd, func, 0, 0, buf, maxlen);
     }
 
+// ******* AsyncControlTransfer ************************************************
+// an asynchronous vendor command or vendor request including the retry logic of vendorCommand and vendorRequest
+// The control lane is only held during submission because lanes are owned by threads and completions are processed by the
+// event handler. Thus a transfer is not submitted while a synchronous transfer of another thread is running, but queued transfers
+// may be executed between two synchronous transfers.
+    private class AsyncControlTransfer implements TransferCallback, Runnable {
+	private final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+	private final boolean isRequest;
+	private final int cmd;
+	private final String func;
+	private final ByteBuffer buffer;	// setup and payload data, acquired from the buffer pool
+	private final boolean priority;
+	private final long t0 = System.nanoTime()-100000000L;
+	private int trynum = 0;
+	private Transfer transfer = null;
+
+	AsyncControlTransfer ( boolean p_isRequest, int p_cmd, String p_func, int value, int index, ByteBuffer buf, int length ) {
+	    isRequest = p_isRequest;
+	    cmd = p_cmd;
+	    func = p_func;
+	    priority = length <= PRIORITY_TRANSFER_SIZE;
+	    buffer = ZtexBufferPool.shared().acquire(LibUsb.CONTROL_SETUP_SIZE + length);
+	    LibUsb.fillControlSetup(buffer, (byte)(isRequest ? 0xc0 : 0x40), (byte)(cmd & 255), (short)(value & 0xffff), (short)(index & 0xffff), (short)length);
+	    if ( buf != null ) {
+		ByteBuffer b = buf.duplicate();
+		b.clear();
+		b.limit(length);
+		buffer.position(LibUsb.CONTROL_SETUP_SIZE);
+		buffer.put(b);
+	    }
+	    buffer.rewind();
+	}
+
+	// submits the transfer, wait at least 1ms after the last command has been send if it is a request
+	public void run () {
+	    long ns = lastVendorCommandT + VENDOR_REQUEST_GAP - System.nanoTime();
+	    if ( isRequest && ns > 0 ) {
+		asyncRetryExecutor().schedule(this, ns, TimeUnit.NANOSECONDS);
+		return;
+	    }
+	    int result = LibUsb.ERROR_NO_DEVICE;
+	    DeviceHandle h = handle();
+	    if ( h != null ) {
+		if ( transfer == null ) transfer = LibUsb.allocTransfer();
+		if ( transfer == null ) {
+		    fail("Error allocating transfer buffer");
+		    return;
+		}
+		LibUsb.fillControlTransfer(transfer, h, buffer, this, null, controlMsgTimeout>>1);
+		controlLane.acquire(priority);
+		try {
+		    result = LibUsb.submitTransfer(transfer);
+		}
+		finally {
+		    controlLane.release();
+		}
+	    }
+	    if ( result != LibUsb.SUCCESS ) retry(LibUsb.strError(result));
+	}
+
+	public void processTransfer ( Transfer t ) {
+	    if ( !isRequest ) lastVendorCommandT = System.nanoTime();
+	    if ( t.status() == LibUsb.TRANSFER_COMPLETED ) {
+		ByteBuffer b = LibUsb.controlTransferGetData(t);
+		b.limit(t.actualLength());
+		ByteBuffer r = ByteBuffer.allocate(b.remaining());	// copy the data because the direct buffer is returned to the pool
+		r.put(b);
+		r.flip();
+		LibUsb.freeTransfer(t);
+		transfer = null;
+		ZtexBufferPool.shared().release(buffer);
+		future.complete(r.asReadOnlyBuffer());
+	    }
+	    else retry("Transfer status " + t.status());
+	}
+
+	// retries the transfer until the timeout has been reached
+	private void retry ( String msg ) {
+	    if ( System.nanoTime()-t0 < controlMsgTimeout*1000000L ) {
+		System.err.println("Warning (try " + (trynum+1) + "): " + msg );
+		asyncRetryExecutor().schedule(this, 25 << trynum, TimeUnit.MILLISECONDS);
+		trynum++;
+	    }
+	    else fail(msg);
+	}
+
+	private void fail ( String msg ) {
+	    if ( transfer != null ) {
+		LibUsb.freeTransfer(transfer);
+		transfer = null;
+	    }
+	    ZtexBufferPool.shared().release(buffer);
+	    ZtexDevice1 d = dev();
+	    future.completeExceptionally( d != null ? new UsbException(d.dev(), (func != null ? func + ": " : "" ) + msg) : new UsbException((func != null ? func + ": " : "" ) + msg) );
+	}
+    }
+
+// ******* asyncRetryExecutor **************************************************
+// returns the scheduler used for delayed submissions of asynchronous control transfers
+    private static synchronized ScheduledExecutorService asyncRetryExecutor () {
+	if ( asyncRetryExecutor == null ) {
+	    asyncRetryExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		public Thread newThread ( Runnable r ) {
+		    Thread t = new Thread(r, "ZTEX async control transfers");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    } );
+	}
+	return asyncRetryExecutor;
+    }
+
+// ******* vendorCommandAsync **************************************************
+/**
+  * Sends a vendor command to Endpoint 0 of the EZ-USB device using an asynchronous control transfer.
+  * Several asynchronous transfers can be queued. They are processed by the event handler, see {@link ZtexEventHandler}, which must be running.
+  * As with {@link #vendorCommand(int,String,int,int,ByteBuffer)} the command may be send multiple times until the {@link #controlMsgTimeout} is reached.
+  * @param cmd The command number (0..255).
+  * @param func The name of the command. This string is used for the generation of error messages.
+  * @param value The value (0..65535), i.e bytes 2 and 3 of the setup data.
+  * @param index The index (0..65535), i.e. bytes 4 and 5 of the setup data.
+  * @param buf The payload data buffer. The full buffer is sent, i.e. transfer size is equal to buffer capacity. It is copied, i.e. it may be modified
+  *   after this method returned.
+  * @return A future which is completed with a read-only buffer containing the sent payload data or exceptionally with an {@link UsbException}.
+  */
+    public CompletableFuture<ByteBuffer> vendorCommandAsync (int cmd, String func, int value, int index, ByteBuffer buf) {
+	if ( controlMsgTimeout < 400 ) controlMsgTimeout = 400;
+	AsyncControlTransfer t = new AsyncControlTransfer(false, cmd, func, value, index, buf, buf.capacity());
+	t.run();
+	return t.future;
+    }
+
+/**
+  * Sends a vendor command with no payload data to Endpoint 0 of the EZ-USB device using an asynchronous control transfer.
+  * See {@link #vendorCommandAsync(int,String,int,int,ByteBuffer)} for details.
+  * @param cmd The command number (0..255).
+  * @param func The name of the command. This string is used for the generation of error messages.
+  * @param value The value (0..65535), i.e bytes 2 and 3 of the setup data.
+  * @param index The index (0..65535), i.e. bytes 4 and 5 of the setup data.
+  * @return A future which is completed with an empty buffer or exceptionally with an {@link UsbException}.
+  */
+    public CompletableFuture<ByteBuffer> vendorCommandAsync (int cmd, String func, int value, int index) {
+	return vendorCommandAsync(cmd, func, value, index, ZtexBufferPool.EMPTY);
+    }
+
+// ******* vendorRequestAsync **************************************************
+/**
+  * Sends a vendor request to Endpoint 0 of the EZ-USB device using an asynchronous control transfer.
+  * Several asynchronous transfers can be queued. They are processed by the event handler, see {@link ZtexEventHandler}, which must be running.
+  * As with {@link #vendorRequest(int,String,int,int,ByteBuffer)} the request may be send multiple times until the {@link #controlMsgTimeout} is reached.
+  * @param cmd The request number (0..255).
+  * @param func The name of the request. This string is used for the generation of error messages.
+  * @param value The value (0..65535), i.e bytes 2 and 3 of the setup data.
+  * @param index The index (0..65535), i.e. bytes 4 and 5 of the setup data.
+  * @param maxlen The size of the requested payload data (0..65535), i.e. bytes 6 and 7 of the setup data.
+  * @return A future which is completed with a read-only buffer containing the received data (position is 0 and limit is the number of bytes received)
+  *   or exceptionally with an {@link UsbException}.
+  */
+    public CompletableFuture<ByteBuffer> vendorRequestAsync (int cmd, String func, int value, int index, int maxlen) {
+	if ( controlMsgTimeout < 400 ) controlMsgTimeout = 400;
+	AsyncControlTransfer t = new AsyncControlTransfer(true, cmd, func, value, index, null, maxlen);
+	t.run();
+	return t.future;
+    }
+
+/**
+  * Sends a vendor request to Endpoint 0 of the EZ-USB device using an asynchronous control transfer and completes the future exceptionally
+  * if not all of the payload has been received. See {@link #vendorRequestAsync(int,String,int,int,int)} for details.
+  * @param cmd The request number (0..255).
+  * @param func The name of the request. This string is used for the generation of error messages.
+  * @param value The value (0..65535), i.e bytes 2 and 3 of the setup data.
+  * @param index The index (0..65535), i.e. bytes 4 and 5 of the setup data.
+  * @param maxlen The size of the requested payload data (0..65535), i.e. bytes 6 and 7 of the setup data.
+  * @return A future which is completed with a read-only buffer containing the received data or exceptionally with an {@link UsbException}.
+  */
+    public CompletableFuture<ByteBuffer> vendorRequest2Async (final int cmd, final String func, int value, int index, final int maxlen) {
+	final ZtexDevice1 d = dev();
+	return vendorRequestAsync(cmd, func, value, index, maxlen).thenApply( new java.util.function.Function<ByteBuffer,ByteBuffer>() {
+	    public ByteBuffer apply ( ByteBuffer b ) {
+		if ( b.remaining() != maxlen )
+		    throw new CompletionException( new UsbException( d.dev(), (func != null ? func + ": " : "" ) + "Received " + b.remaining() + " byte of data, expected "+maxlen+" bytes") );
+		return b;
+	    }
+	} );
+    }
+
+// ******* bulkLane ************************************************************
+// returns the lane of a bulk endpoint
+    private ZtexLane bulkLane(int ep) {
+	int i = (ep & 15) | ((ep >> 3) & 16);
+	synchronized ( bulkLanes ) {
+	    if ( bulkLanes[i] == null ) bulkLanes[i] = new ZtexLane();
+	    return bulkLanes[i];
+	}
+    }
+
+// ******* controlLane *********************************************************
+/**
+  * Returns the lane of the control endpoint. Can be used to obtain statistics or to perform own control transfers.
+  * @return The lane of the control endpoint.
+  */
+    public ZtexLane controlLane() {
+	return controlLane;
+    }
+
+// ******* beginSequence *******************************************************
+/**
+  * Begins a sequence of transfers which must not be interrupted by other sequences, e.g. by other flash or FPGA operations.
+  * Single transfers of other threads are not blocked by sequences. Sequences can be nested and must be ended using {@link #endSequence()}.
+  */
+    public void beginSequence() {
+	sequenceLock.lock();
+    }
+
+// ******* endSequence *********************************************************
+/**
+  * Ends a sequence, see {@link #beginSequence()}.
+  */
+    public void endSequence() {
+	sequenceLock.unlock();
+    }
+
 // ******* bulkWrite ***********************************************************
 /**
   * Wrapper method for ibUsb.bulkTransfer(DeviceHandle,byte,ByteBuffer,IntBuffer,long).
@@ -432,9 +718,22 @@ public class Ztex1 {
   */
     public int bulkWrite(int ep, ByteBuffer buffer, long timeout) 
     {
-	IntBuffer transferred = BufferUtils.allocateIntBuffer();
-	int result = LibUsb.bulkTransfer(handle, (byte)(ep & 127), buffer, transferred, timeout);
-	return result < 0 ? result : transferred.get();
+	IntBuffer transferred = ZtexBufferPool.shared().acquireInt();
+	try {
+	    ZtexLane lane = bulkLane(ep & 127);
+	    lane.acquire(false);
+	    int result;
+	    try {
+		result = LibUsb.bulkTransfer(handle, (byte)(ep & 127), buffer, transferred, timeout);
+	    }
+	    finally {
+		lane.release();
+	    }
+	    return result < 0 ? result : transferred.get();
+	}
+	finally {
+	    ZtexBufferPool.shared().releaseInt(transferred);
+	}
     }
 
 /**
@@ -447,11 +746,14 @@ public class Ztex1 {
   */
     public int bulkWrite(int ep, byte[] buf, int length, long timeout) 
     {
-	ByteBuffer buffer = BufferUtils.allocateByteBuffer(length);
-	buffer.put(buf,0,length);
-	IntBuffer transferred = BufferUtils.allocateIntBuffer();
-	int result = LibUsb.bulkTransfer(handle, (byte)(ep & 127), buffer, transferred, timeout);
-	return result < 0 ? result : transferred.get();
+	ByteBuffer buffer = ZtexBufferPool.shared().acquire(length);
+	try {
+	    buffer.put(buf,0,length);
+	    return bulkWrite(ep, buffer, timeout);
+	}
+	finally {
+	    ZtexBufferPool.shared().release(buffer);
+	}
     }
 
 // ******* bulkRead ************************************************************
@@ -464,9 +766,22 @@ public class Ztex1 {
   */
     public int bulkRead(int ep, ByteBuffer buffer, long timeout) 
     {
-	IntBuffer transferred = BufferUtils.allocateIntBuffer();
-	int result = LibUsb.bulkTransfer(handle, (byte)(128 | (ep & 127)), buffer, transferred, timeout);
-	return result < 0 ? result : transferred.get();
+	IntBuffer transferred = ZtexBufferPool.shared().acquireInt();
+	try {
+	    ZtexLane lane = bulkLane(128 | (ep & 127));
+	    lane.acquire(false);
+	    int result;
+	    try {
+		result = LibUsb.bulkTransfer(handle, (byte)(128 | (ep & 127)), buffer, transferred, timeout);
+	    }
+	    finally {
+		lane.release();
+	    }
+	    return result < 0 ? result : transferred.get();
+	}
+	finally {
+	    ZtexBufferPool.shared().releaseInt(transferred);
+	}
     }
 
 /**
@@ -479,16 +794,25 @@ public class Ztex1 {
   */
     public int bulkRead(int ep, byte[] buf, int maxlen, long timeout) 
     {
-	ByteBuffer buffer = BufferUtils.allocateByteBuffer(maxlen);
-	IntBuffer transferred = BufferUtils.allocateIntBuffer();
-	int result = LibUsb.bulkTransfer(handle, (byte)(128 | (ep & 127)), buffer, transferred, timeout);
+	ByteBuffer buffer = ZtexBufferPool.shared().acquire(maxlen);
 	try {
-	    buffer.get(buf,0,maxlen);
+	    int result = bulkRead(ep, buffer, timeout);
+	    copy(buffer, result, buf, maxlen);
+	    return result;
 	}
-	catch ( Exception e ) {
-	    // errors can be ignored
+	finally {
+	    ZtexBufferPool.shared().release(buffer);
 	}
-	return result < 0 ? result : transferred.get();
+    }
+
+// ******* copy ****************************************************************
+// copies the received data from a pooled buffer to a byte array, the remaining bytes are set to 0
+    private static void copy(ByteBuffer buffer, int length, byte[] buf, int maxlen) {
+	maxlen = Math.min(maxlen, buf.length);
+	int k = Math.max(0, Math.min(length, maxlen));
+	buffer.rewind();
+	buffer.get(buf,0,k);
+	Arrays.fill(buf,k,maxlen,(byte)0);
     }
 
 // ******* allocateByteBuffer **************************************************
@@ -805,7 +1129,7 @@ public class Ztex1 {
 // boot
     private void resetFX3 ( boolean boot ) throws UsbException, InvalidFirmwareException {
 	if ( !dev.valid() || !dev.fx3() ) throw new InvalidFirmwareException("Reset using vendor command 0xA1 is not supported by the device");
-	LibUsb.controlTransfer(handle, (byte)0x40, (byte)(0xA1 & 255), /*value*/ (short)(boot ? 1 : 0), /*index*/ (short)0, ByteBuffer.allocateDirect(0), 100);
+	LibUsb.controlTransfer(handle, (byte)0x40, (byte)(0xA1 & 255), /*value*/ (short)(boot ? 1 : 0), /*index*/ (short)0, ZtexBufferPool.EMPTY, 100);
     }
 
 // ******* resetEzUsb **********************************************************
@@ -877,4 +1201,64 @@ public class Ztex1 {
 	return dev.toString();
     }
 
-}    
+// ******* main ****************************************************************
+/**
+  * Measures the synchronous control transfer path using a simulated endpoint.
+  * A round trip consists of a vendor command without payload data followed by a vendor request with 4 bytes of payload data
+  * (using the byte array variants), i.e. the request is paced by the minimum gap of 1ms after the command. The simulated endpoint
+  * completes each transfer after a given latency. The round trips per second and the bytes allocated per round trip are reported.
+  * Additionally the accuracy of the pacing is compared with Thread.sleep(1), which has been used before.
+  * @param args Number of round trips (default: 2000) and latency of the simulated endpoint in us (default: 125).
+  * @throws UsbException if an error occurred.
+  * @throws InterruptedException if the benchmark is interrupted.
+  */
+    public static void main ( String[] args ) throws UsbException, InterruptedException {
+	int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	final long latency = (args.length > 1 ? Integer.parseInt(args[1]) : 125) * 1000L;
+	Ztex1 ztex = new Ztex1( new ControlEndpoint() {
+	    public int controlTransfer ( byte requestType, byte request, short value, short index, ByteBuffer buf, long timeout ) {
+		final long t = System.nanoTime() + latency;
+		while ( System.nanoTime() < t )
+		    Thread.onSpinWait();
+		return buf.capacity();
+	    }
+	} );
+	byte[] buf = new byte[4];
+	long[] gaps1 = new long[200];
+	long[] gaps2 = new long[gaps1.length];
+	for ( int run=0; run<3; run++ ) {	// the first run warms up the JIT
+	    long a0 = allocatedBytes();
+	    long t0 = System.nanoTime();
+	    for ( int k=0; k<n; k++ ) {
+		ztex.vendorCommand(0x60, "Simulated command", k, 0);
+		ztex.vendorRequest(0x61, "Simulated request", k, 0, buf, 4);
+	    }
+	    long t = System.nanoTime() - t0;
+	    long a = allocatedBytes() - a0;
+	    System.out.println("run " + run + ":  round trips per second: " + Math.round(n*1e9/t) + "   allocated bytes per round trip: "
+		+ (a0 < 0 ? "n/a" : Long.toString(a/n)) );
+	}
+
+	for ( int k=0; k<gaps1.length; k++ ) {
+	    long t0 = System.nanoTime();
+	    pace(t0 + VENDOR_REQUEST_GAP);
+	    gaps1[k] = System.nanoTime() - t0;
+	    t0 = System.nanoTime();
+	    Thread.sleep(1);
+	    gaps2[k] = System.nanoTime() - t0;
+	}
+	Arrays.sort(gaps1);
+	Arrays.sort(gaps2);
+	System.out.println("1ms gap:  pace: median " + gaps1[gaps1.length/2]/1000 + " us, max " + gaps1[gaps1.length-1]/1000
+	    + " us;   Thread.sleep(1): median " + gaps2[gaps2.length/2]/1000 + " us, max " + gaps2[gaps2.length-1]/1000 + " us");
+    }
+
+// ******* allocatedBytes ******************************************************
+// returns the number of bytes allocated by the current thread or -1 if this is not supported by the JVM
+    private static long allocatedBytes () {
+	java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+	if ( mx instanceof com.sun.management.ThreadMXBean )
+	    return ((com.sun.management.ThreadMXBean)mx).getCurrentThreadAllocatedBytes();
+	return -1;
+    }
+}
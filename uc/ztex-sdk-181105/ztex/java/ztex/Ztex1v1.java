@@ -175,6 +175,9 @@ package ztex;
 import java.io.*;
 import java.util.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
 
 import org.usb4java.*;
 
@@ -825,6 +828,21 @@ public class Ztex1v1 extends Ztex1 {
     /** * Enables extra FPGA configuration checks. Certain Bistream settings may cause false warnings.  */
     public boolean enableExtraFpgaConfigurationChecks = false;
 
+    /** * Number of reusable buffers used by streaming FPGA configuration (see {@link #configureFpgaHS(ZtexBitstreamPipeline.Source,boolean,int)}) and number of transfers kept in flight by pipelined FPGA configuration (see {@link #configureFpgaHSPipelined(ZtexBitstream,boolean)}). */
+    public int fpgaConfigurationBuffers = 4;
+    /** * Peak amount of buffer memory in bytes used by the last FPGA configuration. */
+    public long fpgaConfigurationPeakMemory = 0;
+    /** * Cache of preprocessed Bitstreams used by the methods which read Bitstreams from files, e.g. {@link ZtexBitstreamCache#shared()}. If null, Bitstreams are read using streaming mode (FPGA configuration) or without caching (Flash upload). Default value is {@link ZtexBitstreamCache#defaultCache()}, i.e. null unless the system property ztex.bitstreamCache is set. */
+    public ZtexBitstreamCache bitstreamCache = ZtexBitstreamCache.defaultCache();
+    /** * If set to true, {@link #flashUploadBitstream(InputStream,int,ZtexProgressListener)} reads back the Flash content and only writes sectors which differ from the new Bitstream, see {@link #flashWriteChangedSectors(int,int,byte[])}. The 2nd Flash memory can be written this way using {@link #flash2WriteChangedSectors(int,int,byte[])}. */
+    public boolean flashDifferentialWrite = false;
+    /** * Number of requests kept in flight by {@link #flashRead(int,int,WritableByteChannel,ZtexProgressListener)}. Default value is 8. */
+    public int flashReadAhead = 8;
+    /** * Number of Flash sectors actually written by the last Bitstream upload (including the boot sector). */
+    public int flashWrittenSectors = 0;
+    /** * Number of times sectors with mismatching checksums are re-programmed by {@link #flashWriteSectorVerified(int,int,byte[])}. Default value is 2. */
+    public int flashVerifyRetries = 2;
+
     private boolean fpgaConfigured = false;
     private int fpgaChecksum = 0;
     private int fpgaBytes = 0;
@@ -897,6 +915,7 @@ public class Ztex1v1 extends Ztex1 {
     
     private int numberOfFpgas = -1;
     private int selectedFpga = -1;
+
     private boolean parallelConfigSupport = false;
     
     private long lastTempSensorReadTime = 0;
@@ -1134,57 +1153,41 @@ public class Ztex1v1 extends Ztex1 {
   */
     public void resetFpga () throws UsbException, InvalidFirmwareException, CapabilityException {
 	checkCapability(CAPABILITY_FPGA);
+	forgetFpgaFingerprint();
 	vendorCommand(0x31, "resetFpga" );
     }
 
 
 // ******* detectBitstreamBitOrder *********************************************
-    private int detectBitstreamBitOrder ( byte[] buf ) {
-	for ( int i=0; i<buf.length-3; i++ ) {
-	    if ( ((buf[i] & 255)==0xaa) && ((buf[i+1] & 255)==0x99) && ((buf[i+2] & 255)==0x55) && ((buf[i+3] & 255)==0x66) )
-		return 1;
-	    if ( ((buf[i] & 255)==0x55) && ((buf[i+1] & 255)==0x99) && ((buf[i+2] & 255)==0xaa) && ((buf[i+3] & 255)==0x66) )
-		return 0;
-	} 
+// see ZtexBitstreamParser.bitOrder
+    static int detectBitstreamBitOrder ( byte[] buf ) {
+	int bs = ZtexBitstreamParser.bitOrder( buf, buf.length );
+	if ( bs >= 0 )
+	    return bs;
 	System.err.println("Warning: Unable to determine bitstream bit order: no signature found");
 	return 0;
     }
 
 // ******* detectBitstreamStart ************************************************
-    private int detectBitstreamStart ( byte[] buf ) {
-	int l=0;
-	for ( int i=0; i<buf.length-3; i++ ) {
-	    if ( (l>=4) && ((buf[i+1] & 255)==0x99) && ((buf[i+3] & 255)==0x66) ) {
-		if ( ((buf[i] & 255)==0xaa) && ((buf[i+2] & 255)==0x55) )
-		    return i-l;
-		if ( ((buf[i] & 255)==0x55) && ((buf[i+2] & 255)==0xaa) )
-		    return i-l;
-	    }
-	    l = buf[i]==-1 ? l+1 : 0;
-	} 
+// see ZtexBitstreamParser.start
+    static int detectBitstreamStart ( byte[] buf ) {
+	int l = ZtexBitstreamParser.start( buf, buf.length );
+	if ( l >= 0 )
+	    return l;
 	System.err.println("Warning: Unable to determine start of raw bitstream");
 	return 0;
     }
     
 // ******* swapBits ************************************************************
-    private void swapBits ( byte[] buf, int length ) {
-	for (int i=0; i<length; i++ ) {
-	    byte b = buf[i];
-	    buf[i] = (byte) ( ((b & 128) >> 7) |
- 		     	      ((b &  64) >> 5) |
-		     	      ((b &  32) >> 3) |
-		     	      ((b &  16) >> 1) |
-		     	      ((b &   8) << 1) |
-		     	      ((b &   4) << 3) |
-		     	      ((b &   2) << 5) |
-		     	      ((b &   1) << 7) );
-	}
+// see ZtexBitstreamParser.swapBits
+    static void swapBits ( byte[] buf, int length ) {
+	ZtexBitstreamParser.swapBits( buf, 0, length );
     }
 
 // ******* configureFpgaLS *****************************************************
 /**
   * Upload a Bitstream to the FPGA using low speed mode.
-  * @param inputStream for reading the Bitstream.
+  * @param inputStream for reading the Bitstream. Compressed data is decompressed on the fly, see {@link JInputStream#decompress(InputStream)}.
   * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
   * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
   * @return Configuration time in ms.
@@ -1196,6 +1199,18 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if FPGA configuration is not supported by the firmware.
   */
     public long configureFpgaLS ( InputStream inputStream, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return configureFpgaLSImpl( inputStream, force, bs );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// configureFpgaLS without sequence lock
+    private long configureFpgaLSImpl ( InputStream inputStream, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	inputStream = JInputStream.decompress( inputStream );
 	final int transactionBytes = 2048;
 	long t0 = 0;
 
@@ -1250,6 +1265,7 @@ public class Ztex1v1 extends Ztex1 {
 	}
 	if ( size < 64 || size % 64 == 0 ) 
 	    throw new BitstreamReadException("Invalid file size: " + size );
+	fpgaConfigurationPeakMemory = size + transactionBytes;
 
 	    
 // upload the Bitstream file	
@@ -1319,8 +1335,223 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if FPGA configuration is not supported by the firmware.
   */
     public long configureFpgaLS ( String fwFileName, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	if ( bitstreamCache != null )
+	    return configureFpgaLS( bitstreamCache.get( fwFileName, bs ), force );
+	return configureFpgaLS( bitstreamSource( fwFileName ), force, bs );
+    }
+
+/**
+  * Upload a Bitstream to the FPGA using low speed mode without reading the whole Bitstream into memory.
+  * The Bitstream is read, bit swapped and sent in a pipeline of {@link #fpgaConfigurationBuffers} reusable buffers, see {@link ZtexBitstreamPipeline}.
+  * The source is re-opened if the upload has to be retried.
+  * The peak memory usage is stored in {@link #fpgaConfigurationPeakMemory}.
+  * This mode is used by {@link #configureFpga(String,boolean,int)} if {@link #bitstreamCache} is null.
+  * @param source The source of the Bitstream.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return Configuration time in ms.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpgaLS ( ZtexBitstreamPipeline.Source source, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return configureFpgaLSImpl( source, force, bs );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// streaming configureFpgaLS without sequence lock
+    private long configureFpgaLSImpl ( ZtexBitstreamPipeline.Source source, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	final int transactionBytes = 2048;
+	long t0 = 0;
+
+	checkCapability(CAPABILITY_FPGA);
+	
+	if ( !force && getFpgaConfiguration() )
+	    throw new AlreadyConfiguredException(); 
+
+	fpgaConfigurationPeakMemory = 0;
+	for ( int tries=10; tries>0; tries-- ) {
+	    ZtexBitstreamPipeline pipe = new ZtexBitstreamPipeline( openBitstream(source), transactionBytes, fpgaConfigurationBuffers, 0, true, bs );
+	    try {
+		ByteBuffer buf = pipe.next();		// reading is overlapped with the reset
+		if ( buf == null || ( pipe.finished() && pipe.size() < 64 ) )
+		    throw new BitstreamReadException("Invalid file size: " + pipe.size() );
+		bs = pipe.bitOrder();
+
+		resetFpga();
+
+		t0 = -new Date().getTime();
+		long size = 0;
+		for ( ; buf != null; buf = pipe.next() ) {
+		    vendorCommand2(0x32, "sendFpgaData", 0,0, buf);
+		    size += buf.capacity();
+		}
+		int cs = pipe.checksum();
+
+ 		getFpgaState();
+		if ( ! fpgaConfigured ) {
+		    throw new BitstreamUploadException( "FPGA configuration failed: DONE pin does not go high (size=" + fpgaBytes + " ,  " + (size - fpgaBytes) + " bytes got lost;  checksum="
+			+ fpgaChecksum + " , should be " + cs + ";  INIT_B_HIST=" + fpgaInitB +")" );
+		}
+		if ( enableExtraFpgaConfigurationChecks ) {
+	    	    if ( fpgaBytes!=0 && fpgaBytes!=size )
+			System.err.println("Warning: Possible FPGA configuration data loss: " + (size - fpgaBytes) + " bytes got lost");
+		    if ( fpgaInitB!=222 )
+			System.err.println("Warning: Possible Bitstream CRC error: INIT_B_HIST=" + fpgaInitB );
+		}
+			
+		tries = 0;
+		t0 += new Date().getTime();
+	    } 
+	    catch ( BitstreamUploadException e ) {
+		if ( tries>1 ) 
+		    System.err.println("Warning: " + e.getLocalizedMessage() +": Retrying it ...");
+		else 
+		    throw e;
+	    }
+	    finally {
+		pipe.close();
+		fpgaConfigurationPeakMemory = Math.max( fpgaConfigurationPeakMemory, pipe.peakMemory() );
+	    }
+	}
+
+    	try {
+    	    Thread.sleep( 100 );
+    	}
+	catch ( InterruptedException e) {
+        } 
+	
+	return t0;
+    } 
+
+/**
+  * Upload a preprocessed Bitstream to the FPGA using low speed mode.
+  * The data is sent directly from the image, i.e. no further processing is required.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @return Configuration time in ms.
+  * @throws BitstreamReadException if the Bitstream is invalid.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpgaLS ( ZtexBitstream bitstream, boolean force ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return configureFpgaLSImpl( bitstream, force );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// configureFpgaLS from a preprocessed Bitstream without sequence lock
+    private long configureFpgaLSImpl ( ZtexBitstream bitstream, boolean force ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	final int transactionBytes = 2048;
+	long t0 = 0;
+	int size = bitstream.size();
+	int cs = bitstream.checksum();
+
+	checkCapability(CAPABILITY_FPGA);
+	
+	if ( !force && getFpgaConfiguration() )
+	    throw new AlreadyConfiguredException(); 
+
+	if ( size < 64 ) 
+	    throw new BitstreamReadException("Invalid file size: " + size );
+	fpgaConfigurationPeakMemory = 0;
+
+	for ( int tries=10; tries>0; tries-- ) {
+	    
+	    resetFpga();
+
+	    try {
+		t0 = -new Date().getTime();
+		int bs = 0;
+		for ( int i=0; i*transactionBytes < size; i++ ) {
+		    int j = Math.min( transactionBytes, size-i*transactionBytes );
+		    if ( i*transactionBytes+j == size && size % 64 == 0 ) {	// ensures size % 64 != 0 by appending a zero byte
+			if ( j == transactionBytes ) {
+			    vendorCommand2(0x32, "sendFpgaData", 0,0, bitstream.chunk(i*transactionBytes, j));
+			    bs += j;
+			    i++;
+			    j = 0;
+			}
+			ByteBuffer buf = ZtexBufferPool.shared().acquire(j+1);
+			try {
+			    buf.put( bitstream.chunk(i*transactionBytes, j) );
+			    buf.put( (byte)0 );
+			    buf.clear();
+			    vendorCommand2(0x32, "sendFpgaData", 0,0, buf);
+			}
+			finally {
+			    ZtexBufferPool.shared().release(buf);
+			}
+			bs += j+1;
+		    }
+		    else {
+			vendorCommand2(0x32, "sendFpgaData", 0,0, bitstream.chunk(i*transactionBytes, j));
+			bs += j;
+		    }
+		}
+
+ 		getFpgaState();
+		if ( ! fpgaConfigured ) {
+		    throw new BitstreamUploadException( "FPGA configuration failed: DONE pin does not go high (size=" + fpgaBytes + " ,  " + (bs - fpgaBytes) + " bytes got lost;  checksum=" 
+			+ fpgaChecksum + " , should be " + cs + ";  INIT_B_HIST=" + fpgaInitB +")" );
+		}
+		if ( enableExtraFpgaConfigurationChecks ) {
+	    	    if ( fpgaBytes!=0 && fpgaBytes!=bs )
+			System.err.println("Warning: Possible FPGA configuration data loss: " + (bs - fpgaBytes) + " bytes got lost");
+		    if ( fpgaInitB!=222 )
+			System.err.println("Warning: Possible Bitstream CRC error: INIT_B_HIST=" + fpgaInitB );
+		}
+			
+		tries = 0;
+		t0 += new Date().getTime();
+		recordFpgaFingerprint( bitstream );
+	    } 
+	    catch ( BitstreamUploadException e ) {
+		if ( tries>1 ) 
+		    System.err.println("Warning: " + e.getLocalizedMessage() +": Retrying it ...");
+		else 
+		    throw e;
+	    }
+	}
+
+    	try {
+    	    Thread.sleep( 100 );
+    	}
+	catch ( InterruptedException e) {
+        } 
+	
+	return t0;
+    } 
+
+// ******* bitstreamSource *****************************************************
+// returns a source which re-opens the given file or system resource
+    private static ZtexBitstreamPipeline.Source bitstreamSource ( final String fwFileName ) {
+	return new ZtexBitstreamPipeline.Source() {
+	    public InputStream open() throws IOException {
+		return JInputStream.getInputStream( fwFileName );
+	    }
+	};
+    }
+
+// ******* openBitstream *******************************************************
+    private static InputStream openBitstream ( ZtexBitstreamPipeline.Source source ) throws BitstreamReadException {
 	try {
-	    return configureFpgaLS( JInputStream.getInputStream( fwFileName ), force, bs );
+	    return source.open();
 	}
 	catch (IOException e) {
 	    throw new BitstreamReadException(e.getLocalizedMessage());
@@ -1357,6 +1588,17 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if EEPROM access is not supported by the firmware.
   */
     public void eepromWrite ( int addr, byte[] buf, int length ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    eepromWriteImpl( addr, buf, length );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// eepromWrite without sequence lock
+    private void eepromWriteImpl ( int addr, byte[] buf, int length ) throws UsbException, InvalidFirmwareException, CapabilityException {
 	checkCapability(CAPABILITY_EEPROM);
 	if ( (addr & 63) != 0 ) {
 	    int i = Math.min(length, 64-(addr & 63));
@@ -1543,7 +1785,13 @@ public class Ztex1v1 extends Ztex1 {
   * @see #nvDisableFirmware()
   */
     public long nvUploadFirmware ( ImgFile imgFile, boolean force ) throws IncompatibleFirmwareException, FirmwareUploadException, InvalidFirmwareException, CapabilityException {
-	return dev().fx3() ? flashUploadFirmware(imgFile, force) : eepromUploadFirmware(imgFile, force);
+	beginSequence();
+	try {
+	    return dev().fx3() ? flashUploadFirmware(imgFile, force) : eepromUploadFirmware(imgFile, force);
+	}
+	finally {
+	    endSequence();
+	}
     }
   
 /**
@@ -1644,11 +1892,17 @@ public class Ztex1v1 extends Ztex1 {
   * @throws FirmwareUploadException if an error occurred while attempting to disable the firmware.
   */
     public void nvDisableFirmware ( ) throws FirmwareUploadException, InvalidFirmwareException, CapabilityException {
-	if ( dev().fx3() ) {
-	    flashDisableFirmware();
-	} 
-	else {
-	     eepromDisableFirmware();
+	beginSequence();
+	try {
+	    if ( dev().fx3() ) {
+		flashDisableFirmware();
+	    } 
+	    else {
+		eepromDisableFirmware();
+	    }
+	}
+	finally {
+	    endSequence();
 	}
     }
 
@@ -1828,10 +2082,21 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if Flash memory access is not possible.
   * @throws IndexOutOfBoundsException If the buffer is to small.
   */
-    public void flashReadSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException  {
+    public void flashReadSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    flashReadSectorImpl( sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flashReadSector without sequence lock
+    private void flashReadSectorImpl ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
 	if ( num<1 ) return;
 
-	if ( buf.length < flashSectorSize() ) 
+	if ( buf.length < flashSectorSize()*num ) 
 	    throw new IndexOutOfBoundsException( "Buffer is to small: " + buf.length + " < " + (num*flashSectorSize()) );
 
 	checkCapability(CAPABILITY_FLASH);
@@ -1840,29 +2105,25 @@ public class Ztex1v1 extends Ztex1 {
 
 	try {
 	    if ( flashSectorSize()>2048 ) {
-		byte[] buf2 = new byte[2048];
 		int iz = (flashSectorSize-1) >> 11;
 		for (int sn=0; sn<num; sn++ ) {
 		    for (int i=0; i<iz; i++) {
 //			System.out.println("r: "+i);
-			vendorRequest2( 0x41, "Flash Read", sector, i==0 ? 0 : 256, buf2, 2048 );
-			System.arraycopy(buf2,0, buf, sn*flashSectorSize + i*2048, 2048);
+			flashReadChunk( 0x41, "Flash Read", sector+sn, i==0 ? 0 : 256, buf, sn*flashSectorSize + i*2048, 2048 );
 		    }
 		    int len = flashSectorSize-iz*2048;
-		    vendorRequest2( 0x41, "Flash Read", sector, 512, buf2,  len);
-		    System.arraycopy(buf2,0, buf, sn*flashSectorSize + iz*2048, len);
+		    flashReadChunk( 0x41, "Flash Read", sector+sn, 512, buf, sn*flashSectorSize + iz*2048, len );
 		}
 	    }
 	    else {
 		int nz = Math.max(1, 2048 / flashSectorSize);
-		byte[] buf2 = new byte[nz * flashSectorSize];
 		int bp = 0;
 		while ( num>0 ) {
 		    int n2 = Math.min(num,nz);
-		    vendorRequest2( 0x41, "Flash Read", sector, sector >> 16, buf2, flashSectorSize*n2 );
-		    System.arraycopy(buf2,0, buf, bp, flashSectorSize*n2);
+		    flashReadChunk( 0x41, "Flash Read", sector, sector >> 16, buf, bp, flashSectorSize*n2 );
 		    bp += flashSectorSize*n2;
 		    sector += n2;
+		    num -= n2;
 		}
 	    }
         }
@@ -1885,6 +2146,202 @@ public class Ztex1v1 extends Ztex1 {
 	flashReadSector ( sector, 1, buf );
     }
 
+// ******* flashReadChunk ******************************************************
+// reads len bytes of Flash data into buf at off using a pooled transfer buffer, i.e. without intermediate copy
+    private void flashReadChunk ( int cmd, String func, int value, int index, byte[] buf, int off, int len ) throws UsbException {
+	ByteBuffer b = ZtexBufferPool.shared().acquire(len);
+	try {
+	    vendorRequest2( cmd, func, value, index, b );
+	    b.rewind();
+	    b.get( buf, off, len );
+	}
+	finally {
+	    ZtexBufferPool.shared().release(b);
+	}
+    }
+
+// ******* flashRead ***********************************************************
+/**
+  * Reads an integer number of sectors from the Flash and writes them to a channel.
+  * <p>
+  * The sectors are read sequentially using asynchronous transfers: up to {@link #flashReadAhead} requests are kept in flight
+  * while the received data is written to the channel. The received transfer buffers are written to the channel directly, i.e. without copying.
+  * An event handler is started for the duration of the transfer.
+  * <p>
+  * If the sector size is larger than 2048 bytes, the firmware reads a sector by a sequence of requests. In this case only one request
+  * is queued in advance in order to preserve the order of the requests if a request has to be repeated.
+  * @param sector The number of the first sector to be read.
+  * @param num The number of sectors to be read.
+  * @param channel The channel to which the data is written.
+  * @param listener Informed after each request, or null.
+  * @return The number of bytes written to the channel.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IOException if an error occurs while writing to the channel.
+  */
+    public long flashRead ( int sector, int num, WritableByteChannel channel, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	beginSequence();
+	try {
+	    return flashReadImpl( false, sector, num, channel, listener );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// ******* flashDump ***********************************************************
+/**
+  * Reads the whole Flash memory and writes it to a channel, see {@link #flashRead(int,int,WritableByteChannel,ZtexProgressListener)}.
+  * @param channel The channel to which the data is written, e.g. a {@link java.nio.channels.FileChannel}.
+  * @param listener Informed after each request, or null.
+  * @return The number of bytes written to the channel.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IOException if an error occurs while writing to the channel.
+  */
+    public long flashDump ( WritableByteChannel channel, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	return flashRead( 0, flashSectors(), channel, listener );
+    }
+
+// ******* flash2Read **********************************************************
+/**
+  * Reads an integer number of sectors from the 2nd Flash memory and writes them to a channel,
+  * see {@link #flashRead(int,int,WritableByteChannel,ZtexProgressListener)}.
+  * @param sector The number of the first sector to be read.
+  * @param num The number of sectors to be read.
+  * @param channel The channel to which the data is written.
+  * @param listener Informed after each request, or null.
+  * @return The number of bytes written to the channel.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if 2nd Flash access is not possible.
+  * @throws IOException if an error occurs while writing to the channel.
+  */
+    public long flash2Read ( int sector, int num, WritableByteChannel channel, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	beginSequence();
+	try {
+	    return flashReadImpl( true, sector, num, channel, listener );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// ******* flash2Dump **********************************************************
+/**
+  * Reads the whole 2nd Flash memory and writes it to a channel, see {@link #flashRead(int,int,WritableByteChannel,ZtexProgressListener)}.
+  * @param channel The channel to which the data is written, e.g. a {@link java.nio.channels.FileChannel}.
+  * @param listener Informed after each request, or null.
+  * @return The number of bytes written to the channel.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if 2nd Flash access is not possible.
+  * @throws IOException if an error occurs while writing to the channel.
+  */
+    public long flash2Dump ( WritableByteChannel channel, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	return flash2Read( 0, flash2Sectors(), channel, listener );
+    }
+
+// flashRead and flash2Read without sequence lock
+    private long flashReadImpl ( boolean second, int sector, int num, WritableByteChannel channel, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	int ss;
+	if ( second ) {
+	    checkCapability(CAPABILITY_FLASH2);
+	    if ( ! flash2Enabled() )
+		throw new CapabilityException(this, "No 2nd Flash installed or");
+	    ss = flash2SectorSize();
+	}
+	else {
+	    checkCapability(CAPABILITY_FLASH);
+	    if ( ! flashEnabled() )
+		throw new CapabilityException(this, "No Flash memory installed or");
+	    ss = flashSectorSize();
+	}
+	if ( num < 1 )
+	    return 0;
+	final int cmd = second ? 0x45 : 0x41;
+	final String func = second ? "Flash 2 Read" : "Flash Read";
+	final boolean large = ss > 2048;
+	final int nz = Math.max(1, 2048 / ss);
+	final int iz = (ss-1) >> 11;
+	final int depth = large ? 1 : Math.max(1, flashReadAhead);
+	final long total = (long)num * ss;
+
+	ArrayDeque<CompletableFuture<ByteBuffer>> queue = new ArrayDeque<CompletableFuture<ByteBuffer>>();
+	ZtexEventHandler eventHandler = new ZtexEventHandler(this);
+	eventHandler.start();
+	long done = 0;
+	int s = sector;		// next sector to be requested
+	int part = 0;		// next part of sector s (large sectors only)
+	Throwable error = null;
+	boolean interrupted = false;
+	ByteBuffer pending = null;	// received data which has not been written yet
+	try {
+	    while ( true ) {
+		// keep the queue filled, i.e. the next requests are submitted before the received data is written
+		while ( queue.size() < depth && s < sector+num ) {
+		    if ( large ) {
+			int len = part<iz ? 2048 : ss-iz*2048;
+			queue.add( vendorRequest2Async( cmd, func, s, part==0 ? 0 : part<iz ? 256 : 512, len ) );
+			if ( ++part > iz ) {
+			    part = 0;
+			    s++;
+			}
+		    }
+		    else {
+			int n2 = Math.min(nz, sector+num-s);
+			queue.add( vendorRequest2Async( cmd, func, s, s >> 16, n2*ss ) );
+			s += n2;
+		    }
+		}
+
+		if ( pending != null ) {
+		    done += pending.remaining();
+		    while ( pending.hasRemaining() )
+			channel.write( pending );
+		    pending = null;
+		    if ( listener != null )
+			listener.progress( done, total );
+		}
+
+		if ( queue.isEmpty() )
+		    break;
+		try {
+		    pending = queue.poll().get();
+		}
+		catch ( ExecutionException e ) {
+		    error = e.getCause() != null ? e.getCause() : e;
+		    break;
+		}
+		catch ( InterruptedException e ) {
+		    error = e;
+		    interrupted = true;
+		    break;
+		}
+	    }
+	}
+	finally {
+	    while ( ! queue.isEmpty() ) {		// wait until all pending requests are finished
+		try {
+		    queue.poll().get();
+		}
+		catch ( InterruptedException e ) {
+		    interrupted = true;
+		}
+		catch ( ExecutionException e ) {
+		}
+	    }
+	    eventHandler.terminate();
+	    if ( interrupted )
+		Thread.currentThread().interrupt();
+	}
+	if ( error != null )
+	    throw new UsbException( dev().dev(), func, error );
+	return done;
+    }
+
 // ******* flash2ReadSector ***************************************************
 // read a integer number of sectors
 /**
@@ -1897,10 +2354,21 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if 2nd Flash access is not possible.
   * @throws IndexOutOfBoundsException If the buffer is to small.
   */
-    public void flash2ReadSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException  {
+    public void flash2ReadSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    flash2ReadSectorImpl( sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flash2ReadSector without sequence lock
+    private void flash2ReadSectorImpl ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
 	if ( num<1 ) return;
 
-	if ( buf.length < flash2SectorSize() ) 
+	if ( buf.length < flash2SectorSize()*num ) 
 	    throw new IndexOutOfBoundsException( "Buffer is to small: " + buf.length + " < " + (num*flash2SectorSize()) );
 
 	checkCapability(CAPABILITY_FLASH2);
@@ -1909,27 +2377,22 @@ public class Ztex1v1 extends Ztex1 {
 
 	try {
 	    if ( flash2SectorSize()>2048 ) {
-		byte[] buf2 = new byte[2048];
 		int iz = (flash2SectorSize-1) >> 11;
 		for (int sn=0; sn<num; sn++ ) {
 		    for (int i=0; i<iz; i++) {
 //			System.out.println("r: "+i);
-			vendorRequest2( 0x45, "Flash 2 Read", sector, i==0 ? 0 : 256, buf2, 2048 );
-			System.arraycopy(buf2,0, buf, sn*flash2SectorSize + i*2048, 2048);
+			flashReadChunk( 0x45, "Flash 2 Read", sector+sn, i==0 ? 0 : 256, buf, sn*flash2SectorSize + i*2048, 2048 );
 		    }
 		    int len = flash2SectorSize-iz*2048;
-		    vendorRequest2( 0x45, "Flash 2 Read", sector, 512, buf2,  len);
-		    System.arraycopy(buf2,0, buf, sn*flash2SectorSize + iz*2048, len);
+		    flashReadChunk( 0x45, "Flash 2 Read", sector+sn, 512, buf, sn*flash2SectorSize + iz*2048, len );
 		}
 	    }
 	    else {
 		int nz = Math.max(1, 2048 / flash2SectorSize);
-		byte[] buf2 = new byte[nz * flash2SectorSize];
 		int bp = 0;
 		while ( num>0 ) {
 		    int n2 = Math.min(num,nz);
-		    vendorRequest2( 0x45, "Flash 2 Read", sector, sector >> 16, buf2, flash2SectorSize*n2 );
-		    System.arraycopy(buf2,0, buf, bp, flash2SectorSize*n2);
+		    flashReadChunk( 0x45, "Flash 2 Read", sector, sector >> 16, buf, bp, flash2SectorSize*n2 );
 		    bp += flash2SectorSize*n2;
 		    sector += n2;
 		    num -= n2;
@@ -1969,6 +2432,17 @@ public class Ztex1v1 extends Ztex1 {
   * @throws IndexOutOfBoundsException If the buffer is to small.
   */
     public void flashWriteSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    flashWriteSectorImpl( sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flashWriteSector without sequence lock
+    private void flashWriteSectorImpl ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
 	if ( num<1 ) return;
 
 	if ( buf.length < flashSectorSize()*num ) 
@@ -1990,12 +2464,12 @@ public class Ztex1v1 extends Ztex1 {
 //			System.out.println("w: "+i);
 			System.arraycopy(buf,sn*flashSectorSize+i*2048, buf2,0, 2048);
 			controlMsgTimeout = (i < 3) ? 12000 : 3000; // 12s timeout for first writes because erase may take long at large sectors
-		        vendorCommand2( 0x42, "Flash Write", sector, (i==0) ? 0 : 256, buf2, 2048 );
+			vendorCommand2( 0x42, "Flash Write", sector+sn, (i==0) ? 0 : 256, buf2, 2048 );
 		    }
 		    
 		    int len = flashSectorSize-iz*2048;
 		    System.arraycopy(buf,sn*flashSectorSize+iz*2048, buf2,0, len);
-	    	    vendorCommand2( 0x42, "Flash Write", sector, 512, buf2, len );
+		    vendorCommand2( 0x42, "Flash Write", sector+sn, 512, buf2, len );
 	    	}
 	    }
 	    else {
@@ -2005,8 +2479,8 @@ public class Ztex1v1 extends Ztex1 {
 		while ( num>0 ) {
 		    int n2 = Math.min(num,nz);
 		    System.arraycopy(buf,bp, buf2,0, flashSectorSize*n2);
-		    vendorCommand2( 0x41, "Flash Write", sector, sector >> 16, buf2, flashSectorSize*n2 );
-		    bp += flash2SectorSize*n2;
+		    vendorCommand2( 0x42, "Flash Write", sector, sector >> 16, buf2, flashSectorSize*n2 );
+		    bp += flashSectorSize*n2;
 		    sector += n2;
 		    num -= n2;
 		}
@@ -2033,8 +2507,98 @@ public class Ztex1v1 extends Ztex1 {
 	flashWriteSector(sector,1,buf);
     }
 
-// ******* flash2WriteSector **************************************************
-// write integer number of sectors
+// ******* flashWriteChangedSectors ********************************************
+/**
+  * Writes a integer number of sectors to the Flash, whereby sectors which already contain the data are skipped.
+  * The Flash content is read back and compared sector by sector. Only differing sectors are erased and written.
+  * Since reading is much faster than erasing and writing, this saves time and Flash wear if only a small part of the data changes.
+  * @param sector The number of the first sector to be written.
+  * @param num The number of sectors to be written.
+  * @param buf The data.
+  * @return The number of sectors which have been written.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IndexOutOfBoundsException If the buffer is to small.
+  */
+    public int flashWriteChangedSectors ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    return flashWriteChangedSectorsImpl( false, sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// ******* flash2WriteChangedSectors *******************************************
+/**
+  * Writes a integer number of sectors to the 2nd Flash memory, whereby sectors which already contain the data are skipped,
+  * see {@link #flashWriteChangedSectors(int,int,byte[])}.
+  * @param sector The number of the first sector to be written.
+  * @param num The number of sectors to be written.
+  * @param buf The data.
+  * @return The number of sectors which have been written.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if 2nd Flash memory access is not possible.
+  * @throws IndexOutOfBoundsException If the buffer is to small.
+  */
+    public int flash2WriteChangedSectors ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    return flashWriteChangedSectorsImpl( true, sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flashWriteChangedSectors and flash2WriteChangedSectors without sequence lock
+    private int flashWriteChangedSectorsImpl ( boolean second, int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	if ( num<1 ) return 0;
+
+	int ss = second ? flash2SectorSize() : flashSectorSize();
+	if ( buf.length < ss*num )
+	    throw new IndexOutOfBoundsException( "Buffer to small: " + buf.length + " < " + (num*ss));
+
+	int nz = Math.max(1, 2048 / ss);
+	byte[] cmp = new byte[nz * ss];
+	int w = 0;
+	for ( int s=0; s<num; s+=nz ) {
+	    int n = Math.min(nz, num-s);
+	    if ( second ) flash2ReadSectorImpl( sector+s, n, cmp );
+	    else flashReadSectorImpl( sector+s, n, cmp );
+	    w += flashWriteChanged( second, sector+s, n, buf, s*ss, cmp );
+	}
+	return w;
+    }
+
+// writes the sectors of buf (starting at off) which differ from cmp (the current Flash content) and returns the number of written sectors
+// num must not exceed max(1, 2048/sector size) and cmp is used as write buffer
+    private int flashWriteChanged ( boolean second, int sector, int num, byte[] buf, int off, byte[] cmp ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	int ss = second ? flash2SectorSize : flashSectorSize;
+	int w = 0;
+	int i = 0;
+	while ( i < num ) {
+	    if ( Arrays.equals(buf, off+i*ss, off+(i+1)*ss, cmp, i*ss, (i+1)*ss) ) {
+		i++;
+		continue;
+	    }
+	    int k = i+1;
+	    while ( k<num && !Arrays.equals(buf, off+k*ss, off+(k+1)*ss, cmp, k*ss, (k+1)*ss) )
+		k++;
+	    System.arraycopy( buf, off+i*ss, cmp, 0, (k-i)*ss );	// sectors below k have already been compared
+	    if ( second ) flash2WriteSectorImpl( sector+i, k-i, cmp );
+	    else flashWriteSectorImpl( sector+i, k-i, cmp );
+	    w += k-i;
+	    i = k;
+	}
+	return w;
+    }
+
+// ******* flash2WriteSector **************************************************
+// write integer number of sectors
 /**
   * Writes a integer number of sectors to the 2nd Flash.
   * @param sector The sector number to be written.
@@ -2046,6 +2610,17 @@ public class Ztex1v1 extends Ztex1 {
   * @throws IndexOutOfBoundsException If the buffer is to small.
   */
     public void flash2WriteSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    flash2WriteSectorImpl( sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flash2WriteSector without sequence lock
+    private void flash2WriteSectorImpl ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
 	if ( num<1 ) return;
 
 	if ( buf.length < flash2SectorSize()*num ) 
@@ -2068,12 +2643,12 @@ public class Ztex1v1 extends Ztex1 {
 //			System.out.println("w: "+i);
 			System.arraycopy(buf,sn*flash2SectorSize+i*2048, buf2,0, 2048);
 			controlMsgTimeout = (i < 3) ? 12000 : 3000; // 12s timeout for first writes because erase may take long at large sectors
-		        vendorCommand2( 0x46, "Flash 2 Write", sector, (i==0) ? 0 : 256, buf2, 2048 );
+			vendorCommand2( 0x46, "Flash 2 Write", sector+sn, (i==0) ? 0 : 256, buf2, 2048 );
 		    }
 		    
 		    int len = flash2SectorSize-iz*2048;
 		    System.arraycopy(buf,sn*flash2SectorSize+iz*2048, buf2,0, len);
-	    	    vendorCommand2( 0x46, "Flash 2 Write", sector, 512, buf2, len );
+		    vendorCommand2( 0x46, "Flash 2 Write", sector+sn, 512, buf2, len );
 	    	}
 	    }
 	    else {
@@ -2112,6 +2687,166 @@ public class Ztex1v1 extends Ztex1 {
 	flash2WriteSector(sector,1,buf);
     }
 
+// ******* flashWriteSectorVerified ********************************************
+/**
+  * Writes a integer number of sectors to the Flash and verifies them using checksums.
+  * <p>
+  * A CRC-32C checksum of each sector is computed on the host before it is written. After writing, the sectors are read back
+  * using read-ahead (see {@link #flashRead(int,int,WritableByteChannel,ZtexProgressListener)}) and only the checksums are compared,
+  * i.e. no copy of the read back data is kept. Sectors with mismatching checksums are re-programmed and verified again
+  * up to {@link #flashVerifyRetries} times.
+  * @param sector The number of the first sector to be written.
+  * @param num The number of sectors to be written.
+  * @param buf The data.
+  * @return The numbers of the sectors which did not match after the first write and have been re-programmed. An empty array is returned if no errors occurred.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs or if sectors still mismatch after {@link #flashVerifyRetries} retries.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IndexOutOfBoundsException If the buffer is to small.
+  */
+    public int[] flashWriteSectorVerified ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    return flashWriteSectorVerifiedImpl( false, sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// ******* flash2WriteSectorVerified *******************************************
+/**
+  * Writes a integer number of sectors to the 2nd Flash memory and verifies them using checksums, see {@link #flashWriteSectorVerified(int,int,byte[])}.
+  * @param sector The number of the first sector to be written.
+  * @param num The number of sectors to be written.
+  * @param buf The data.
+  * @return The numbers of the sectors which did not match after the first write and have been re-programmed. An empty array is returned if no errors occurred.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs or if sectors still mismatch after {@link #flashVerifyRetries} retries.
+  * @throws CapabilityException if 2nd Flash memory access is not possible.
+  * @throws IndexOutOfBoundsException If the buffer is to small.
+  */
+    public int[] flash2WriteSectorVerified ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	beginSequence();
+	try {
+	    return flashWriteSectorVerifiedImpl( true, sector, num, buf );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flashWriteSectorVerified and flash2WriteSectorVerified without sequence lock
+    private int[] flashWriteSectorVerifiedImpl ( boolean second, int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	if ( num<1 ) return new int[0];
+	int ss = second ? flash2SectorSize() : flashSectorSize();
+	if ( buf.length < ss*num )
+	    throw new IndexOutOfBoundsException( "Buffer to small: " + buf.length + " < " + (num*ss));
+
+	int[] crc = new int[num];
+	CRC32C c = new CRC32C();
+	for ( int i=0; i<num; i++ ) {
+	    c.reset();
+	    c.update( buf, i*ss, ss );
+	    crc[i] = (int) c.getValue();
+	}
+	if ( second ) flash2WriteSectorImpl( sector, num, buf );
+	else flashWriteSectorImpl( sector, num, buf );
+
+	int[] bad = flashVerifyCrc( second, sector, num, crc, null );
+	int[] result = new int[bad.length];
+	for ( int i=0; i<bad.length; i++ )
+	    result[i] = sector + bad[i];
+
+	byte[] buf2 = new byte[ss];
+	for ( int r=0; r<flashVerifyRetries && bad.length>0; r++ ) {
+	    for ( int i : bad ) {
+		System.arraycopy( buf, i*ss, buf2, 0, ss );
+		if ( second ) flash2WriteSectorImpl( sector+i, 1, buf2 );
+		else flashWriteSectorImpl( sector+i, 1, buf2 );
+	    }
+	    bad = flashVerifyCrc( second, sector, num, crc, bad );
+	}
+
+	if ( bad.length>0 ) {
+	    StringBuilder sb = new StringBuilder();
+	    for ( int i : bad )
+		sb.append( sb.length()>0 ? ", " : "" ).append( sector+i );
+	    throw new UsbException( dev().dev(), (second ? "Flash 2 Write" : "Flash Write") + ": Verification failed for sector(s) " + sb );
+	}
+	return result;
+    }
+
+// reads back the sectors (all or the ones listed in idx, relative to sector) and returns the relative numbers of the sectors with mismatching checksums
+    private int[] flashVerifyCrc ( boolean second, int sector, int num, int[] crc, int[] idx ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	int ss = second ? flash2SectorSize() : flashSectorSize();
+	int[] cur = new int[num];
+	try {
+	    if ( idx == null ) {
+		flashReadImpl( second, sector, num, new CrcChannel(ss, cur, 0), null );
+	    }
+	    else {
+		for ( int i : idx )
+		    flashReadImpl( second, sector+i, 1, new CrcChannel(ss, cur, i), null );
+	    }
+	}
+	catch ( IOException e ) {
+	    throw new UsbException( dev().dev(), (second ? "Flash 2 Verify: " : "Flash Verify: ") + e.getLocalizedMessage() );
+	}
+
+	int n = 0;
+	int[] bad = new int[idx == null ? num : idx.length];
+	if ( idx == null ) {
+	    for ( int i=0; i<num; i++ )
+		if ( cur[i] != crc[i] ) bad[n++] = i;
+	}
+	else {
+	    for ( int i : idx )
+		if ( cur[i] != crc[i] ) bad[n++] = i;
+	}
+	return Arrays.copyOf( bad, n );
+    }
+
+// computes the CRC-32C checksums of the sectors written to this channel
+    private static class CrcChannel implements WritableByteChannel {
+	private final int sectorSize;
+	private final int[] crc;
+	private final CRC32C c = new CRC32C();
+	private int sector;
+	private int fill = 0;
+
+	CrcChannel ( int p_sectorSize, int[] p_crc, int first ) {
+	    sectorSize = p_sectorSize;
+	    crc = p_crc;
+	    sector = first;
+	}
+
+	public int write ( ByteBuffer src ) {
+	    int r = src.remaining();
+	    while ( src.hasRemaining() ) {
+		int l = Math.min( src.remaining(), sectorSize-fill );
+		ByteBuffer part = src.duplicate();
+		part.limit( part.position()+l );
+		c.update( part );
+		src.position( src.position()+l );
+		fill += l;
+		if ( fill == sectorSize ) {
+		    crc[sector++] = (int) c.getValue();
+		    c.reset();
+		    fill = 0;
+		}
+	    }
+	    return r;
+	}
+
+	public boolean isOpen () {
+	    return true;
+	}
+
+	public void close () {
+	}
+    }
+
 // ******* flashEnabled ********************************************************
 // returns enabled / disabled state 
 /**
@@ -2329,7 +3064,7 @@ public class Ztex1v1 extends Ztex1 {
   * where bs[i] denotes byte i of the boot sector.
   * <p>
   * The first sector of the Bitstream is sector 1.
-  * @param inputStream for reading the Bitstream.
+  * @param inputStream for reading the Bitstream. Compressed data is decompressed on the fly, see {@link JInputStream#decompress(InputStream)}.
   * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
   * @return Configuration time in ms.
   * @throws InvalidFirmwareException if interface 1 is not supported.
@@ -2339,6 +3074,39 @@ public class Ztex1v1 extends Ztex1 {
   * @see #flashResetBitstream()
   */
     public long flashUploadBitstream ( InputStream inputStream, int bs ) throws BitstreamReadException, UsbException, InvalidFirmwareException, CapabilityException {
+	return flashUploadBitstream( inputStream, bs, null );
+    }
+
+/**
+  * Uploads a Bitstream to the Flash and reports the progress.
+  * The Bitstream is written while it is read, i.e. memory usage is independent of the Bitstream size. Any existing Bitstream is
+  * invalidated first and the boot sector (or the Bitstream size in the configuration data) is updated after all data has been written.
+  * Thus, if the upload is interrupted no incomplete Bitstream is loaded by the firmware.
+  * See {@link #flashUploadBitstream(InputStream,int)} for further details.
+  * @param inputStream for reading the Bitstream. Compressed data is decompressed on the fly, see {@link JInputStream#decompress(InputStream)}.
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param listener Informed after each written group of sectors, or null.
+  * @return Upload time in ms.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @see #flashResetBitstream()
+  */
+    public long flashUploadBitstream ( InputStream inputStream, int bs, ZtexProgressListener listener ) throws BitstreamReadException, UsbException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return flashUploadBitstreamImpl( JInputStream.decompress(inputStream), bs, !dev().fx3(), -1, listener );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// streaming flashUploadBitstream without sequence lock
+//   stripHeader: remove the .bit file header (required by S6 FPGA's which do not support bitstream start word detection)
+//   total: number of bytes for the progress listener, -1 if unknown
+    private long flashUploadBitstreamImpl ( InputStream inputStream, int bs, boolean stripHeader, long total, ZtexProgressListener listener ) throws BitstreamReadException, UsbException, InvalidFirmwareException, CapabilityException {
 	int secNum = Math.max(1, 2048 / flashSectorSize());
 	final int bufferSize = secNum * flashSectorSize;
 	checkCapability(CAPABILITY_FPGA);
@@ -2346,41 +3114,90 @@ public class Ztex1v1 extends Ztex1 {
 	if ( ! flashEnabled() )
 	    throw new CapabilityException(this, "No Flash memory installed or");
 	getFpgaState();
-	
-// read the Bitstream file	
-        byte[][] buffer = new byte[32768][];
-	byte[] buf1 = new byte[flashSectorSize()];
+	long t0 = new Date().getTime();
 
-	int i,j,k,l;
+// the existing Bitstream is invalidated before the first write (in differential mode only if the data differs)
+	int startSector;
+	byte[] bootSector = null;
+	byte[] oldBootSector = null;
+	boolean bootSectorValid = false;
+	byte[] ID = new String("ZTEXBS").getBytes();
+	if ( config!=null && config.getMaxBitstreamSize()>0 ) {
+	    startSector = (config.getBitstreamStart()+flashSectorSize-1) / flashSectorSize;
+	}
+	else {
+	    bootSector = new byte[flashSectorSize];
+	    flashReadSectorImpl( 0, 1, bootSector );		// read the boot sector (only the first 16 bytes are overwritten if boot sector is valid)
+	    bootSectorValid = true;
+	    for ( int k=0; k<6; k++ )
+		bootSectorValid = bootSectorValid && (bootSector[k] == ID[k]);
+	    oldBootSector = bootSector.clone();
+	    startSector = 1;
+	}
+	flashWrittenSectors = 0;
+	boolean invalidated = false;
+	if ( ! flashDifferentialWrite ) {
+	    flashInvalidateBitstream( bootSector, bootSectorValid );
+	    invalidated = true;
+	}
+
+// read and write the Bitstream sector group by sector group
+	byte[] buffer = new byte[bufferSize];
+	byte[] cmp = flashDifferentialWrite ? new byte[bufferSize] : null;
+	int sectors = 0;	// written sectors
+	int last = 0;		// bytes in the last sector
+	long written = 0;
+	int j;
 	try {
-	    j = bufferSize;
-	    for ( i=0; i<buffer.length && j==bufferSize; i++ ) {
-		buffer[i] = new byte[bufferSize]; 
-		j = 0;	
+	    boolean first = true;
+	    do {
+		int k;
+		j = 0;
 		do {
-		    k = inputStream.read( buffer[i], j, bufferSize-j );
+		    k = inputStream.read( buffer, j, bufferSize-j );
 		    if ( k < 0 ) 
-		        k = 0;
+			k = 0;
 		    j += k;
 		    
 		    // remove header because S6 FPGA's does not support bitstream start word detection
-		    if ( i==0 && !dev().fx3() && j==bufferSize && (l=detectBitstreamStart(buffer[0]))>0 ) {
-			for (int m=0; m<bufferSize-l; m++ )
-			    buffer[0][m]=buffer[0][m+l];
+		    int l;
+		    if ( first && stripHeader && j==bufferSize && (l=detectBitstreamStart(buffer))>0 ) {
+			System.arraycopy(buffer, l, buffer, 0, bufferSize-l);
 			j-=l;
 		    } 
 		}
 		while ( j<bufferSize && k>0 );
-		
+		if ( j == 0 )
+		    break;
+
 		// detect bitstream bit order and swap bits if necessary 
-		if ( (i==0) && ( bs<0 || bs>1 ) ) {
-		    bs = detectBitstreamBitOrder ( buffer[0] );
-//		    System.out.println(bs + "   " + (fpgaFlashBitSwap != (bs==1)));
+		if ( first && ( bs<0 || bs>1 ) )
+		    bs = detectBitstreamBitOrder( buffer );
+		first = false;
+		if ( fpgaFlashBitSwap != (bs==1) ) swapBits(buffer, j);
+
+		int n = (j-1)/flashSectorSize + 1;
+		Arrays.fill(buffer, j, n*flashSectorSize, (byte) 0);
+		if ( flashDifferentialWrite ) {
+		    flashReadSectorImpl( startSector+sectors, n, cmp );
+		    if ( !invalidated && !Arrays.equals(buffer, 0, n*flashSectorSize, cmp, 0, n*flashSectorSize) ) {
+			flashInvalidateBitstream( bootSector, bootSectorValid );
+			invalidated = true;
+		    }
+		    flashWrittenSectors += flashWriteChanged( false, startSector+sectors, n, buffer, 0, cmp );
 		}
-
-		if ( fpgaFlashBitSwap != (bs==1) ) swapBits(buffer[i], j);
+		else {
+		    flashWriteSectorImpl( startSector+sectors, n, buffer );
+		    flashWrittenSectors += n;
+		}
+		sectors += n;
+		last = ((j-1) % flashSectorSize) + 1;
+		written += j;
+		if ( listener != null )
+		    listener.progress( written, total );
 	    }
-	    
+	    while ( j == bufferSize );
+
 	    try {
 		inputStream.close();
 	    }
@@ -2391,54 +3208,47 @@ public class Ztex1v1 extends Ztex1 {
 	    throw new BitstreamReadException(e.getLocalizedMessage());
 	}
 
-
-// upload the Bitstream file	
-	int startSector = 0;
-	long t0 = new Date().getTime();
-
-	if ( config!=null && config.getMaxBitstreamSize()>0 ) {
-	    config.setBitstreamSize( ((i-1)*secNum + (j-1)/flashSectorSize + 1)*flashSectorSize );
-	    startSector = (config.getBitstreamStart()+flashSectorSize-1) / flashSectorSize;
+// update the boot sector or the configuration data
+	if ( bootSector == null ) {
+	    if ( invalidated || config.getBitstreamSize() != ((sectors*flashSectorSize+4095) & ~4095) )
+		config.setBitstreamSize( sectors*flashSectorSize );
 	}
 	else {
-	    byte[] sector = new byte[flashSectorSize];
-	    byte[] ID = new String("ZTEXBS").getBytes(); 
-
-	    flashReadSector(0,sector);				// read the boot sector (only the first 16 bytes are overwritten if boot sector is valid)
-	    boolean b = true;
-	    for (k=0; k<6; k++) {
-		b = b && (sector[k] == ID[k]);
-		sector[k]=ID[k];
+	    for ( int k=0; k<6; k++ )
+		bootSector[k] = ID[k];
+	    bootSector[6] = 1;
+	    bootSector[7] = 1;
+	    bootSector[8] = (byte) (sectors & 255);
+	    bootSector[9] = (byte) ((sectors>>8) & 255);
+	    bootSector[10] = (byte) (last & 255);
+	    bootSector[11] = (byte) ((last>>8) & 255);
+	    if ( ! bootSectorValid ) {
+		for ( int k=12; k<flashSectorSize; k++ )
+		    bootSector[k]=0;
 	    }
-	    if ( ! b )
-	    sector[6] = 1;
-	    sector[7] = 1;
-	    k = (i-1)*secNum + (j-1)/flashSectorSize + 1;
-	    sector[8] = (byte) (k & 255);
-	    sector[9] = (byte) ((k>>8) & 255);
-	    k = ((j-1) % flashSectorSize) + 1;
-	    sector[10] = (byte) (k & 255);
-	    sector[11] = (byte) ((k>>8) & 255);
-	    if ( ! b ) {
-		for ( k=12; k<flashSectorSize; k++ )
-		    sector[k]=0;
+	    if ( invalidated || !Arrays.equals(bootSector, oldBootSector) ) {
+		flashWriteSectorImpl( 0, 1, bootSector );		// write the boot sector
+		flashWrittenSectors++;
 	    }
-	    System.out.print("\rWriting boot sector");
-	    flashWriteSector(0,sector);				// write the boot sector
-	    
-	    startSector = 1;
 	}
-	
-	for (k=0; k<i-1; k++) {
-	    System.out.print("\rWriting sector " + (k+1)*secNum + " of " + i*secNum);
-	    flashWriteSector( startSector+k*secNum, secNum, buffer[k] );	// write the Bitstream sectors
-	}
-	System.out.println("\rWriting sector " + i*secNum + " of " + i*secNum);
-	flashWriteSector( startSector+k*secNum, (j-1)/flashSectorSize + 1, buffer[k] );
 
 	return new Date().getTime() - t0;
     } 
 
+// invalidates the Bitstream in Flash: bootSector is the content of the boot sector or null if the configuration data is used
+    private void flashInvalidateBitstream ( byte[] bootSector, boolean bootSectorValid ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	if ( bootSector == null ) {
+	    config.setBitstreamSize( 0 );
+	}
+	else if ( bootSectorValid && (bootSector[8]!=0 || bootSector[9]!=0) ) {
+	    byte[] buf = bootSector.clone();
+	    buf[8] = 0;
+	    buf[9] = 0;
+	    flashWriteSectorImpl( 0, 1, buf );
+	    flashWrittenSectors++;
+	}
+    }
+
 /**
   * Uploads a Bitstream to the Flash.
   * This allows the firmware to load the Bitstream from Flash. Together with installation of the firmware in EEPROM
@@ -2454,14 +3264,99 @@ public class Ztex1v1 extends Ztex1 {
   * @see #flashResetBitstream()
   */
     public long flashUploadBitstream ( String fwFileName, int bs ) throws BitstreamReadException, UsbException, InvalidFirmwareException, CapabilityException {
+	return flashUploadBitstream( fwFileName, bs, null );
+    }  
+
+/**
+  * Uploads a Bitstream to the Flash and reports the progress.
+  * See {@link #flashUploadBitstream(InputStream,int,ZtexProgressListener)} for further details.
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param listener Informed after each written group of sectors, or null.
+  * @return Upload time in ms.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @see #flashResetBitstream()
+  */
+    public long flashUploadBitstream ( String fwFileName, int bs, ZtexProgressListener listener ) throws BitstreamReadException, UsbException, InvalidFirmwareException, CapabilityException {
+	if ( bitstreamCache != null )
+	    return flashUploadBitstream( bitstreamCache.get( fwFileName, bs ), listener );
 	try {
-	    return flashUploadBitstream ( JInputStream.getInputStream( fwFileName ), bs );
+	    return flashUploadBitstream( JInputStream.getInputStream( fwFileName ), bs, listener );
 	}
 	catch (IOException e) {
 	    throw new BitstreamReadException(e.getLocalizedMessage());
 	}
     }  
 
+/**
+  * Uploads a preprocessed Bitstream to the Flash.
+  * This allows the firmware to load the Bitstream from Flash. Together with installation of the firmware in EEPROM
+  * it is possible to construct fully autonomous devices.
+  * See {@link #flashUploadBitstream(InputStream,int)} for further details.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @return Configuration time in ms.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @see #flashResetBitstream()
+  */
+    public long flashUploadBitstream ( ZtexBitstream bitstream ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	return flashUploadBitstream( bitstream, null );
+    }
+
+/**
+  * Uploads a preprocessed Bitstream to the Flash and reports the progress.
+  * See {@link #flashUploadBitstream(InputStream,int,ZtexProgressListener)} for further details.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param listener Informed after each written group of sectors, or null.
+  * @return Upload time in ms.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @see #flashResetBitstream()
+  */
+    public long flashUploadBitstream ( ZtexBitstream bitstream, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return flashUploadBitstreamImpl( bitstream, listener );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flashUploadBitstream from a preprocessed Bitstream without sequence lock
+    private long flashUploadBitstreamImpl ( ZtexBitstream bitstream, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	int bufferSize = Math.max(1, 2048 / flashSectorSize()) * flashSectorSize;
+
+	// remove header because S6 FPGA's does not support bitstream start word detection
+	int offs = !dev().fx3() && bitstream.size() >= bufferSize && bitstream.start() < bufferSize ? bitstream.start() : 0;
+	final ByteBuffer data = bitstream.data();
+	data.position(offs);
+	InputStream in = new InputStream() {
+	    public int read () {
+		return data.hasRemaining() ? data.get() & 255 : -1;
+	    }
+	    public int read ( byte[] b, int off, int len ) {
+		if ( ! data.hasRemaining() )
+		    return -1;
+		len = Math.min( len, data.remaining() );
+		data.get( b, off, len );
+		return len;
+	    }
+	};
+
+	try {
+	    return flashUploadBitstreamImpl( in, 0, false, bitstream.size()-offs, listener );	// the image is stored in configuration bit order
+	}
+	catch ( BitstreamReadException e ) {	// shouldn't occur
+	    throw new UsbException( dev().dev(), "Flash Write: " + e.getLocalizedMessage() );
+	}
+    }
+
 /**
   * Uploads a Bitstream to the Flash.
   * This allows the firmware to load the Bitstream from Flash. Together with installation of the firmware in EEPROM
@@ -2490,6 +3385,17 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if Flash memory access is not possible.
   */
     public void flashResetBitstream ( ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    flashResetBitstreamImpl();
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// flashResetBitstream without sequence lock
+    private void flashResetBitstreamImpl ( ) throws UsbException, InvalidFirmwareException, CapabilityException {
 	checkCapability(CAPABILITY_FLASH);
 	if ( ! flashEnabled() )
 	    throw new CapabilityException(this, "Flash memory not installed or");
@@ -3140,7 +4046,13 @@ public class Ztex1v1 extends Ztex1 {
   * @return the upload time in ms.
 */
     public long xmegaWriteFirmware ( ImgFile imgFile ) throws UsbException, InvalidFirmwareException, CapabilityException, FirmwareUploadException { 
-	return xmegaImgWrite( true, imgFile);
+	beginSequence();
+	try {
+	    return xmegaImgWrite( true, imgFile);
+	}
+	finally {
+	    endSequence();
+	}
     }
 
 
@@ -3155,7 +4067,13 @@ public class Ztex1v1 extends Ztex1 {
   * @return the upload time in ms.
 */
     public long xmegaWriteEeprom ( ImgFile imgFile ) throws UsbException, InvalidFirmwareException, CapabilityException, FirmwareUploadException { 
-	return xmegaImgWrite( false, imgFile);
+	beginSequence();
+	try {
+	    return xmegaImgWrite( false, imgFile);
+	}
+	finally {
+	    endSequence();
+	}
     }
 
 
@@ -3198,7 +4116,7 @@ public class Ztex1v1 extends Ztex1 {
 //  returns configuration time in ms
 /**
   * Upload a Bitstream to the FPGA using high speed mode.
-  * @param inputStream for reading the Bitstream.
+  * @param inputStream for reading the Bitstream. Compressed data is decompressed on the fly, see {@link JInputStream#decompress(InputStream)}.
   * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
   * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
   * @return Configuration time in ms.
@@ -3210,6 +4128,18 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if FPGA configuration is not supported by the firmware.
   */
     public long configureFpgaHS ( InputStream inputStream, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return configureFpgaHSImpl( inputStream, force, bs );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// configureFpgaHS without sequence lock
+    private long configureFpgaHSImpl ( InputStream inputStream, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	inputStream = JInputStream.decompress( inputStream );
 	final int transactionBytes = 64*1024;
 	long t0 = 0;
 	byte[] settings = new byte[2];
@@ -3271,6 +4201,7 @@ public class Ztex1v1 extends Ztex1 {
 
 	if ( size < 64 ) 
 	    throw new BitstreamReadException("Invalid file size: " + size );
+	fpgaConfigurationPeakMemory = size + transactionBytes;
 	
 // remove NOP's from the end
 /*	System.out.println(size);
@@ -3286,6 +4217,7 @@ public class Ztex1v1 extends Ztex1 {
 	
 // upload the Bitstream file	
 	for ( int tries=3; tries>0; tries-- ) {	    
+	    forgetFpgaFingerprint();
     	    vendorCommand(0x34, "initHSFPGAConfiguration" );
 
 	    try {
@@ -3362,19 +4294,18 @@ public class Ztex1v1 extends Ztex1 {
   * @throws CapabilityException if FPGA configuration is not supported by the firmware.
   */
     public long configureFpgaHS ( String fwFileName, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
-	try {
-	    return configureFpgaHS( JInputStream.getInputStream( fwFileName ), force, bs );
-	}
-	catch (IOException e) {
-	    throw new BitstreamReadException(e.getLocalizedMessage());
-	}
+	if ( bitstreamCache != null )
+	    return configureFpgaHS( bitstreamCache.get( fwFileName, bs ), force );
+	return configureFpgaHS( bitstreamSource( fwFileName ), force, bs );
     }
 
-// ******* configureFpga *****************************************************
-//  returns configuration time in ms
 /**
-  * Upload a Bitstream to the FPGA using high speed mode (if available) or low speed mode.
-  * @param inputStream for reading the Bitstream.
+  * Upload a Bitstream to the FPGA using high speed mode without reading the whole Bitstream into memory.
+  * The Bitstream is read, bit swapped and sent in a pipeline of {@link #fpgaConfigurationBuffers} reusable buffers, see {@link ZtexBitstreamPipeline}.
+  * The source is re-opened if the upload has to be retried.
+  * The peak memory usage is stored in {@link #fpgaConfigurationPeakMemory}.
+  * This mode is used by {@link #configureFpga(String,boolean,int)} if {@link #bitstreamCache} is null.
+  * @param source The source of the Bitstream.
   * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
   * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
   * @return Configuration time in ms.
@@ -3384,44 +4315,403 @@ public class Ztex1v1 extends Ztex1 {
   * @throws InvalidFirmwareException if interface 1 is not supported.
   * @throws UsbException if a communication error occurs.
   * @throws CapabilityException if FPGA configuration is not supported by the firmware.
-  * @throws IOException if mark/reset is not supported
   */
-    public long configureFpga ( InputStream inputStream, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException, IOException {
+    public long configureFpgaHS ( ZtexBitstreamPipeline.Source source, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
 	try {
-	    inputStream.mark(64*1024*1024);
-	    return configureFpgaHS( inputStream, force, bs );
-	}
-	catch ( CapabilityException e ) {
-	    return configureFpgaLS( inputStream, force, bs );
-	}
-	catch ( UsbException e ) {
-	    System.err.println("Warning: High speed FPGA configuration failed, trying low speed mode:" + e.getLocalizedMessage() +": Trying low speed mode");
-	    inputStream.reset();
-	    return configureFpgaLS( inputStream, force, bs );
+	    return configureFpgaHSImpl( source, force, bs );
 	}
-	catch ( BitstreamUploadException e ) {
-	    System.err.println("Warning: High speed FPGA configuration failed, trying low speed mode:" + e.getLocalizedMessage() +": Trying low speed mode");
-	    inputStream.reset();
-	    return configureFpgaLS( inputStream, force, bs );
+	finally {
+	    endSequence();
 	}
     }
 
-/**
-  * Upload a Bitstream to the FPGA using high speed mode (if available) or low speed mode.
-  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
-  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
-  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
-  * @return Configuration time in ms.
-  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
-  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
-  * @throws AlreadyConfiguredException if the FPGA is already configured.
-  * @throws InvalidFirmwareException if interface 1 is not supported.
-  * @throws UsbException if a communication error occurs.
-  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
-  */
-    public long configureFpga ( String fwFileName, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+// streaming configureFpgaHS without sequence lock
+    private long configureFpgaHSImpl ( ZtexBitstreamPipeline.Source source, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	final int transactionBytes = 64*1024;
+	long t0 = 0;
+	byte[] settings = getFpgaHSSettings( force );
+	boolean releaseIF;
+
+	releaseIF = ! getInterfaceClaimed(settings[1] & 255);
+
+// claim interface if required
+	if ( releaseIF ) claimInterface( settings[1] & 255 );
+	
+// upload the Bitstream file	
+	fpgaConfigurationPeakMemory = 0;
 	try {
-	    return configureFpgaHS( fwFileName, force, bs );
+	    for ( int tries=3; tries>0; tries-- ) {
+		ZtexBitstreamPipeline pipe = new ZtexBitstreamPipeline( openBitstream(source), transactionBytes, fpgaConfigurationBuffers, 512, false, bs );
+		try {
+		    ByteBuffer buf = pipe.next();	// reading is overlapped with the initialization
+		    if ( buf == null || ( pipe.finished() && pipe.size() < 64 ) )
+			throw new BitstreamReadException("Invalid file size: " + pipe.size() );
+		    bs = pipe.bitOrder();
+
+		    forgetFpgaFingerprint();
+		    vendorCommand(0x34, "initHSFPGAConfiguration" );
+
+		    t0 = -new Date().getTime();
+		    long size = 0;
+		    for ( ; buf != null; buf = pipe.next() ) {
+			int j = buf.capacity();
+			int l = bulkWrite(settings[0] & 255, buf, 1000);
+			if ( l < 0 ) l = bulkWrite(settings[0] & 255, buf, 1000);   // one retry
+			if ( l < 0 )
+			    throw new UsbException("Error sending Bitstream: " + l + ": " + LibUsb.strError(l));
+			else if ( l != j )
+			    throw new UsbException("Error sending Bitstream: Sent " + l +" of " + j + " bytes");
+			size += j;
+		    }
+
+		    finishFpgaHS( size, transactionBytes );
+		    t0 += new Date().getTime();
+		    tries = 0;
+		} 
+		catch ( BitstreamUploadException e ) {
+		    if (tries == 1)
+			throw e;
+		    else if ( tries<3 || enableExtraFpgaConfigurationChecks )
+			System.err.println("Warning: " + e.getLocalizedMessage() +": Retrying it ...");
+		}
+		finally {
+		    pipe.close();
+		    fpgaConfigurationPeakMemory = Math.max( fpgaConfigurationPeakMemory, pipe.peakMemory() );
+		}
+	    }
+	}
+	finally {
+	    if ( releaseIF ) releaseInterface( settings[1] & 255 );
+	}
+
+    	try {
+    	    Thread.sleep( 25 );
+    	}
+	catch ( InterruptedException e) {
+        } 
+
+	return t0;
+    } 
+
+/**
+  * Upload a preprocessed Bitstream to the FPGA using high speed mode.
+  * Except of the first transaction (which contains 512 dummy bytes) the data is sent directly from the image, i.e. no further processing is required.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @return Configuration time in ms.
+  * @throws BitstreamReadException if the Bitstream is invalid.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpgaHS ( ZtexBitstream bitstream, boolean force ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    return configureFpgaHSImpl( bitstream, force );
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+// configureFpgaHS from a preprocessed Bitstream without sequence lock
+    private long configureFpgaHSImpl ( final ZtexBitstream bitstream, boolean force ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	final int transactionBytes = 64*1024;
+	final byte[] settings = getFpgaHSSettings( force );
+	boolean releaseIF;
+	final int size = bitstream.size() + 512;
+	ZtexConfigurationTimes times = new ZtexConfigurationTimes();
+
+	if ( bitstream.size() < 64 )
+	    throw new BitstreamReadException("Invalid file size: " + bitstream.size() );
+
+	releaseIF = ! getInterfaceClaimed(settings[1] & 255);
+
+// first transaction: 512 bytes dummy data + start of the Bitstream
+	final ByteBuffer first = ZtexBufferPool.shared().acquire( Math.min(transactionBytes, size) );
+	try {
+	    for (int l=0; l<512; l++ ) first.put( (byte)0 );
+	    first.put( bitstream.chunk(0, first.capacity()-512) );
+	    first.clear();
+	    fpgaConfigurationPeakMemory = first.capacity();
+
+// claim interface if required
+	    if ( releaseIF ) claimInterface( settings[1] & 255 );
+	
+	    uploadFpgaHS( bitstream, transactionBytes, times, new FpgaHSTransfer() {
+		public void transfer () throws UsbException {
+		    for ( int i=0; i*transactionBytes < size; i++ ) {
+			int j = Math.min( transactionBytes, size-i*transactionBytes );
+			ByteBuffer buf = i==0 ? first : bitstream.chunk(i*transactionBytes-512, j);
+			int l = bulkWrite(settings[0] & 255, buf, 1000);
+			if ( l < 0 ) l = bulkWrite(settings[0] & 255, buf, 1000);   // one retry
+			if ( l < 0 )
+			    throw new UsbException("Error sending Bitstream: " + l + ": " + LibUsb.strError(l));
+			else if ( l != j )
+			    throw new UsbException("Error sending Bitstream: Sent " + l +" of " + j + " bytes");
+		    }
+		}
+	    } );
+	}
+	finally {
+	    ZtexBufferPool.shared().release(first);
+	    if ( releaseIF ) releaseInterface( settings[1] & 255 );
+	}
+
+    	try {
+    	    Thread.sleep( 25 );
+    	}
+	catch ( InterruptedException e) {
+        } 
+
+	return (times.transferTime + times.finishTime) / 1000000;
+    } 
+
+// ******* getFpgaHSSettings ***************************************************
+// checks the preconditions of high speed FPGA configuration and returns the settings (endpoint and interface)
+    private byte[] getFpgaHSSettings ( boolean force ) throws UsbException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	byte[] settings = new byte[2];
+	checkCapability(CAPABILITY_HS_FPGA);
+	vendorRequest2(0x33, "getHSFpgaSettings", settings, 2);
+
+	if ( !force && getFpgaConfiguration() )
+	    throw new AlreadyConfiguredException(); 
+	return settings;
+    }
+
+// ******* finishFpgaHS ********************************************************
+// finishes high speed FPGA configuration after size bytes have been sent and checks the result
+    private void finishFpgaHS ( long size, int transactionBytes ) throws UsbException, BitstreamUploadException, InvalidFirmwareException, CapabilityException {
+	try {
+	    Thread.sleep( (size % transactionBytes) / 1000 + 10 );
+	}
+	catch ( InterruptedException e) {
+	}
+
+	vendorCommand(0x35, "finishHSFPGAConfiguration" );
+
+	getFpgaState();
+	if ( ! fpgaConfigured ) {
+	    throw new BitstreamUploadException( "FPGA configuration failed: DONE pin does not go high, possible USB transfer errors (INIT_B_HIST=" + fpgaInitB + (fpgaBytes==0 ? "" : "; " + (size - fpgaBytes) + " bytes got lost") + ")" );
+	}
+
+	if ( enableExtraFpgaConfigurationChecks ) {
+	    if ( fpgaBytes!=0 && fpgaBytes!=size )
+		System.err.println("Warning: Possible FPGA configuration data loss: " + (size - fpgaBytes) + " bytes got lost");
+	    if ( fpgaInitB!=222 )
+		System.err.println("Warning: Possible Bitstream CRC error: INIT_B_HIST=" + fpgaInitB );
+	}
+    }
+
+// ******* uploadFpgaHS ********************************************************
+// the transfer phase of high speed FPGA configuration of a preprocessed Bitstream, i.e. sending of the dummy bytes and the image
+    private interface FpgaHSTransfer {
+	void transfer () throws UsbException;
+    }
+
+// uploads a preprocessed Bitstream using up to 3 tries of initialization, transfer phase and finish, the durations are added to times
+    private void uploadFpgaHS ( ZtexBitstream bitstream, int transactionBytes, ZtexConfigurationTimes times, FpgaHSTransfer transfer ) throws UsbException, BitstreamUploadException, InvalidFirmwareException, CapabilityException {
+	final int size = bitstream.size() + 512;
+	for ( int tries=3; tries>0; tries-- ) {
+	    times.tries++;
+	    long t0 = System.nanoTime();
+	    forgetFpgaFingerprint();
+	    vendorCommand(0x34, "initHSFPGAConfiguration" );
+
+	    try {
+		transfer.transfer();
+		long t1 = System.nanoTime();
+		times.transferTime += t1 - t0;
+		try {
+		    finishFpgaHS( size, transactionBytes );
+		}
+		finally {
+		    times.finishTime += System.nanoTime() - t1;
+		}
+		tries = 0;
+		recordFpgaFingerprint( bitstream );
+	    } 
+	    catch ( BitstreamUploadException e ) {
+		if (tries == 1)
+		    throw e;
+		else if ( tries<3 || enableExtraFpgaConfigurationChecks )
+		    System.err.println("Warning: " + e.getLocalizedMessage() +": Retrying it ...");
+	    }
+	}
+    }
+
+// ******* configureFpgaHSPipelined ********************************************
+/**
+  * Upload a preprocessed Bitstream to the FPGA using high speed mode and asynchronous transfers.
+  * Up to {@link #fpgaConfigurationBuffers} bulk transfers are kept in flight on the high speed configuration endpoint using a {@link ZtexUsbWriter}.
+  * The transactions are identical to {@link #configureFpgaHS(ZtexBitstream,boolean)}.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @return The durations of transfer and finish phase.
+  * @throws BitstreamReadException if the Bitstream is invalid.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public ZtexConfigurationTimes configureFpgaHSPipelined ( ZtexBitstream bitstream, boolean force ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	ZtexConfigurationTimes times = new ZtexConfigurationTimes();
+	beginSequence();
+	try {
+	    configureFpgaHSPipelinedImpl( bitstream, force, times );
+	}
+	finally {
+	    endSequence();
+	}
+	return times;
+    }
+
+/**
+  * Upload a Bitstream to the FPGA using high speed mode and asynchronous transfers.
+  * The Bitstream is preprocessed using {@link #bitstreamCache} (or without caching if it is null).
+  * See {@link #configureFpgaHSPipelined(ZtexBitstream,boolean)} for further details.
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return The durations of all phases.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public ZtexConfigurationTimes configureFpgaHSPipelined ( String fwFileName, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	ZtexConfigurationTimes times = new ZtexConfigurationTimes();
+	ZtexBitstream bitstream;
+	if ( bitstreamCache != null ) {
+	    bitstream = bitstreamCache.get( fwFileName, bs, times );
+	}
+	else {
+	    try {
+		bitstream = ZtexBitstream.read( JInputStream.getInputStream( fwFileName ), bs, times );
+	    }
+	    catch (IOException e) {
+		throw new BitstreamReadException(e.getLocalizedMessage());
+	    }
+	}
+	beginSequence();
+	try {
+	    configureFpgaHSPipelinedImpl( bitstream, force, times );
+	}
+	finally {
+	    endSequence();
+	}
+	return times;
+    }
+
+// configureFpgaHSPipelined without sequence lock
+    private void configureFpgaHSPipelinedImpl ( final ZtexBitstream bitstream, boolean force, ZtexConfigurationTimes times ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	final int transactionBytes = 64*1024;
+	byte[] settings = getFpgaHSSettings( force );
+	boolean releaseIF;
+	final int size = bitstream.size() + 512;
+
+	if ( bitstream.size() < 64 )
+	    throw new BitstreamReadException("Invalid file size: " + bitstream.size() );
+
+	releaseIF = ! getInterfaceClaimed(settings[1] & 255);
+	final ByteBuffer dummy = ByteBuffer.allocateDirect(512);	// 512 bytes dummy data
+	ZtexEventHandler eventHandler = new ZtexEventHandler(this);
+	final ZtexUsbWriter writer = new ZtexUsbWriter(this, settings[0] & 255, false, Math.max(2, fpgaConfigurationBuffers), transactionBytes);
+	fpgaConfigurationPeakMemory = (long)writer.bufNum() * transactionBytes;
+
+// claim interface if required
+	if ( releaseIF ) claimInterface( settings[1] & 255 );
+	eventHandler.start();
+	
+	try {
+	    uploadFpgaHS( bitstream, transactionBytes, times, new FpgaHSTransfer() {
+		public void transfer () throws UsbException {
+		    // reset the queue of the writer, i.e. no transfers or completions of a previous try are left over
+		    if ( ! writer.cancelWait(1000) )
+			throw new UsbException("Error sending Bitstream: Unable to cancel pending transfers");
+		    long b0 = writer.byteCount();
+		    dummy.clear();
+		    writer.transmit( new ByteBuffer[] { dummy, bitstream.data() }, 1000, TimeUnit.MILLISECONDS );
+		    if ( ! writer.wait(2000) ) {
+			writer.cancelWait(1000);
+			throw new UsbException("Error sending Bitstream: Timeout");
+		    }
+		    if ( writer.byteCount() - b0 != size )
+			throw new UsbException("Error sending Bitstream: Sent " + (writer.byteCount() - b0) +" of " + size + " bytes");
+		}
+	    } );
+	}
+	finally {
+	    writer.cancelWait(1000);
+	    eventHandler.terminate();
+	    if ( releaseIF ) releaseInterface( settings[1] & 255 );
+	}
+
+    	try {
+    	    Thread.sleep( 25 );
+    	}
+	catch ( InterruptedException e) {
+        } 
+    } 
+
+// ******* configureFpga *****************************************************
+//  returns configuration time in ms
+/**
+  * Upload a Bitstream to the FPGA using high speed mode (if available) or low speed mode.
+  * @param inputStream for reading the Bitstream. Compressed data is decompressed on the fly, see {@link JInputStream#decompress(InputStream)}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return Configuration time in ms.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  * @throws IOException if mark/reset is not supported
+  */
+    public long configureFpga ( InputStream inputStream, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException, IOException {
+	try {
+	    inputStream.mark(64*1024*1024);
+	    return configureFpgaHS( inputStream, force, bs );
+	}
+	catch ( CapabilityException e ) {
+	    return configureFpgaLS( inputStream, force, bs );
+	}
+	catch ( UsbException e ) {
+	    System.err.println("Warning: High speed FPGA configuration failed, trying low speed mode:" + e.getLocalizedMessage() +": Trying low speed mode");
+	    inputStream.reset();
+	    return configureFpgaLS( inputStream, force, bs );
+	}
+	catch ( BitstreamUploadException e ) {
+	    System.err.println("Warning: High speed FPGA configuration failed, trying low speed mode:" + e.getLocalizedMessage() +": Trying low speed mode");
+	    inputStream.reset();
+	    return configureFpgaLS( inputStream, force, bs );
+	}
+    }
+
+/**
+  * Upload a Bitstream to the FPGA using high speed mode (if available) or low speed mode.
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return Configuration time in ms.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpga ( String fwFileName, boolean force, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	try {
+	    return configureFpgaHS( fwFileName, force, bs );
 	}
 	catch ( CapabilityException e ) {
 	    return configureFpgaLS( fwFileName, force, bs );
@@ -3452,6 +4742,330 @@ public class Ztex1v1 extends Ztex1 {
 	return configureFpga(fwFileName, force, -1);
     }
 
+/**
+  * Upload a preprocessed Bitstream to the FPGA using high speed mode (if available) or low speed mode.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is thrown).
+  * @return Configuration time in ms.
+  * @throws BitstreamReadException if the Bitstream is invalid.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws AlreadyConfiguredException if the FPGA is already configured.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpga ( ZtexBitstream bitstream, boolean force ) throws BitstreamReadException, UsbException, BitstreamUploadException, AlreadyConfiguredException, InvalidFirmwareException, CapabilityException {
+	try {
+	    return configureFpgaHS( bitstream, force );
+	}
+	catch ( CapabilityException e ) {
+	    return configureFpgaLS( bitstream, force );
+	}
+	catch ( UsbException e ) {
+	    System.err.println("Warning: High speed FPGA configuration failed, trying low speed mode:" + e.getLocalizedMessage() +": Trying low speed mode");
+	    return configureFpgaLS( bitstream, force );
+	}
+	catch ( BitstreamUploadException e ) {
+	    System.err.println("Warning: High speed FPGA configuration failed, trying low speed mode:" + e.getLocalizedMessage() +": Trying low speed mode");
+	    return configureFpgaLS( bitstream, force );
+	}
+    }
+
+// ******* fpgaMatches *********************************************************
+/**
+  * Checks whether the selected FPGA is configured with the given Bitstream.
+  * <p>
+  * This is achieved using a fingerprint which is recorded by {@link #configureFpgaHS(ZtexBitstream,boolean)} (and the other methods
+  * which upload {@link ZtexBitstream}'s). It consists of the SHA-256 hash of the Bitstream and the size, checksum and INIT_B history
+  * reported by the firmware after the configuration.
+  * <p>
+  * Fingerprints are stored in files in order to be valid across processes (e.g. subsequent invocations of FWLoader). The directory is
+  * given by the system property ztex.fpgaFingerprints. Default is ztex-fpga-&lt;user name&gt; in the temporary directory.
+  * The files are identified by serial number, bus number, device address, port number and FPGA number. Since the host assigns a new
+  * device address on every enumeration, fingerprints become invalid if the device is reconnected, power cycled or if the firmware is
+  * reloaded. Methods which reset or configure the FPGA remove the fingerprint before the FPGA is modified.
+  * <p>
+  * If no fingerprint has been recorded (e.g. if the FPGA has been configured from Flash or by software which does not record fingerprints)
+  * the state of the FPGA is unknown and false is returned, i.e. the FPGA is reconfigured by {@link #configureFpgaIfDifferent(ZtexBitstream)}.
+  * Size and checksum reported by the firmware are not sufficient to identify a Bitstream because the checksum is only one byte wide
+  * (and is only computed in low speed mode).
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @return true if the FPGA is configured with the given Bitstream.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public boolean fpgaMatches ( ZtexBitstream bitstream ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	getFpgaState();
+	if ( ! fpgaConfigured )
+	    return false;
+	numberOfFpgas();
+	File f = fpgaFingerprintFile( selectedFpga );
+	try {
+	    return f.isFile() && new String( java.nio.file.Files.readAllBytes(f.toPath()), "US-ASCII" ).equals( fpgaFingerprint(bitstream) );
+	}
+	catch ( IOException e ) {
+	    System.err.println("Warning: Unable to read FPGA fingerprint " + f + ": " + e.getLocalizedMessage() );
+	    return false;
+	}
+    }
+
+// ******* fpgaFingerprintFile *************************************************
+// returns the file which stores the fingerprint of a FPGA, see fpgaMatches
+    private File fpgaFingerprintFile ( int fpga ) {
+	String d = System.getProperty("ztex.fpgaFingerprints");
+	File dir = d==null || d.length()==0 ? new File( System.getProperty("java.io.tmpdir"), "ztex-fpga-" + System.getProperty("user.name") ) : new File(d);
+	String n = "sn=" + dev().snString() + " " + dev().name() + " fpga=" + fpga;
+	return new File( dir, n.replaceAll("[^A-Za-z0-9=.-]", "_") );
+    }
+
+// ******* fpgaFingerprint *****************************************************
+// returns the fingerprint of a Bitstream and the current FPGA state (requires getFpgaState)
+    private String fpgaFingerprint ( ZtexBitstream bitstream ) {
+	return bitstream.key() + " size=" + fpgaBytes + " checksum=" + fpgaChecksum + " INIT_B_HIST=" + fpgaInitB;
+    }
+
+// ******* recordFpgaFingerprint ***********************************************
+// records the fingerprint after a successful configuration (requires getFpgaState)
+    private void recordFpgaFingerprint ( ZtexBitstream bitstream ) throws UsbException, InvalidFirmwareException {
+	numberOfFpgas();
+	File f = fpgaFingerprintFile( selectedFpga );
+	File dir = f.getParentFile();
+	try {
+	    if ( ! dir.isDirectory() && ! dir.mkdirs() )
+		throw new IOException("Unable to create directory " + dir);
+	    File t = File.createTempFile("fingerprint", ".tmp", dir);
+	    try {
+		java.nio.file.Files.write( t.toPath(), fpgaFingerprint(bitstream).getBytes("US-ASCII") );
+		java.nio.file.Files.move( t.toPath(), f.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE );
+	    }
+	    finally {
+		t.delete();
+	    }
+	}
+	catch ( IOException e ) {
+	    System.err.println("Warning: Unable to record FPGA fingerprint " + f + ": " + e.getLocalizedMessage() );
+	}
+    }
+
+// ******* forgetFpgaFingerprint ***********************************************
+// removes the fingerprint of the selected FPGA, called before the FPGA is reset
+    private void forgetFpgaFingerprint () throws UsbException, InvalidFirmwareException {
+	numberOfFpgas();
+	forgetFpgaFingerprint( selectedFpga );
+    }
+
+// removes the fingerprint of a FPGA
+    private void forgetFpgaFingerprint ( int fpga ) {
+	File f = fpgaFingerprintFile( fpga );
+	if ( ! f.delete() && f.exists() )
+	    System.err.println("Warning: Unable to remove FPGA fingerprint " + f );
+    }
+
+// ******* configureFpgaIfDifferent ********************************************
+/**
+  * Upload a preprocessed Bitstream to the FPGA using high speed mode (if available) or low speed mode if the FPGA is not
+  * already configured with that Bitstream, see {@link #fpgaMatches(ZtexBitstream)}.
+  * In the latter case only a single control request is required.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @return Configuration time in ms or -1 if the FPGA is already configured with the given Bitstream.
+  * @throws BitstreamReadException if the Bitstream is invalid.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpgaIfDifferent ( ZtexBitstream bitstream ) throws BitstreamReadException, UsbException, BitstreamUploadException, InvalidFirmwareException, CapabilityException {
+	beginSequence();
+	try {
+	    if ( fpgaMatches( bitstream ) )
+		return -1;
+	    return configureFpga( bitstream, true );
+	}
+	catch ( AlreadyConfiguredException e ) {	// shouldn't occur
+	    return -1;
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+/**
+  * Upload a Bitstream to the FPGA using high speed mode (if available) or low speed mode if the FPGA is not
+  * already configured with that Bitstream, see {@link #fpgaMatches(ZtexBitstream)}.
+  * The Bitstream is preprocessed using {@link #bitstreamCache} (or without caching if it is null).
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return Configuration time in ms or -1 if the FPGA is already configured with the given Bitstream.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws BitstreamUploadException if an error occurred while attempting to upload the Bitstream.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  */
+    public long configureFpgaIfDifferent ( String fwFileName, int bs ) throws BitstreamReadException, UsbException, BitstreamUploadException, InvalidFirmwareException, CapabilityException {
+	if ( bitstreamCache != null )
+	    return configureFpgaIfDifferent( bitstreamCache.get( fwFileName, bs ) );
+	try {
+	    return configureFpgaIfDifferent( ZtexBitstream.read( JInputStream.getInputStream( fwFileName ), bs ) );
+	}
+	catch (IOException e) {
+	    throw new BitstreamReadException(e.getLocalizedMessage());
+	}
+    }
+
+// ******* configureFpgas ******************************************************
+/**
+  * Upload a preprocessed Bitstream to several FPGA's of a multi-FPGA module.
+  * <p>
+  * The same image is uploaded to all FPGA's, i.e. the Bitstream is read and preprocessed only once. If the firmware supports
+  * parallel configuration and all FPGA's of the module have to be configured, the Bitstream is transferred only once and
+  * configures all FPGA's simultaneously. Otherwise the FPGA's are configured one after another, whereby the configuration
+  * mode (high speed or low speed) is determined only once.
+  * <p>
+  * Failures of individual FPGA's do not affect the other ones. The previously selected FPGA is selected again afterwards.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param fpgas The FPGA numbers or null for all FPGA's of the module, see {@link #numberOfFpgas()}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is reported).
+  * @param ifDifferent If set to true, FPGA's which are already configured with the Bitstream are skipped and the other ones
+  *        are overwritten, see {@link #configureFpgaIfDifferent(ZtexBitstream)}.
+  * @return The results in the order of the FPGA numbers.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  * @throws IndexOutOfBoundsException If a FPGA number is not in range.
+  */
+    public ZtexFpgaResult[] configureFpgas ( ZtexBitstream bitstream, int[] fpgas, boolean force, boolean ifDifferent ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	checkCapability(CAPABILITY_FPGA);
+	beginSequence();
+	try {
+	    int n = numberOfFpgas();
+	    if ( fpgas == null ) {
+		fpgas = new int[n];
+		for ( int i=0; i<n; i++ )
+		    fpgas[i] = i;
+	    }
+	    for ( int i=0; i<fpgas.length; i++ )
+		if ( fpgas[i]<0 || fpgas[i]>=n )
+		    throw new IndexOutOfBoundsException( "configureFpgas: Invalid FPGA number: " + fpgas[i] );
+	    force = force || ifDifferent;
+	    int prevFpga = selectedFpga;
+	    ZtexFpgaResult[] results = new ZtexFpgaResult[fpgas.length];
+
+	    // determine the FPGA's to be configured
+	    boolean[] todo = new boolean[fpgas.length];
+	    boolean[] all = new boolean[n];
+	    int allCnt = 0;
+	    for ( int i=0; i<fpgas.length; i++ ) {
+		try {
+		    if ( ifDifferent ) {
+			selectFpgaIfDifferent( fpgas[i] );
+			if ( fpgaMatches(bitstream) ) {
+			    results[i] = new ZtexFpgaResult( fpgas[i], -1, false, null );
+			    continue;
+			}
+		    }
+		    todo[i] = true;
+		    if ( ! all[fpgas[i]] ) allCnt++;
+		    all[fpgas[i]] = true;
+		}
+		catch ( UsbException e ) {
+		    results[i] = new ZtexFpgaResult( fpgas[i], -1, false, e );
+		}
+	    }
+
+	    // parallel configuration: one transfer for all FPGA's
+	    if ( parallelConfigSupport && force && n>1 && allCnt==n ) {
+		try {
+		    for ( int k=0; k<n; k++ )
+			forgetFpgaFingerprint( k );
+		    vendorCommand( 0x51, "selectFPGA", 0, 1 );	// selects all FPGA's for configuration
+		    long t = configureFpga( bitstream, true );
+		    for ( int i=0; i<fpgas.length; i++ ) {
+			if ( ! todo[i] ) continue;
+			selectFpga( fpgas[i] );				// also restores the single FPGA selection
+			getFpgaState();
+			if ( fpgaConfigured ) {
+			    recordFpgaFingerprint( bitstream );
+			    results[i] = new ZtexFpgaResult( fpgas[i], t, true, null );
+			    todo[i] = false;
+			}
+		    }
+		}
+		catch ( Exception e ) {
+		    System.err.println("Warning: Parallel FPGA configuration failed: " + e.getLocalizedMessage() + ": Configuring FPGA's sequentially");
+		    selectedFpga = -1;	// forces selectFpga in order to restore the single FPGA selection
+		}
+	    }
+
+	    // sequential configuration
+	    boolean hs = true;
+	    for ( int i=0; i<fpgas.length; i++ ) {
+		if ( ! todo[i] ) continue;
+		long t = -1;
+		Exception err = null;
+		try {
+		    selectFpgaIfDifferent( fpgas[i] );
+		    if ( hs ) {
+			try {
+			    t = configureFpgaHS( bitstream, force );
+			}
+			catch ( CapabilityException e ) {
+			    hs = false;
+			}
+			catch ( UsbException e ) {
+			    System.err.println("Warning: High speed configuration of FPGA " + fpgas[i] + " failed: " + e.getLocalizedMessage() +": Trying low speed mode");
+			}
+			catch ( BitstreamUploadException e ) {
+			    System.err.println("Warning: High speed configuration of FPGA " + fpgas[i] + " failed: " + e.getLocalizedMessage() +": Trying low speed mode");
+			}
+		    }
+		    if ( t < 0 )
+			t = configureFpgaLS( bitstream, force );
+		}
+		catch ( Exception e ) {
+		    t = -1;
+		    err = e;
+		}
+		results[i] = new ZtexFpgaResult( fpgas[i], t, false, err );
+	    }
+
+	    if ( prevFpga >= 0 )
+		selectFpgaIfDifferent( prevFpga );
+	    return results;
+	}
+	finally {
+	    endSequence();
+	}
+    }
+
+/**
+  * Upload a Bitstream to several FPGA's of a multi-FPGA module, see {@link #configureFpgas(ZtexBitstream,int[],boolean,boolean)}.
+  * The Bitstream is preprocessed once using {@link #bitstreamCache} (or without caching if it is null).
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param fpgas The FPGA numbers or null for all FPGA's of the module, see {@link #numberOfFpgas()}.
+  * @param force If set to true existing configurations will be overwritten. (By default an {@link AlreadyConfiguredException} is reported).
+  * @param ifDifferent If set to true, FPGA's which are already configured with the Bitstream are skipped and the other ones
+  *        are overwritten, see {@link #configureFpgaIfDifferent(ZtexBitstream)}.
+  * @return The results in the order of the FPGA numbers.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if FPGA configuration is not supported by the firmware.
+  * @throws IndexOutOfBoundsException If a FPGA number is not in range.
+  */
+    public ZtexFpgaResult[] configureFpgas ( String fwFileName, int bs, int[] fpgas, boolean force, boolean ifDifferent ) throws BitstreamReadException, UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	if ( bitstreamCache != null )
+	    return configureFpgas( bitstreamCache.get( fwFileName, bs ), fpgas, force, ifDifferent );
+	try {
+	    return configureFpgas( ZtexBitstream.read( JInputStream.getInputStream( fwFileName ), bs ), fpgas, force, ifDifferent );
+	}
+	catch (IOException e) {
+	    throw new BitstreamReadException(e.getLocalizedMessage());
+	}
+    }
+
 // ******* macEepromWrite ******************************************************
 /**
   * Writes data to the MAC EEPROM.
@@ -3576,6 +5190,13 @@ public class Ztex1v1 extends Ztex1 {
 	selectedFpga = num;
     }
 
+// ******* selectFpgaIfDifferent ***********************************************
+// selects a FPGA if it is not already selected (requires numberOfFpgas)
+    private void selectFpgaIfDifferent ( int num ) throws UsbException, InvalidFirmwareException {
+	if ( num != selectedFpga )
+	    selectFpga( num );
+    }
+
 // ******* TempSensorRead ******************************************************
 /**
   * Read temperature sensor data.
@@ -0,0 +1,295 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+/**
+  * Adaptive selection of the number of in-flight transfers and of the transfer size for {@link ZtexUsbReader} and {@link ZtexUsbWriter}.
+  * <p>
+  * The tuner is fed with the completed transfers. It measures throughput and completion latency in intervals of {@link #interval} ms
+  * and searches the operating point with the least memory which achieves the maximum data rate (hill climbing within the configured bounds):
+  * Starting from the minimum the number of buffers and the buffer size are doubled as long as the data rate increases by more than {@link #threshold}.
+  * If the operating point is stable it is periodically tried to halve the number or the size of the buffers. This is accepted if the data rate does not drop.
+  * If the data rate changes significantly (e.g. because the data source changed) the search is restarted.
+  * <p>
+  * The operating point can be read by other threads for monitoring purposes.
+  */
+
+// *****************************************************************************
+// ******* ZtexAutoTuner *******************************************************
+// *****************************************************************************
+public class ZtexAutoTuner {
+    private final int minNum, maxNum, minSize, maxSize;
+
+    private int num, size;		// current operating point
+    private int baseNum, baseSize;	// last accepted operating point
+    private double baseRate = 0;	// reference data rate of the accepted operating point
+    private int trial = 0;		// 0: no trial, 1: more buffers, 2: larger buffers, -1: less buffers, -2: smaller buffers
+    private int failed = 0;		// bit mask of rejected trials in current search
+    private int stableCount = -1;	// number of intervals in stable state or -1 if searching
+    private boolean settle = true;	// if true, the next interval is ignored because operating point changed
+
+    private long intervalStartT = 0;
+    private long intervalBytes = 0;
+    private long intervalTransfers = 0;
+    private long intervalLatency = 0;
+    private double rate = 0;
+    private double latency = 0;
+
+    /**
+      * Length of the measurement intervals in ms. Default value is 250.
+      */
+    public int interval = 250;
+
+    /**
+      * Relative change of the data rate which is considered as significant. Default value is 0.05.
+      */
+    public double threshold = 0.05;
+
+    /**
+      * Number of intervals between two attempts to reduce the memory in stable state. Default value is 40.
+      */
+    public int probeIntervals = 40;
+
+// ******* ZtexAutoTuner *******************************************************
+/**
+  * Creates the tuner.
+  * Buffer sizes should be multiples of the maximum packet size (e.g. 512 bytes for high speed and 1024 for super speed endpoints)
+  * and the maximum size should be the minimum size multiplied by a power of two.
+  * @param p_minNum Minimum number of in-flight transfers.
+  * @param p_maxNum Maximum number of in-flight transfers.
+  * @param p_minSize Minimum buffer size.
+  * @param p_maxSize Maximum buffer size.
+  */
+    public ZtexAutoTuner ( int p_minNum, int p_maxNum, int p_minSize, int p_maxSize ) {
+	minNum = Math.max(1, p_minNum);
+	maxNum = Math.max(minNum, p_maxNum);
+	minSize = Math.max(1, p_minSize);
+	maxSize = Math.max(minSize, p_maxSize);
+	num = baseNum = minNum;
+	size = baseSize = minSize;
+    }
+
+/**
+  * Creates the tuner with default bounds: 2 to 32 buffers and 16 KByte to 1 MByte buffer size.
+  */
+    public ZtexAutoTuner ( ) {
+	this(2, 32, 16*1024, 1024*1024);
+    }
+
+// ******* reset ***************************************************************
+/**
+  * Resets the measurement, e.g. after the transfers have been restarted. The operating point is not changed.
+  */
+    public synchronized void reset () {
+	intervalStartT = 0;
+	intervalBytes = 0;
+	intervalTransfers = 0;
+	intervalLatency = 0;
+	settle = true;
+    }
+
+// ******* completed ***********************************************************
+/**
+  * Reports a completed transfer. This method is called by the reader or writer.
+  * @param bytes Number of bytes transferred.
+  * @param lat Time between submission and completion in ns.
+  */
+    public synchronized void completed ( int bytes, long lat ) {
+	long t = System.nanoTime();
+	if ( intervalStartT == 0 ) intervalStartT = t - lat;
+	intervalBytes += bytes;
+	intervalTransfers ++;
+	intervalLatency += lat;
+	long dt = t - intervalStartT;
+	if ( dt >= interval*1000000L ) {
+	    rate = intervalBytes*1e9/dt;
+	    latency = (double)intervalLatency/intervalTransfers;
+	    intervalStartT = t;
+	    intervalBytes = 0;
+	    intervalTransfers = 0;
+	    intervalLatency = 0;
+	    evaluate(rate);
+	}
+    }
+
+// ******* move ****************************************************************
+// tries to change the operating point starting from the accepted one, returns false if bounds are reached
+    private boolean move ( int t ) {
+	if ( (failed & (1 << (t+2))) != 0 ) return false;
+	int n = baseNum, s = baseSize;
+	if ( t == 1 ) n = Math.min(maxNum, n*2);
+	else if ( t == 2 ) s = (int)Math.min(maxSize, s*2L);
+	else if ( t == -1 ) n = Math.max(minNum, n/2);
+	else if ( t == -2 ) s = Math.max(minSize, s/2);
+	if ( n == baseNum && s == baseSize ) return false;
+	num = n;
+	size = s;
+	trial = t;
+	settle = true;
+	return true;
+    }
+
+// ******* accept **************************************************************
+    private void accept () {
+	baseNum = num;
+	baseSize = size;
+	failed = 0;
+	trial = 0;
+    }
+
+// ******* reject **************************************************************
+    private void reject () {
+	failed |= 1 << (trial+2);
+	num = baseNum;
+	size = baseSize;
+	trial = 0;
+	settle = true;
+    }
+
+// ******* stable **************************************************************
+    private void stable () {
+	trial = 0;
+	failed = 0;
+	stableCount = 0;
+    }
+
+// ******* evaluate ************************************************************
+// hill climbing
+    private void evaluate ( double r ) {
+	if ( settle ) {
+	    settle = false;
+	    return;
+	}
+	if ( trial > 0 ) {			// growing: accept if data rate increases
+	    int t = trial;
+	    if ( r > baseRate*(1+threshold) ) {
+		baseRate = r;
+		accept();
+	    }
+	    else reject();
+	    if ( ! ( move(t) || move(3-t) ) ) stable();
+	}
+	else if ( trial < 0 ) {			// shrinking: accept if data rate does not drop
+	    int t = trial;
+	    if ( r >= baseRate*(1-threshold) ) accept();
+	    else reject();
+	    if ( ! ( move(t) || move(-3-t) ) ) stable();
+	}
+	else if ( stableCount < 0 ) {		// start of search: measure reference data rate
+	    baseRate = r;
+	    if ( ! ( move(1) || move(2) ) ) stable();
+	}
+	else if ( r < baseRate*(1-2*threshold) || r > baseRate*(1+2*threshold) ) {	// conditions changed: restart search
+	    baseRate = r;
+	    stableCount = -1;
+	    failed = 0;
+	    if ( ! ( move(1) || move(2) ) ) stable();
+	}
+	else if ( ++stableCount >= probeIntervals ) {	// try to reduce memory
+	    stableCount = -1;
+	    if ( ! ( move(-1) || move(-2) ) ) stable();
+	}
+    }
+
+// ******* bufNum **************************************************************
+/**
+  * Returns the number of in-flight transfers of the current operating point.
+  * @return The number of in-flight transfers.
+  */
+    public synchronized int bufNum () {
+	return num;
+    }
+
+/**
+  * Returns the maximum number of in-flight transfers.
+  * @return The maximum number of in-flight transfers.
+  */
+    public int maxBufNum () {
+	return maxNum;
+    }
+
+// ******* bufSize *************************************************************
+/**
+  * Returns the buffer size of the current operating point.
+  * @return The buffer size in bytes.
+  */
+    public synchronized int bufSize () {
+	return size;
+    }
+
+/**
+  * Returns the maximum buffer size.
+  * @return The maximum buffer size in bytes.
+  */
+    public int maxBufSize () {
+	return maxSize;
+    }
+
+// ******* memory **************************************************************
+/**
+  * Returns the amount of buffer memory required by the current operating point.
+  * @return The amount of buffer memory in bytes.
+  */
+    public synchronized long memory () {
+	return (long)num*size;
+    }
+
+// ******* rate ****************************************************************
+/**
+  * Returns the data rate measured in the last interval.
+  * @return The data rate in bytes per second.
+  */
+    public synchronized double rate () {
+	return rate;
+    }
+
+// ******* latency *************************************************************
+/**
+  * Returns the average completion latency (time between submission and completion of a transfer) measured in the last interval.
+  * @return The latency in ns.
+  */
+    public synchronized double latency () {
+	return latency;
+    }
+
+// ******* isStable ************************************************************
+/**
+  * Returns true if the search has finished, i.e. if the current operating point is not a trial.
+  * @return True if the operating point is stable.
+  */
+    public synchronized boolean isStable () {
+	return stableCount >= 0 && trial == 0;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string representation of the operating point and of the last measurement.
+  * @return The operating point.
+  */
+    public synchronized String toString () {
+	return num + " x " + (size>>10) + " KByte, " + Math.round(rate*1e-5)/10.0 + " MByte/s, latency " + Math.round(latency*1e-3) + "us" + (isStable() ? "" : " (searching)");
+    }
+}
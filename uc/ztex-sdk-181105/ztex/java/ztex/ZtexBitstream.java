@@ -0,0 +1,261 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+
+/**
+  * A preprocessed Bitstream image.
+  * <p>
+  * The image contains the Bitstream in the bit order required for configuration, i.e. bits are already swapped if necessary.
+  * In addition, the start of the raw Bitstream (the end of the .bit file header), the checksum and the number of trailing NOP bytes
+  * are pre-computed. Thus, the image can be uploaded repeatedly without any further processing, see
+  * {@link Ztex1v1#configureFpga(ZtexBitstream,boolean)} and {@link ZtexBitstreamCache}.
+  * <p>
+  * The data is stored in a read-only direct buffer which may also be a memory mapped file. Images are immutable and can be shared between devices.
+  */
+
+// *****************************************************************************
+// ******* ZtexBitstream *******************************************************
+// *****************************************************************************
+public class ZtexBitstream {
+    private final ByteBuffer data;
+    private final int bitOrder;
+    private final int start;
+    private final int checksum;
+    private final int nopBytes;
+    private final byte[] hash;
+
+// ******* ZtexBitstream *******************************************************
+// creates an image from preprocessed data
+    ZtexBitstream ( ByteBuffer p_data, int p_bitOrder, int p_start, int p_checksum, int p_nopBytes, byte[] p_hash ) {
+	data = p_data.asReadOnlyBuffer();
+	bitOrder = p_bitOrder;
+	start = p_start;
+	checksum = p_checksum;
+	nopBytes = p_nopBytes;
+	hash = p_hash;
+    }
+
+// ******* read ****************************************************************
+/**
+  * Reads and preprocesses a Bitstream.
+  * @param inputStream for reading the Bitstream. The stream is closed after reading. Compressed data is decompressed, see {@link JInputStream#decompress(InputStream)}.
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return The preprocessed image.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  */
+    public static ZtexBitstream read ( InputStream inputStream, int bs ) throws BitstreamReadException {
+	return read(inputStream, bs, null);
+    }
+
+/**
+  * Reads and preprocesses a Bitstream and measures the durations of both phases.
+  * @param inputStream for reading the Bitstream. The stream is closed after reading.
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param times Read and preprocessing times are added to this object. May be null.
+  * @return The preprocessed image.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  */
+    public static ZtexBitstream read ( InputStream inputStream, int bs, ZtexConfigurationTimes times ) throws BitstreamReadException {
+	long t0 = System.nanoTime();
+	byte[] raw;
+	try {
+	    raw = JInputStream.decompress(inputStream).readAllBytes();
+	}
+	catch (IOException e) {
+	    throw new BitstreamReadException(e.getLocalizedMessage());
+	}
+	finally {
+	    try {
+		inputStream.close();
+	    }
+	    catch ( Exception e ) {
+	    }
+	}
+	long t1 = System.nanoTime();
+	ZtexBitstream b = preprocess(raw, bs, sha256(raw));
+	if ( times != null ) {
+	    times.readTime += t1 - t0;
+	    times.preprocessTime += System.nanoTime() - t1;
+	}
+	return b;
+    }
+
+// ******* preprocess **********************************************************
+// preprocesses raw (which is modified) and stores the result in a new direct buffer
+    static ZtexBitstream preprocess ( byte[] raw, int bs, byte[] hash ) {
+	if ( bs<0 || bs>1 )
+	    bs = Ztex1v1.detectBitstreamBitOrder( raw );
+	int start = Ztex1v1.detectBitstreamStart( raw );
+	if ( bs == 1 ) Ztex1v1.swapBits( raw, raw.length );
+
+	int cs = 0;
+	for ( int i=0; i<raw.length; i++ )
+	    cs = ( cs + (raw[i] & 0xff) ) & 0xff;
+
+	int nops = 0;
+	while ( raw.length-nops-2 >= start && raw[raw.length-nops-2] == 4 && raw[raw.length-nops-1] == 0 )
+	    nops += 2;
+
+	ByteBuffer b = ByteBuffer.allocateDirect(raw.length);
+	b.put(raw);
+	b.flip();
+	return new ZtexBitstream(b, bs, start, cs, nops, hash);
+    }
+
+// ******* sha256 **************************************************************
+// returns the SHA-256 hash of the given data
+    static byte[] sha256 ( byte[] raw ) {
+	try {
+	    return MessageDigest.getInstance("SHA-256").digest(raw);
+	}
+	catch ( NoSuchAlgorithmException e ) {
+	    throw new IllegalStateException(e);	// every Java platform is required to support SHA-256
+	}
+    }
+
+// ******* size ****************************************************************
+/**
+  * Returns the size of the image in bytes, including the .bit file header and trailing NOP's.
+  * @return The size of the image in bytes.
+  */
+    public int size () {
+	return data.capacity();
+    }
+
+// ******* bitOrder ************************************************************
+/**
+  * Returns the bit order, i.e. 1 if the bits of the image are swapped and 0 otherwise.
+  * @return The bit order.
+  */
+    public int bitOrder () {
+	return bitOrder;
+    }
+
+// ******* start ***************************************************************
+/**
+  * Returns the start of the raw Bitstream, i.e. the size of the .bit file header (including the dummy words in front of the sync word).
+  * @return The start of the raw Bitstream.
+  */
+    public int start () {
+	return start;
+    }
+
+// ******* checksum ************************************************************
+/**
+  * Returns the 8 bit checksum (sum of all bytes) of the image.
+  * @return The checksum.
+  */
+    public int checksum () {
+	return checksum;
+    }
+
+// ******* nopBytes ************************************************************
+/**
+  * Returns the number of bytes occupied by trailing NOP's.
+  * These NOP's are not removed from the image because they may be required by the startup sequence of the FPGA.
+  * @return The number of bytes occupied by trailing NOP's.
+  */
+    public int nopBytes () {
+	return nopBytes;
+    }
+
+// ******* hash ****************************************************************
+/**
+  * Returns the SHA-256 hash of the unprocessed Bitstream file.
+  * @return The SHA-256 hash of the unprocessed Bitstream file.
+  */
+    public byte[] hash () {
+	return hash.clone();
+    }
+
+// ******* key *****************************************************************
+/**
+  * Returns the hash as hexadecimal string.
+  * @return The hash as hexadecimal string.
+  */
+    public String key () {
+	return hex(hash);
+    }
+
+// ******* hex *****************************************************************
+// returns the hexadecimal representation of a byte array
+    static String hex ( byte[] b ) {
+	StringBuilder sb = new StringBuilder(b.length*2);
+	for ( int i=0; i<b.length; i++ )
+	    sb.append( Character.forDigit((b[i]>>4) & 15, 16) ).append( Character.forDigit(b[i] & 15, 16) );
+	return sb.toString();
+    }
+
+// ******* data ****************************************************************
+/**
+  * Returns the image data.
+  * @return A read-only view of the image data with position 0 and limit equal to {@link #size()}.
+  */
+    public ByteBuffer data () {
+	return data.duplicate();
+    }
+
+// ******* chunk ***************************************************************
+/**
+  * Returns a part of the image which can be directly used as transfer buffer.
+  * @param offset The offset within the image.
+  * @param length The length of the chunk.
+  * @return A read-only direct buffer with a capacity of length bytes.
+  */
+    public ByteBuffer chunk ( int offset, int length ) {
+	ByteBuffer b = data.duplicate();
+	b.position(offset);
+	b.limit(offset+length);
+	return b.slice();
+    }
+
+// ******* get *****************************************************************
+/**
+  * Copies a part of the image.
+  * @param offset The offset within the image.
+  * @param buf The destination.
+  * @param bufOffset The offset within the destination.
+  * @param length The number of bytes to copy.
+  */
+    public void get ( int offset, byte[] buf, int bufOffset, int length ) {
+	ByteBuffer b = data.duplicate();
+	b.position(offset);
+	b.get(buf, bufOffset, length);
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string representation of the image.
+  * @return A string representation of the image.
+  */
+    public String toString () {
+	return key().substring(0,16) + ": size=" + size() + "  start=" + start + "  bitOrder=" + bitOrder + "  checksum=" + checksum + "  nopBytes=" + nopBytes;
+    }
+}
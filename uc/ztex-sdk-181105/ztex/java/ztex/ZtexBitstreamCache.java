@@ -0,0 +1,430 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+  * A content addressed cache of preprocessed Bitstreams, see {@link ZtexBitstream}.
+  * <p>
+  * Entries are identified by the SHA-256 hash of the Bitstream file and the requested bit order. The cache consists of two tiers:
+  * <ul>
+  *   <li> An in-memory tier with least recently used replacement which is limited by {@link #maxMemory}.
+  *   <li> An optional on-disk tier which stores preprocessed images in a directory. These files are memory mapped when loaded, i.e. they
+  *        neither require preprocessing nor heap memory.
+  * </ul>
+  * Lookups of streams read and hash the Bitstream. Regular files are additionally indexed by path and attributes (size, modification
+  * time, change time and file key, e.g. the inode) which are compared on every lookup. Thus repeated lookups of unchanged files
+  * require neither reading nor hashing. In order to detect modifications which do not change these attributes, e.g. a rewrite within the
+  * timestamp resolution, files which were modified or restored less than 2 seconds before they were read are not indexed. The index is not
+  * used on file systems which do not provide change times.
+  * <p>
+  * All methods are thread-safe.
+  */
+
+// *****************************************************************************
+// ******* ZtexBitstreamCache **************************************************
+// *****************************************************************************
+public class ZtexBitstreamCache {
+    private static final int MAGIC = 0x5a425331;	// "ZBS1"
+    private static final int HEADER_SIZE = 56;
+    private static final int MAX_FILES = 256;		// maximum size of the file index
+    private static final long RACY_TIME = 2000;		// files modified within this time (in ms) before they are read are not indexed
+
+    private static ZtexBitstreamCache shared = null;
+
+    /**
+      * The maximum amount of memory in bytes used by the in-memory tier. At least one entry is kept.
+      */
+    public volatile long maxMemory;
+
+    private final File dir;
+    private final LinkedHashMap<String,ZtexBitstream> memory = new LinkedHashMap<String,ZtexBitstream>(16, 0.75f, true);
+    private final LinkedHashMap<String,FileEntry> files = new LinkedHashMap<String,FileEntry>(16, 0.75f, true);
+    private long memorySize = 0;
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+// ******* ZtexBitstreamCache **************************************************
+/**
+  * Creates a cache.
+  * @param p_dir The directory of the on-disk tier or null if only the in-memory tier shall be used. The directory is created if necessary.
+  * @param p_maxMemory The maximum amount of memory in bytes used by the in-memory tier.
+  */
+    public ZtexBitstreamCache ( File p_dir, long p_maxMemory ) {
+	dir = p_dir;
+	maxMemory = p_maxMemory;
+	if ( dir != null && !dir.isDirectory() && !dir.mkdirs() )
+	    System.err.println("Warning: Unable to create Bitstream cache directory " + dir );
+    }
+
+// ******* shared **************************************************************
+/**
+  * Returns the cache which is shared by all devices.
+  * Its in-memory tier is limited to 256 MByte. The on-disk tier is only enabled if the system property ztex.bitstreamCache is
+  * set to the cache directory.
+  * @return The shared cache.
+  */
+    public static synchronized ZtexBitstreamCache shared () {
+	if ( shared == null ) {
+	    String d = System.getProperty("ztex.bitstreamCache");
+	    shared = new ZtexBitstreamCache( d==null || d.length()==0 ? null : new File(d), 256L*1024*1024 );
+	}
+	return shared;
+    }
+
+// ******* defaultCache ********************************************************
+/**
+  * Returns the default value of {@link Ztex1v1#bitstreamCache}: the shared cache if the system property ztex.bitstreamCache is set
+  * (i.e. if the on-disk tier is enabled), null otherwise.
+  * @return The shared cache or null.
+  */
+    public static ZtexBitstreamCache defaultCache () {
+	String d = System.getProperty("ztex.bitstreamCache");
+	return d==null || d.length()==0 ? null : shared();
+    }
+
+// ******* FileEntry ***********************************************************
+// entry of the file index
+    private static class FileEntry {
+	final String attributes;	// see attributes(File)
+	final String key;		// cache key of the content
+
+	FileEntry ( String p_attributes, String p_key ) {
+	    attributes = p_attributes;
+	    key = p_key;
+	}
+    }
+
+// ******* attributes **********************************************************
+// returns the attributes which identify the content of a regular file or null if the file cannot be indexed, see class description
+    private static String attributes ( File f ) {
+	try {
+	    Path p = f.toPath();
+	    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+	    Object c = Files.getAttribute(p, "unix:ctime");
+	    if ( ! a.isRegularFile() || a.fileKey() == null || ! (c instanceof FileTime) )
+		return null;
+	    long m = a.lastModifiedTime().toMillis();
+	    long ct = ((FileTime)c).toMillis();
+	    if ( System.currentTimeMillis() - Math.max(m, ct) < RACY_TIME )
+		return null;
+	    return a.size() + "|" + m + "|" + ct + "|" + a.fileKey();
+	}
+	catch ( UnsupportedOperationException e ) {
+	}
+	catch ( IllegalArgumentException e ) {
+	}
+	catch ( IOException e ) {
+	}
+	return null;
+    }
+
+// ******* key *****************************************************************
+// returns the cache key
+    private static String key ( String hash, int bs ) {
+	return hash + "-" + ( bs==0 || bs==1 ? Integer.toString(bs) : "a" );
+    }
+
+// ******* get *****************************************************************
+/**
+  * Returns the preprocessed image of a Bitstream file.
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return The preprocessed image.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  */
+    public ZtexBitstream get ( String fwFileName, int bs ) throws BitstreamReadException {
+	return get(fwFileName, bs, null);
+    }
+
+/**
+  * Returns the preprocessed image of a Bitstream file and measures the durations of reading and preprocessing.
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param times Read and preprocessing times are added to this object. Hashing and lookups are accounted as preprocessing time,
+  *   lookups in the file index as read time. May be null.
+  * @return The preprocessed image.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  */
+    public ZtexBitstream get ( String fwFileName, int bs, ZtexConfigurationTimes times ) throws BitstreamReadException {
+	long t0 = System.nanoTime();
+	File f = new File(fwFileName);
+	String fk = f.getAbsolutePath() + "|" + key("", bs);
+	String attr = attributes(f);	// read before the content, see class description
+	if ( attr != null ) {
+	    synchronized ( this ) {
+		FileEntry e = files.get(fk);
+		ZtexBitstream b = e != null && e.attributes.equals(attr) ? lookup(e.key) : null;
+		if ( b != null ) {
+		    if ( times != null ) times.readTime += System.nanoTime() - t0;
+		    return b;
+		}
+	    }
+	}
+
+	try {
+	    InputStream in = JInputStream.getInputStream(fwFileName);
+	    if ( times != null ) times.readTime += System.nanoTime() - t0;
+	    ZtexBitstream b = get( in, bs, times );
+	    synchronized ( this ) {
+		if ( attr != null ) {
+		    files.put(fk, new FileEntry(attr, key(b.key(), bs)));
+		    Iterator<FileEntry> it = files.values().iterator();
+		    while ( files.size() > MAX_FILES ) {
+			it.next();
+			it.remove();
+		    }
+		}
+		else {
+		    files.remove(fk);
+		}
+	    }
+	    return b;
+	}
+	catch (IOException e) {
+	    throw new BitstreamReadException(e.getLocalizedMessage());
+	}
+    }
+
+/**
+  * Returns the preprocessed image of a Bitstream.
+  * The stream is read completely and hashed in order to identify the Bitstream. Compressed data is decompressed before hashing,
+  * see {@link JInputStream#decompress(InputStream)}.
+  * @param inputStream for reading the Bitstream. The stream is closed after reading.
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @return The preprocessed image.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  */
+    public ZtexBitstream get ( InputStream inputStream, int bs ) throws BitstreamReadException {
+	return get(inputStream, bs, null);
+    }
+
+/**
+  * Returns the preprocessed image of a Bitstream and measures the durations of reading and preprocessing.
+  * @param inputStream for reading the Bitstream. The stream is closed after reading.
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param times Read and preprocessing times are added to this object. Hashing and lookups are accounted as preprocessing time. May be null.
+  * @return The preprocessed image.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  */
+    public ZtexBitstream get ( InputStream inputStream, int bs, ZtexConfigurationTimes times ) throws BitstreamReadException {
+	long t0 = System.nanoTime();
+	byte[] raw;
+	try {
+	    raw = JInputStream.decompress(inputStream).readAllBytes();
+	}
+	catch (IOException e) {
+	    throw new BitstreamReadException(e.getLocalizedMessage());
+	}
+	finally {
+	    try {
+		inputStream.close();
+	    }
+	    catch ( Exception e ) {
+	    }
+	}
+
+	long t1 = System.nanoTime();
+	if ( times != null ) times.readTime += t1 - t0;
+	byte[] hash = ZtexBitstream.sha256(raw);
+	String k = key(ZtexBitstream.hex(hash), bs);
+	synchronized ( this ) {
+	    ZtexBitstream b = lookup(k);
+	    if ( b != null ) {
+		if ( times != null ) times.preprocessTime += System.nanoTime() - t1;
+		return b;
+	    }
+	    misses++;
+	}
+
+	ZtexBitstream b = ZtexBitstream.preprocess(raw, bs, hash);
+	if ( dir != null ) {
+	    try {
+		ZtexBitstream m = store(k, b);
+		if ( m != null )
+		    b = m;	// use the mapped file instead of the direct buffer
+	    }
+	    catch ( IOException e ) {
+		System.err.println("Warning: Unable to store Bitstream in cache: " + e.getLocalizedMessage() );
+	    }
+	}
+
+	synchronized ( this ) {
+	    insert(k, b);
+	}
+	if ( times != null ) times.preprocessTime += System.nanoTime() - t1;
+	return b;
+    }
+
+// ******* lookup **************************************************************
+// looks up both tiers, must be called with lock held
+    private ZtexBitstream lookup ( String k ) {
+	ZtexBitstream b = memory.get(k);
+	if ( b != null ) {
+	    hits++;
+	    return b;
+	}
+	if ( dir == null )
+	    return null;
+	b = load(k);
+	if ( b != null ) {
+	    diskHits++;
+	    insert(k, b);
+	}
+	return b;
+    }
+
+// ******* insert **************************************************************
+// inserts an entry into the in-memory tier, must be called with lock held
+    private void insert ( String k, ZtexBitstream b ) {
+	ZtexBitstream o = memory.put(k, b);
+	if ( o != null ) memorySize -= o.size();
+	memorySize += b.size();
+	Iterator<ZtexBitstream> it = memory.values().iterator();
+	while ( memorySize > maxMemory && memory.size() > 1 ) {
+	    memorySize -= it.next().size();
+	    it.remove();
+	}
+    }
+
+// ******* load ****************************************************************
+// maps an entry of the on-disk tier, returns null if it does not exist or is invalid
+    private ZtexBitstream load ( String k ) {
+	File f = new File(dir, k + ".zbs");
+	if ( ! f.isFile() )
+	    return null;
+	try ( FileChannel ch = FileChannel.open(f.toPath()) ) {
+	    long size = ch.size();
+	    if ( size < HEADER_SIZE )
+		throw new IOException("Invalid size");
+	    MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	    if ( m.getInt(0) != MAGIC || m.getInt(20) != size-HEADER_SIZE )
+		throw new IOException("Invalid header");
+	    byte[] hash = new byte[32];
+	    m.position(24);
+	    m.get(hash);
+	    m.position(HEADER_SIZE);
+	    return new ZtexBitstream(m.slice(), m.getInt(4), m.getInt(8), m.getInt(12), m.getInt(16), hash);
+	}
+	catch ( IOException e ) {
+	    System.err.println("Warning: Ignoring invalid Bitstream cache entry " + f + ": " + e.getLocalizedMessage() );
+	    return null;
+	}
+    }
+
+// ******* store ***************************************************************
+// writes a preprocessed Bitstream to the on-disk tier and maps it
+    private ZtexBitstream store ( String k, ZtexBitstream b ) throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+	buf.putInt(0, MAGIC);
+	buf.putInt(4, b.bitOrder());
+	buf.putInt(8, b.start());
+	buf.putInt(12, b.checksum());
+	buf.putInt(16, b.nopBytes());
+	buf.putInt(20, b.size());
+	buf.position(24);
+	buf.put(b.hash());
+	buf.clear();
+	ByteBuffer data = b.data();
+
+	File f = new File(dir, k + ".zbs");
+	File t = File.createTempFile(k, ".tmp", dir);
+	try ( FileChannel ch = FileChannel.open(t.toPath(), java.nio.file.StandardOpenOption.WRITE) ) {
+	    while ( buf.hasRemaining() )
+		ch.write(buf);
+	    while ( data.hasRemaining() )
+		ch.write(data);
+	}
+	if ( ! t.renameTo(f) ) {
+	    t.delete();
+	    if ( ! f.isFile() )
+		throw new IOException("Unable to rename " + t + " to " + f);
+	}
+	return load(k);
+    }
+
+// ******* clear ***************************************************************
+/**
+  * Clears the in-memory tier and the file index. The on-disk tier is not affected.
+  */
+    public synchronized void clear () {
+	memory.clear();
+	files.clear();
+	memorySize = 0;
+    }
+
+// ******* memorySize **********************************************************
+/**
+  * Returns the amount of memory used by the in-memory tier. This includes memory mapped entries.
+  * @return The amount of memory used by the in-memory tier in bytes.
+  */
+    public synchronized long memorySize () {
+	return memorySize;
+    }
+
+// ******* hits ****************************************************************
+/**
+  * Returns the number of lookups served by the in-memory tier.
+  * @return The number of lookups served by the in-memory tier.
+  */
+    public synchronized long hits () {
+	return hits;
+    }
+
+// ******* diskHits ************************************************************
+/**
+  * Returns the number of lookups served by the on-disk tier.
+  * @return The number of lookups served by the on-disk tier.
+  */
+    public synchronized long diskHits () {
+	return diskHits;
+    }
+
+// ******* misses **************************************************************
+/**
+  * Returns the number of lookups which required preprocessing.
+  * @return The number of lookups which required preprocessing.
+  */
+    public synchronized long misses () {
+	return misses;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string with statistics.
+  * @return A string with statistics.
+  */
+    public synchronized String toString () {
+	return "Bitstream cache: " + memory.size() + " entries, " + (memorySize >> 10) + " KB;  hits: " + hits + "  disk hits: " + diskHits + "  misses: " + misses;
+    }
+}
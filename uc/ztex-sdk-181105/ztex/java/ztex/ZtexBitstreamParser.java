@@ -0,0 +1,304 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.lang.invoke.*;
+
+/**
+  * Parser and preprocessing routines for Xilinx Bitstreams.
+  * <p>
+  * This class parses the header of .bit files (design name, part, date, time and length of the raw Bitstream),
+  * searches the sync word which determines the bit order and the start of the raw Bitstream, and swaps the bit order.
+  * The sync word search examines 8 bytes at once and the bit order is swapped 64 bits at once, i.e. large images
+  * are processed at memory speed.
+  * <p>
+  * The class can be executed in order to dump .bit file headers and to measure the throughput of the preprocessing routines:
+  * <pre>java -cp ztex.jar ztex.ZtexBitstreamParser [&lt;bitstream&gt; ...]</pre>
+  */
+
+// *****************************************************************************
+// ******* ZtexBitstreamParser *************************************************
+// *****************************************************************************
+public class ZtexBitstreamParser {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final byte[] BIT_MAGIC = { 0, 9, 0x0f, (byte)0xf0, 0x0f, (byte)0xf0, 0x0f, (byte)0xf0, 0x0f, (byte)0xf0, 0, 0, 1 };
+    private static final byte[] REVERSED = new byte[256];
+
+    static {
+	for ( int i=0; i<256; i++ )
+	    REVERSED[i] = (byte) (Integer.reverse(i) >>> 24);
+    }
+
+    private final String designName;
+    private final String part;
+    private final String date;
+    private final String time;
+    private final int dataOffset;
+    private final long dataLength;
+
+// ******* ZtexBitstreamParser *************************************************
+    private ZtexBitstreamParser ( String[] fields, int p_dataOffset, long p_dataLength ) {
+	designName = fields[0];
+	part = fields[1];
+	date = fields[2];
+	time = fields[3];
+	dataOffset = p_dataOffset;
+	dataLength = p_dataLength;
+    }
+
+// ******* parseHeader *********************************************************
+/**
+  * Parses the header of a .bit file.
+  * @param buf The beginning of the file. The header is usually smaller than 256 bytes.
+  * @param len The number of valid bytes in buf.
+  * @return The parsed header or null if buf does not start with a complete .bit file header (e.g. if it contains a .bin file).
+  */
+    public static ZtexBitstreamParser parseHeader ( byte[] buf, int len ) {
+	len = Math.min(len, buf.length);
+	if ( len < BIT_MAGIC.length )
+	    return null;
+	for ( int i=0; i<BIT_MAGIC.length; i++ )
+	    if ( buf[i] != BIT_MAGIC[i] )
+		return null;
+
+	String[] fields = new String[4];
+	int p = BIT_MAGIC.length;
+	while ( p < len ) {
+	    int key = buf[p++] & 255;
+	    if ( key == 'e' ) {
+		if ( p+4 > len )
+		    return null;
+		long l = ((buf[p] & 255L) << 24) | ((buf[p+1] & 255) << 16) | ((buf[p+2] & 255) << 8) | (buf[p+3] & 255);
+		return new ZtexBitstreamParser(fields, p+4, l);
+	    }
+	    if ( key<'a' || key>'d' || p+2 > len )
+		return null;
+	    int l = ((buf[p] & 255) << 8) | (buf[p+1] & 255);
+	    p += 2;
+	    if ( p+l > len )
+		return null;
+	    int k = l;
+	    while ( k>0 && buf[p+k-1]==0 )
+		k--;
+	    fields[key-'a'] = new String(buf, p, k, StandardCharsets.ISO_8859_1);
+	    p += l;
+	}
+	return null;
+    }
+
+// ******* designName **********************************************************
+/**
+  * Returns the design name (field 'a' of the header), e.g. "ucecho.ncd;UserID=0xFFFFFFFF".
+  * @return The design name or null if not present.
+  */
+    public String designName () {
+	return designName;
+    }
+
+// ******* part ****************************************************************
+/**
+  * Returns the part name (field 'b' of the header), e.g. "7a35tcsg324".
+  * @return The part name or null if not present.
+  */
+    public String part () {
+	return part;
+    }
+
+// ******* date ****************************************************************
+/**
+  * Returns the creation date (field 'c' of the header).
+  * @return The creation date or null if not present.
+  */
+    public String date () {
+	return date;
+    }
+
+// ******* time ****************************************************************
+/**
+  * Returns the creation time (field 'd' of the header).
+  * @return The creation time or null if not present.
+  */
+    public String time () {
+	return time;
+    }
+
+// ******* dataOffset **********************************************************
+/**
+  * Returns the offset of the raw Bitstream, i.e. the size of the header.
+  * @return The offset of the raw Bitstream.
+  */
+    public int dataOffset () {
+	return dataOffset;
+    }
+
+// ******* dataLength **********************************************************
+/**
+  * Returns the length of the raw Bitstream as stored in field 'e' of the header.
+  * @return The length of the raw Bitstream in bytes.
+  */
+    public long dataLength () {
+	return dataLength;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string representation of the header.
+  * @return A string representation of the header.
+  */
+    public String toString () {
+	return "design=" + designName + "  part=" + part + "  date=" + date + " " + time + "  dataOffset=" + dataOffset + "  dataLength=" + dataLength;
+    }
+
+// ******* isSync **************************************************************
+    private static boolean isSync ( byte[] buf, int i ) {
+	return buf[i+1]==(byte)0x99 && buf[i+3]==0x66 &&
+	    ( (buf[i]==(byte)0xaa && buf[i+2]==0x55) || (buf[i]==0x55 && buf[i+2]==(byte)0xaa) );
+    }
+
+// ******* findSync ************************************************************
+/**
+  * Searches the sync word of either bit order (0xaa995566 or 0x5599aa66).
+  * The second byte of both sync words is 0x99. Blocks of 8 bytes which do not contain this byte are skipped at once.
+  * @param buf The buffer to be searched.
+  * @param from The first position to be examined.
+  * @param to The end of the valid data in buf (exclusive).
+  * @return The position of the first sync word or -1 if none was found.
+  */
+    public static int findSync ( byte[] buf, int from, int to ) {
+	to = Math.min(to, buf.length);
+	int i = Math.max(from, 0);
+	while ( i+10 < to ) {
+	    long v = (long) LONGS.get(buf, i+1) ^ 0x9999999999999999L;
+	    if ( ((v - 0x0101010101010101L) & ~v & 0x8080808080808080L) != 0 ) {	// at least one of the bytes i+1 .. i+8 is 0x99
+		for ( int j=i; j<i+8; j++ )
+		    if ( isSync(buf, j) )
+			return j;
+	    }
+	    i += 8;
+	}
+	for ( ; i+3<to; i++ )
+	    if ( isSync(buf, i) )
+		return i;
+	return -1;
+    }
+
+// ******* bitOrder ************************************************************
+/**
+  * Determines the bit order from the first sync word.
+  * @param buf The buffer containing the beginning of the Bitstream.
+  * @param len The number of valid bytes in buf.
+  * @return 1 if bits need to be swapped, 0 if not and -1 if no sync word was found.
+  */
+    public static int bitOrder ( byte[] buf, int len ) {
+	int i = findSync(buf, 0, len);
+	return i < 0 ? -1 : buf[i]==(byte)0xaa ? 1 : 0;
+    }
+
+// ******* start ***************************************************************
+/**
+  * Determines the start of the raw Bitstream, i.e. the position of the 0xff padding (at least 4 bytes) in front of the sync word.
+  * @param buf The buffer containing the beginning of the Bitstream.
+  * @param len The number of valid bytes in buf.
+  * @return The start of the raw Bitstream or -1 if it was not found.
+  */
+    public static int start ( byte[] buf, int len ) {
+	for ( int i=findSync(buf, 0, len); i>=0; i=findSync(buf, i+1, len) ) {
+	    int l = 0;
+	    while ( l<i && buf[i-l-1]==-1 )
+		l++;
+	    if ( l >= 4 )
+		return i-l;
+	}
+	return -1;
+    }
+
+// ******* swapBits ************************************************************
+/**
+  * Reverses the bit order of each byte. 8 bytes are processed at once, the remaining ones using a lookup table.
+  * @param buf The buffer.
+  * @param off The first byte.
+  * @param len The number of bytes.
+  */
+    public static void swapBits ( byte[] buf, int off, int len ) {
+	int i = off;
+	int end = off + len;
+	for ( ; i+8<=end; i+=8 ) {
+	    long x = (long) LONGS.get(buf, i);
+	    x = ((x >>> 1) & 0x5555555555555555L) | ((x & 0x5555555555555555L) << 1);
+	    x = ((x >>> 2) & 0x3333333333333333L) | ((x & 0x3333333333333333L) << 2);
+	    x = ((x >>> 4) & 0x0f0f0f0f0f0f0f0fL) | ((x & 0x0f0f0f0f0f0f0f0fL) << 4);
+	    LONGS.set(buf, i, x);
+	}
+	for ( ; i<end; i++ )
+	    buf[i] = REVERSED[buf[i] & 255];
+    }
+
+// ******* main ****************************************************************
+/**
+  * Dumps the headers of the given .bit files and measures the throughput of the preprocessing routines on a 16 MB image.
+  * @param args The .bit files.
+  * @throws IOException if a file cannot be read.
+  */
+    public static void main ( String[] args ) throws IOException {
+	for ( int i=0; i<args.length; i++ ) {
+	    byte[] buf = JInputStream.getInputStream(args[i]).readNBytes(4096);
+	    ZtexBitstreamParser h = parseHeader(buf, buf.length);
+	    System.out.println(args[i] + ": " + ( h != null ? h.toString() : "no .bit header" ) + "  bitOrder=" + bitOrder(buf, buf.length) + "  start=" + start(buf, buf.length) );
+	}
+
+	// synthetic 16 MB image without 0x99 bytes and with the sync word at the end, i.e. the worst case for the search
+	byte[] img = new byte[16 << 20];
+	java.util.Random rnd = new java.util.Random(0);
+	rnd.nextBytes(img);
+	for ( int i=0; i<img.length; i++ )
+	    if ( img[i]==(byte)0x99 ) img[i] = 0;
+	int s = img.length - 256;
+	for ( int i=s-32; i<s; i++ )
+	    img[i] = -1;
+	img[s] = 0x55; img[s+1] = (byte)0x99; img[s+2] = (byte)0xaa; img[s+3] = 0x66;
+
+	for ( int run=0; run<5; run++ ) {	// the first runs warm up the JIT
+	    long t0 = System.nanoTime();
+	    int r = start(img, img.length);
+	    long t1 = System.nanoTime();
+	    swapBits(img, 0, img.length);
+	    swapBits(img, 0, img.length);
+	    long t2 = System.nanoTime();
+	    if ( r != s-32 )
+		throw new IllegalStateException("Sync word search failed: " + r);
+	    System.out.println("run " + run + ":  sync word search: " + mbps(img.length, t1-t0) + " MB/s   bit swapping: " + mbps(2L*img.length, t2-t1) + " MB/s");
+	}
+    }
+
+// ******* mbps ****************************************************************
+    private static long mbps ( long bytes, long ns ) {
+	return ns > 0 ? bytes * 1000 / ns : 0;
+    }
+
+}
@@ -0,0 +1,282 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+  * A bounded pipeline which reads a Bitstream, detects the bit order, swaps the bits and calculates the checksum while the
+  * previous chunks are uploaded.
+  * Reading is performed by a background thread which fills a small number of reusable direct buffers. Thus, memory usage
+  * is independent of the Bitstream size and the first chunk can be sent to the device as soon as it has been read.
+  * <p>
+  * Typical usage:
+  * <pre>
+  * ZtexBitstreamPipeline pipe = new ZtexBitstreamPipeline(inputStream, 2048, 4, 0, true, -1);
+  * try {
+  *     for ( ByteBuffer b = pipe.next(); b != null; b = pipe.next() )
+  *         ztex.vendorCommand2(0x32, "sendFpgaData", 0,0, b);
+  * }
+  * finally {
+  *     pipe.close();
+  * }
+  * </pre>
+  * A pipeline can only be read once. Retries are performed by creating a new pipeline from a re-opened {@link Source}.
+  */
+
+// *****************************************************************************
+// ******* ZtexBitstreamPipeline ***********************************************
+// *****************************************************************************
+public class ZtexBitstreamPipeline implements Runnable {
+
+/**
+  * A re-openable source of a Bitstream.
+  * Each call of {@link #open()} must return a new stream that starts at the beginning of the Bitstream.
+  */
+    public interface Source {
+/**
+  * Opens the Bitstream.
+  * @return A stream which starts at the beginning of the Bitstream.
+  * @throws IOException if an error occurred while opening the Bitstream.
+  */
+	public InputStream open() throws IOException;
+    }
+
+    private static final ByteBuffer END = ByteBuffer.allocateDirect(0);
+
+    private final InputStream in;
+    private final int chunkSize;
+    private final int chunks;
+    private final int prefix;
+    private final boolean padding;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final ArrayBlockingQueue<ByteBuffer> full;
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+    private volatile int allocated = 0;
+    private IOException error = null;	// written before END is queued
+    private volatile int bs;
+    private volatile long size = 0;
+    private volatile int cs = 0;
+
+    private ByteBuffer current = null;	// backing buffer of the chunk returned by the last call of next()
+    private boolean finished = false;
+
+// ******* ZtexBitstreamPipeline ***********************************************
+/**
+  * Creates the pipeline and starts the reader thread.
+  * @param in The input stream. It is closed by the reader thread when the end of the stream is reached or when the pipeline is closed.
+  *           Compressed data is decompressed, see {@link JInputStream#decompress(InputStream)}.
+  * @param chunkSize The size of the chunks, i.e. the transaction size.
+  * @param chunks The maximum number of buffers, at least 2.
+  * @param prefix The number of zero bytes inserted in front of the Bitstream (e.g. 512 dummy bytes for high speed configuration).
+  * @param padding If true, one byte is appended if the size of the last chunk is a multiple of 64 (required for low speed configuration).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  */
+    public ZtexBitstreamPipeline ( InputStream in, int chunkSize, int chunks, int prefix, boolean padding, int bs ) {
+	if ( chunks < 2 ) chunks = 2;
+	this.in = JInputStream.decompress(in);
+	this.chunkSize = chunkSize;
+	this.chunks = chunks;
+	this.prefix = Math.min(prefix, chunkSize);
+	this.padding = padding;
+	this.bs = bs;
+	free = new ArrayBlockingQueue<ByteBuffer>(chunks);
+	full = new ArrayBlockingQueue<ByteBuffer>(chunks+1);
+	thread = new Thread(this, "ZtexBitstreamPipeline");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+// ******* run *****************************************************************
+/**
+  * The reader thread. Do not call directly.
+  */
+    public void run () {
+	byte[] buf = new byte[chunkSize];
+	try {
+	    int j = chunkSize;
+	    for ( boolean first = true; j==chunkSize && !closed; first = false ) {
+		int k;
+		j = 0;
+		if ( first && prefix>0 ) {
+		    for (int l=0; l<prefix; l++ ) buf[l]=0;
+		    j=prefix;
+		}
+		do {
+		    k = in.read( buf, j, chunkSize-j );
+		    if ( k < 0 ) k = 0;
+		    j += k;
+		}
+		while ( j<chunkSize && k>0 );
+
+		if ( padding && j < chunkSize && j % 64 == 0 )	// ensures size % 64 != 0
+		    j+=1;
+		if ( j == 0 )
+		    break;
+
+		if ( first && ( bs<0 || bs>1 ) )
+		    bs = Ztex1v1.detectBitstreamBitOrder( buf );
+		if ( bs == 1 ) Ztex1v1.swapBits(buf, j);
+
+		for ( k=0; k<j; k++ )
+		    cs = ( cs + (buf[k] & 0xff) ) & 0xff;
+		size += j;
+
+		ByteBuffer b = free.poll();
+		if ( b == null ) {
+		    if ( allocated < chunks ) {
+			b = ByteBuffer.allocateDirect(chunkSize);
+			allocated++;
+		    }
+		    else {
+			b = free.take();
+		    }
+		}
+		b.clear();
+		b.put(buf, 0, j);
+		b.flip();
+		full.put(b);
+	    }
+	}
+	catch ( IOException e ) {
+	    error = e;
+	}
+	catch ( InterruptedException e ) {
+	}
+	finally {
+	    try {
+		in.close();
+	    }
+	    catch ( Exception e ) {
+	    }
+	    full.offer(END);
+	}
+    }
+
+// ******* next ****************************************************************
+/**
+  * Returns the next chunk. The whole buffer has to be sent, i.e. the transfer size is equal to the buffer capacity.
+  * The chunk returned by the previous call is recycled and must not be used anymore.
+  * @return The next chunk or null if the end of the Bitstream is reached.
+  * @throws BitstreamReadException if an error occurred while reading the Bitstream.
+  */
+    public ByteBuffer next () throws BitstreamReadException {
+	if ( current != null ) {
+	    free.offer(current);
+	    current = null;
+	}
+	if ( finished )
+	    return null;
+	ByteBuffer b;
+	try {
+	    b = full.take();
+	}
+	catch ( InterruptedException e ) {
+	    close();
+	    throw new BitstreamReadException("Interrupted");
+	}
+	if ( b == END ) {
+	    finished = true;
+	    if ( error != null )
+		throw new BitstreamReadException(error.getLocalizedMessage());
+	    if ( closed )
+		throw new BitstreamReadException("Pipeline closed");
+	    return null;
+	}
+	current = b;
+	return b.slice();
+    }
+
+// ******* finished ************************************************************
+/**
+  * Returns true if the end of the Bitstream has been reached, i.e. if the last chunk has been returned by {@link #next()}.
+  * This is the case if {@link #next()} returned null or if the last returned chunk is shorter than the chunk size.
+  * @return true if the end of the Bitstream has been reached.
+  */
+    public boolean finished () {
+	return finished || ( current != null && current.limit() < chunkSize );
+    }
+
+// ******* bitOrder ************************************************************
+/**
+  * Returns the bit order, i.e. 1 if bits are swapped and 0 otherwise.
+  * The value is valid after the first call of {@link #next()}.
+  * @return The bit order.
+  */
+    public int bitOrder () {
+	return bs;
+    }
+
+// ******* size ****************************************************************
+/**
+  * Returns the number of bytes read so far, including prefix and padding.
+  * The value is complete if {@link #finished()} returns true.
+  * @return The number of bytes read so far.
+  */
+    public long size () {
+	return size;
+    }
+
+// ******* checksum ************************************************************
+/**
+  * Returns the 8 bit checksum (sum of all bytes after bit swapping) of the data read so far.
+  * The value is complete if {@link #finished()} returns true.
+  * @return The checksum.
+  */
+    public int checksum () {
+	return cs;
+    }
+
+// ******* peakMemory **********************************************************
+/**
+  * Returns the peak amount of buffer memory used by the pipeline, i.e. the allocated direct buffers and the read buffer.
+  * @return The peak memory in bytes.
+  */
+    public long peakMemory () {
+	return (long)(allocated+1)*chunkSize;
+    }
+
+// ******* close ***************************************************************
+/**
+  * Stops the reader thread and closes the input stream.
+  * This method should be called in a finally block. It has no effect if the end of the Bitstream has been reached.
+  */
+    public void close () {
+	if ( finished )
+	    return;
+	closed = true;
+	thread.interrupt();
+	try {
+	    in.close();
+	}
+	catch ( Exception e ) {
+	}
+    }
+}
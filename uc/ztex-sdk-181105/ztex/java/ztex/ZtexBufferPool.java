@@ -0,0 +1,251 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.nio.*;
+import java.util.*;
+import java.lang.ref.*;
+import java.util.concurrent.atomic.*;
+
+import org.usb4java.*;
+
+/**
+  * A thread-safe pool of direct buffers which is used by the synchronous transfer methods of {@link Ztex1}.
+  * <p>
+  * Buffers are organized in size classes (powers of two). {@link #acquire(int)} returns a buffer with the exact capacity required for the transfer
+  * (libusb uses the capacity as transfer length) which must be returned using {@link #release(ByteBuffer)}.
+  * Buffers larger than the largest size class are not pooled.
+  * <p>
+  * The content of acquired buffers is undefined. Acquired buffers which are never released are dropped from the pool after they have been garbage collected.
+  */
+
+// *****************************************************************************
+// ******* ZtexBufferPool ******************************************************
+// *****************************************************************************
+public class ZtexBufferPool {
+    private static final int MIN_CLASS = 6;		// 64 bytes
+
+    private static final ZtexBufferPool shared = new ZtexBufferPool(20, 8);
+
+    /**
+      * An empty direct buffer which can be used for transfers without payload.
+      */
+    public static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+    private final int maxClass;
+    private final int maxFree;
+    private final SizeClass[] classes;
+    private final ArrayDeque<IntBuffer> freeInt = new ArrayDeque<IntBuffer>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+// ******* LentKey *************************************************************
+// weak identity key of a lent buffer, i.e. buffers which are never released are not kept forever
+    private static class LentKey extends WeakReference<ByteBuffer> {
+	private final int hash;
+
+	LentKey ( ByteBuffer b, ReferenceQueue<ByteBuffer> q ) {
+	    super(b, q);
+	    hash = System.identityHashCode(b);
+	}
+
+	public int hashCode () {
+	    return hash;
+	}
+
+	public boolean equals ( Object o ) {
+	    if ( o == this ) return true;
+	    if ( !(o instanceof LentKey) ) return false;
+	    ByteBuffer b = get();
+	    return b != null && b == ((LentKey)o).get();
+	}
+    }
+
+// ******* SizeClass ***********************************************************
+// free and lent buffers of one size class, guarded by the instance
+    private static class SizeClass {
+	final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	final HashMap<LentKey,ByteBuffer> lent = new HashMap<LentKey,ByteBuffer>();	// lent slice -> pooled buffer
+	final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	// removes the entries of lent buffers which have been garbage collected without being released
+	void expunge () {
+	    Reference<? extends ByteBuffer> r;
+	    while ( (r = collected.poll()) != null )
+		lent.remove(r);
+	}
+    }
+
+// ******* ZtexBufferPool ******************************************************
+/**
+  * Creates a pool.
+  * @param p_maxClass The largest size class, i.e. buffers up to 2^p_maxClass bytes are pooled.
+  * @param p_maxFree Maximum number of unused buffers kept per size class.
+  */
+    public ZtexBufferPool ( int p_maxClass, int p_maxFree ) {
+	maxClass = Math.max(MIN_CLASS, Math.min(30, p_maxClass));
+	maxFree = p_maxFree;
+	classes = new SizeClass[maxClass+1];
+	for (int i=MIN_CLASS; i<=maxClass; i++)
+	    classes[i] = new SizeClass();
+    }
+
+// ******* shared **************************************************************
+/**
+  * Returns the pool which is shared by all devices. It pools buffers up to 1 MByte.
+  * @return The shared pool.
+  */
+    public static ZtexBufferPool shared () {
+	return shared;
+    }
+
+// ******* sizeClass ***********************************************************
+// returns the size class of a given length or -1 if buffers of that length are not pooled
+    private int sizeClass ( int length ) {
+	int c = MIN_CLASS;
+	while ( c <= maxClass && (1 << c) < length ) c++;
+	return c <= maxClass ? c : -1;
+    }
+
+// ******* acquire *************************************************************
+/**
+  * Acquires a direct buffer.
+  * @param length The capacity of the buffer.
+  * @return A direct buffer in native byte order with the requested capacity. Position is 0 and limit is equal to the capacity.
+  */
+    public ByteBuffer acquire ( int length ) {
+	if ( length == 0 ) return EMPTY;
+	int c = sizeClass(length);
+	if ( c < 0 ) {
+	    misses.incrementAndGet();
+	    return BufferUtils.allocateByteBuffer(length);
+	}
+	SizeClass sc = classes[c];
+	ByteBuffer b;
+	synchronized ( sc ) {
+	    b = sc.free.poll();
+	}
+	if ( b == null ) {
+	    misses.incrementAndGet();
+	    b = BufferUtils.allocateByteBuffer(1 << c);
+	}
+	else hits.incrementAndGet();
+	b.clear();
+	b.limit(length);
+	ByteBuffer s = b.slice().order(ByteOrder.nativeOrder());
+	synchronized ( sc ) {
+	    sc.expunge();
+	    sc.lent.put(new LentKey(s, sc.collected), b);
+	}
+	return s;
+    }
+
+// ******* release *************************************************************
+/**
+  * Returns a buffer which has been acquired using {@link #acquire(int)}. The buffer must not be used after this call.
+  * @param buf The buffer. Buffers which do not belong to the pool are ignored.
+  */
+    public void release ( ByteBuffer buf ) {
+	if ( buf == null || buf.capacity() == 0 ) return;
+	int c = sizeClass(buf.capacity());
+	if ( c < 0 ) return;
+	SizeClass sc = classes[c];
+	synchronized ( sc ) {
+	    ByteBuffer b = sc.lent.remove(new LentKey(buf, null));
+	    if ( b != null && sc.free.size() < maxFree ) sc.free.push(b);
+	    sc.expunge();
+	}
+    }
+
+// ******* acquireInt **********************************************************
+/**
+  * Acquires a direct buffer for one integer, e.g. for the amount of transferred data.
+  * @return A direct int buffer.
+  */
+    public IntBuffer acquireInt () {
+	IntBuffer b;
+	synchronized ( freeInt ) {
+	    b = freeInt.poll();
+	}
+	if ( b == null ) {
+	    misses.incrementAndGet();
+	    return BufferUtils.allocateIntBuffer();
+	}
+	hits.incrementAndGet();
+	b.clear();
+	return b;
+    }
+
+// ******* releaseInt **********************************************************
+/**
+  * Returns a buffer which has been acquired using {@link #acquireInt()}. The buffer must not be used after this call.
+  * @param buf The buffer.
+  */
+    public void releaseInt ( IntBuffer buf ) {
+	if ( buf == null ) return;
+	synchronized ( freeInt ) {
+	    if ( freeInt.size() < maxFree ) freeInt.push(buf);
+	}
+    }
+
+// ******* hits ****************************************************************
+/**
+  * Returns the number of requests which have been served from the pool.
+  * @return The number of pool hits.
+  */
+    public long hits () {
+	return hits.get();
+    }
+
+// ******* misses **************************************************************
+/**
+  * Returns the number of requests which required an allocation.
+  * @return The number of pool misses.
+  */
+    public long misses () {
+	return misses.get();
+    }
+
+// ******* hitRate *************************************************************
+/**
+  * Returns the fraction of requests which have been served from the pool.
+  * @return The hit rate (0..1).
+  */
+    public double hitRate () {
+	long h = hits.get();
+	long n = h + misses.get();
+	return n > 0 ? (double)h / n : 0;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string with the pool metrics.
+  * @return A string with the pool metrics.
+  */
+    public String toString () {
+	return "Buffer pool: " + hits() + " hits, " + misses() + " misses, hit rate " + Math.round(hitRate()*1000)/10.0 + "%";
+    }
+}
@@ -0,0 +1,140 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+  * A bounded lock-free single-producer single-consumer queue for completion notifications of asynchronous transfers.
+  * The producer (usually the callback of a transfer which is executed by {@link ZtexEventHandler}) never blocks.
+  * The consumer waits using {@link LockSupport#parkNanos(Object,long)} and is woken up by the producer, i.e.
+  * no polling is required.
+  */
+
+// *****************************************************************************
+// ******* ZtexCompletionQueue *************************************************
+// *****************************************************************************
+public class ZtexCompletionQueue {
+    private final int[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0);	// next entry to be read, only modified by the consumer
+    private final AtomicLong tail = new AtomicLong(0);	// next entry to be written, only modified by the producer
+    private volatile Thread waiter = null;
+
+// ******* ZtexCompletionQueue *************************************************
+/**
+  * Creates the queue.
+  * @param capacity The minimum capacity. The actual capacity is the next power of two.
+  */
+    public ZtexCompletionQueue ( int capacity ) {
+	int c = 1;
+	while ( c < capacity ) c <<= 1;
+	ring = new int[c];
+	mask = c-1;
+    }
+
+// ******* offer ***************************************************************
+/**
+  * Appends an entry and wakes up the consumer. This method must only be called by the producer.
+  * @param value The value to be appended. Must not be negative.
+  * @return False if the queue is full.
+  */
+    public boolean offer ( int value ) {
+	long t = tail.get();
+	boolean b = t - head.get() < ring.length;
+	if ( b ) {
+	    ring[(int)t & mask] = value;
+	    tail.set(t+1);
+	}
+	Thread w = waiter;
+	if ( w != null ) LockSupport.unpark(w);
+	return b;
+    }
+
+// ******* poll ****************************************************************
+/**
+  * Removes the next entry without waiting. This method must only be called by the consumer.
+  * @return The entry or -1 if queue is empty.
+  */
+    public int poll () {
+	long h = head.get();
+	if ( h >= tail.get() ) return -1;
+	int v = ring[(int)h & mask];
+	head.set(h+1);
+	return v;
+    }
+
+/**
+  * Removes the next entry. If the queue is empty the calling thread is parked until an entry is available or timeout occurs.
+  * This method must only be called by the consumer.
+  * @param timeout Timeout in ns.
+  * @return The entry or -1 if timeout occurred or if the thread has been interrupted.
+  */
+    public int poll ( long timeout ) {
+	int v = poll();
+	if ( v >= 0 || timeout <= 0 ) return v;
+	final long deadline = System.nanoTime() + timeout;
+	waiter = Thread.currentThread();
+	try {
+	    while ( (v = poll()) < 0 ) {
+		long ns = deadline - System.nanoTime();
+		if ( ns <= 0 || Thread.currentThread().isInterrupted() ) break;
+		LockSupport.parkNanos(this, ns);
+	    }
+	}
+	finally {
+	    waiter = null;
+	}
+	return v;
+    }
+
+// ******* clear ***************************************************************
+/**
+  * Removes all entries. This method must only be called by the consumer.
+  */
+    public void clear () {
+	head.set(tail.get());
+    }
+
+// ******* size ****************************************************************
+/**
+  * Returns the number of entries.
+  * @return The number of entries.
+  */
+    public int size () {
+	return (int)(tail.get() - head.get());
+    }
+
+// ******* capacity ************************************************************
+/**
+  * Returns the capacity.
+  * @return The capacity.
+  */
+    public int capacity () {
+	return ring.length;
+    }
+}
@@ -0,0 +1,71 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+/**
+  * The durations of the phases of an FPGA configuration, see {@link Ztex1v1#configureFpgaHSPipelined(String,boolean,int)}.
+  * All values are in ns. Phases which were skipped (e.g. because the Bitstream was found in a {@link ZtexBitstreamCache}) are 0.
+  * If the upload had to be retried, transfer and finish times are accumulated over all attempts.
+  */
+
+// *****************************************************************************
+// ******* ZtexConfigurationTimes **********************************************
+// *****************************************************************************
+public class ZtexConfigurationTimes {
+    /** * Time required to read the Bitstream file (or to look it up in the cache). */
+    public long readTime = 0;
+    /** * Time required for hashing, bit order detection, bit swapping and checksum calculation. */
+    public long preprocessTime = 0;
+    /** * Time from the initialization of the configuration until the last transfer completed. */
+    public long transferTime = 0;
+    /** * Time required to finish the configuration and to verify the FPGA state. */
+    public long finishTime = 0;
+    /** * Number of upload attempts. */
+    public int tries = 0;
+
+// ******* totalTime ***********************************************************
+/**
+  * Returns the sum of all phases.
+  * @return The sum of all phases in ns.
+  */
+    public long totalTime () {
+	return readTime + preprocessTime + transferTime + finishTime;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string representation of the timings in ms.
+  * @return A string representation of the timings.
+  */
+    public String toString () {
+	return "read: " + ms(readTime) + " ms;  preprocess: " + ms(preprocessTime) + " ms;  transfer: " + ms(transferTime) + " ms;  finish: " + ms(finishTime) + " ms;  total: " + ms(totalTime()) + " ms"
+	    + ( tries > 1 ? " (" + tries + " tries)" : "" );
+    }
+
+    private static String ms ( long ns ) {
+	return String.format( "%.1f", ns * 1e-6 );
+    }
+}
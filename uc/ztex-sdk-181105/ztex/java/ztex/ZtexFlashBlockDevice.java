@@ -0,0 +1,360 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+   
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.util.*;
+
+/**
+  * Byte addressed random access to the Flash memory (or the 2nd Flash memory) of a device.
+  * <p>
+  * Flash memory can only be written in whole sectors. This class hides the sector structure: Data can be read and written
+  * at arbitrary addresses and lengths. Sectors are kept in a LRU cache whose size is limited by {@link #maxMemory}.
+  * Writes only modify the cached sectors; modified sectors are written back by {@link #flush()} or if they are evicted from the cache.
+  * Adjacent modified sectors are combined into multi-sector writes, and sectors whose content does not change are not written at all.
+  * Cache misses read all adjacent uncached sectors which can be transferred by a single request.
+  * <p>
+  * The cache is not coherent with other Flash accesses, e.g. by {@link Ztex1v1#flashWriteSector(int,int,byte[])} or
+  * {@link Ztex1v1#flashUploadBitstream(String)}. Call {@link #clear()} after such accesses.
+  * <p>
+  * Example:
+  * <pre>
+  * ZtexFlashBlockDevice flash = new ZtexFlashBlockDevice( ztex );
+  * byte[] id = new byte[16];
+  * flash.read( 0, id, 0, id.length );
+  * flash.write( 0x100004, new byte[] { 1, 2, 3 }, 0, 3 );
+  * flash.flush();
+  * </pre>
+  */
+
+// *****************************************************************************
+// ******* ZtexFlashBlockDevice ************************************************
+// *****************************************************************************
+public class ZtexFlashBlockDevice {
+    private final Ztex1v1 ztex;
+    private final boolean flash2;
+    private final int sectorSize;
+    private final int sectors;
+    private final int groupSize;		// number of sectors which are transferred by one request
+
+    // sector number -> data in access order
+    private final LinkedHashMap<Integer,byte[]> cache = new LinkedHashMap<Integer,byte[]>(16, 0.75f, true);
+    private final TreeSet<Integer> dirty = new TreeSet<Integer>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long sectorsRead = 0;
+    private long sectorsWritten = 0;
+    private long writeRequests = 0;
+
+    /**
+      * Maximum amount of memory used by the sector cache in bytes. At least the sectors of one request are cached. Default value is 1 MByte.
+      */
+    public volatile long maxMemory = 1 << 20;
+
+// ******* ZtexFlashBlockDevice ************************************************
+/**
+  * Creates a block device for the Flash memory or the 2nd Flash memory.
+  * @param p_ztex The device.
+  * @param p_flash2 If true the 2nd Flash memory is used.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  */
+    public ZtexFlashBlockDevice ( Ztex1v1 p_ztex, boolean p_flash2 ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	ztex = p_ztex;
+	flash2 = p_flash2;
+	if ( flash2 ) {
+	    if ( ! ztex.flash2Enabled() )
+		throw new CapabilityException(ztex, "No 2nd Flash installed or");
+	    sectorSize = ztex.flash2SectorSize();
+	    sectors = ztex.flash2Sectors();
+	}
+	else {
+	    if ( ! ztex.flashEnabled() )
+		throw new CapabilityException(ztex, "No Flash memory installed or");
+	    sectorSize = ztex.flashSectorSize();
+	    sectors = ztex.flashSectors();
+	}
+	groupSize = Math.max(1, 2048 / sectorSize);
+    }
+
+/**
+  * Creates a block device for the Flash memory.
+  * @param p_ztex The device.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  */
+    public ZtexFlashBlockDevice ( Ztex1v1 p_ztex ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	this( p_ztex, false );
+    }
+
+// ******* sectorSize **********************************************************
+/**
+  * Returns the sector size.
+  * @return The sector size in bytes.
+  */
+    public int sectorSize () {
+	return sectorSize;
+    }
+
+// ******* size ****************************************************************
+/**
+  * Returns the size of the Flash memory.
+  * @return The size of the Flash memory in bytes.
+  */
+    public long size () {
+	return (long) sectors * sectorSize;
+    }
+
+// ******* read ****************************************************************
+/**
+  * Reads data from the Flash memory.
+  * @param addr The Flash address.
+  * @param buf A buffer for the storage of the data.
+  * @param off The offset in buf.
+  * @param len The number of bytes to be read.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IndexOutOfBoundsException If the address range exceeds the Flash memory or the buffer.
+  */
+    public synchronized void read ( long addr, byte[] buf, int off, int len ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	checkRange( addr, buf, off, len );
+	while ( len > 0 ) {
+	    int s = (int) (addr / sectorSize);
+	    int o = (int) (addr % sectorSize);
+	    int l = Math.min( len, sectorSize-o );
+	    System.arraycopy( sector(s), o, buf, off, l );
+	    addr += l;
+	    off += l;
+	    len -= l;
+	}
+    }
+
+// ******* write ***************************************************************
+/**
+  * Writes data to the Flash memory.
+  * The data is written to the cache. Use {@link #flush()} in order to write it to the Flash memory.
+  * @param addr The Flash address.
+  * @param buf The data.
+  * @param off The offset in buf.
+  * @param len The number of bytes to be written.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IndexOutOfBoundsException If the address range exceeds the Flash memory or the buffer.
+  */
+    public synchronized void write ( long addr, byte[] buf, int off, int len ) throws UsbException, InvalidFirmwareException, CapabilityException, IndexOutOfBoundsException {
+	checkRange( addr, buf, off, len );
+	while ( len > 0 ) {
+	    int s = (int) (addr / sectorSize);
+	    int o = (int) (addr % sectorSize);
+	    int l = Math.min( len, sectorSize-o );
+	    byte[] b = cache.get(s);
+	    if ( b == null && l == sectorSize ) {	// whole sector is overwritten: no need to read it
+		b = new byte[sectorSize];
+		cache.put( s, b );
+		System.arraycopy( buf, off, b, 0, l );
+		dirty.add( s );
+		evict( s );
+	    }
+	    else {
+		if ( b == null )
+		    b = sector(s);
+		if ( ! Arrays.equals(buf, off, off+l, b, o, o+l) ) {
+		    System.arraycopy( buf, off, b, o, l );
+		    dirty.add( s );
+		}
+	    }
+	    addr += l;
+	    off += l;
+	    len -= l;
+	}
+    }
+
+// ******* flush ***************************************************************
+/**
+  * Writes all modified sectors to the Flash memory.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  */
+    public synchronized void flush () throws UsbException, InvalidFirmwareException, CapabilityException {
+	while ( ! dirty.isEmpty() )
+	    writeBack( dirty.first() );
+    }
+
+// ******* clear ***************************************************************
+/**
+  * Writes all modified sectors to the Flash memory and empties the cache.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  */
+    public synchronized void clear () throws UsbException, InvalidFirmwareException, CapabilityException {
+	flush();
+	cache.clear();
+    }
+
+// ******* hits ****************************************************************
+/**
+  * Returns the number of sector accesses which have been served from the cache.
+  * @return The number of cache hits.
+  */
+    public synchronized long hits () {
+	return hits;
+    }
+
+// ******* misses **************************************************************
+/**
+  * Returns the number of sector accesses which required a Flash read.
+  * @return The number of cache misses.
+  */
+    public synchronized long misses () {
+	return misses;
+    }
+
+// ******* hitRate *************************************************************
+/**
+  * Returns the cache hit rate.
+  * @return The hit rate between 0 and 1, or 0 if no access occurred.
+  */
+    public synchronized double hitRate () {
+	return hits+misses > 0 ? (double) hits / (hits+misses) : 0;
+    }
+
+// ******* sectorsRead *********************************************************
+/**
+  * Returns the number of sectors read from the Flash memory (including the ones read ahead).
+  * @return The number of sectors read from the Flash memory.
+  */
+    public synchronized long sectorsRead () {
+	return sectorsRead;
+    }
+
+// ******* sectorsWritten ******************************************************
+/**
+  * Returns the number of sectors written to the Flash memory.
+  * @return The number of sectors written to the Flash memory.
+  */
+    public synchronized long sectorsWritten () {
+	return sectorsWritten;
+    }
+
+// ******* writeRequests *******************************************************
+/**
+  * Returns the number of write requests, i.e. the number of sectors written divided by the average number of coalesced sectors.
+  * @return The number of write requests.
+  */
+    public synchronized long writeRequests () {
+	return writeRequests;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string with the cache statistics.
+  * @return A string with the cache statistics.
+  */
+    public synchronized String toString () {
+	return ( flash2 ? "Flash 2" : "Flash" ) + ": cached sectors: " + cache.size() + " (" + dirty.size() + " modified)  hits: " + hits + "  misses: " + misses
+	    + "  hit rate: " + Math.round(hitRate()*1000)/10.0 + "%  sectors read: " + sectorsRead + "  sectors written: " + sectorsWritten + " in " + writeRequests + " requests";
+    }
+
+// ******* checkRange **********************************************************
+    private void checkRange ( long addr, byte[] buf, int off, int len ) throws IndexOutOfBoundsException {
+	if ( addr < 0 || len < 0 || addr+len > size() )
+	    throw new IndexOutOfBoundsException( "Invalid Flash address range: " + addr + " + " + len + " > " + size() );
+	if ( off < 0 || off+len > buf.length )
+	    throw new IndexOutOfBoundsException( "Buffer to small: " + buf.length + " < " + (off+len) );
+    }
+
+// ******* sector **************************************************************
+// returns the cached sector, reads it and the following uncached sectors of the same request on cache misses
+    private byte[] sector ( int s ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	byte[] b = cache.get(s);
+	if ( b != null ) {
+	    hits++;
+	    return b;
+	}
+	misses++;
+	int n = 1;
+	while ( n<groupSize && s+n<sectors && !cache.containsKey(s+n) )
+	    n++;
+	byte[] buf = new byte[n*sectorSize];
+	if ( flash2 ) 
+	    ztex.flash2ReadSector( s, n, buf );
+	else
+	    ztex.flashReadSector( s, n, buf );
+	sectorsRead += n;
+	for ( int i=n-1; i>=0; i-- ) {		// the requested sector is inserted last, i.e. becomes the most recently used one
+	    b = Arrays.copyOfRange( buf, i*sectorSize, (i+1)*sectorSize );
+	    cache.put( s+i, b );
+	}
+	evict( s );
+	return b;
+    }
+
+// ******* evict ***************************************************************
+// evicts the least recently used sectors except keep if the memory limit is exceeded
+    private void evict ( int keep ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	long max = Math.max( groupSize, maxMemory / sectorSize );
+	while ( cache.size() > max ) {
+	    Integer e = cache.keySet().iterator().next();
+	    if ( e == keep )
+		break;
+	    if ( dirty.contains(e) ) 
+		writeBack( e );
+	    cache.remove( e );
+	}
+    }
+
+// ******* writeBack ***********************************************************
+// writes the modified sector s and the adjacent modified sectors
+    private void writeBack ( int s ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	int first = s;
+	while ( dirty.contains(first-1) )
+	    first--;
+	int last = s;
+	while ( dirty.contains(last+1) )
+	    last++;
+
+	byte[] buf = new byte[Math.min(groupSize, last-first+1) * sectorSize];
+	for ( int a=first; a<=last; a+=groupSize ) {
+	    int n = Math.min( groupSize, last-a+1 );
+	    for ( int i=0; i<n; i++ )
+		System.arraycopy( cache.get(a+i), 0, buf, i*sectorSize, sectorSize );
+	    if ( flash2 )
+		ztex.flash2WriteSector( a, n, buf );
+	    else
+		ztex.flashWriteSector( a, n, buf );
+	    for ( int i=0; i<n; i++ )
+		dirty.remove( a+i );
+	    sectorsWritten += n;
+	    writeRequests++;
+	}
+    }
+}
@@ -0,0 +1,439 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.*;
+
+/**
+  * Flash memory images with per-sector checksums.
+  * <p>
+  * An image consists of the raw content of the Flash memory (or the 2nd Flash memory) and a sidecar index file with the
+  * suffix {@link #INDEX_SUFFIX}. The index contains the geometry of the Flash memory, a CRC-32C checksum of each sector
+  * and the progress of the last dump and restore operation. Image files are accessed using memory mapping in windows of 1 MByte,
+  * i.e. images can be larger than the address space.
+  * <p>
+  * {@link #dump(Ztex1v1,boolean,String,boolean,ZtexProgressListener)} reads the Flash memory directly into the mapped image file.
+  * The progress is recorded after each window has been written to disk, thus an interrupted dump can be resumed from the last verified sector.
+  * <p>
+  * {@link #restore(Ztex1v1,boolean,String,boolean,ZtexProgressListener)} reads the Flash memory, compares the checksums and
+  * only writes the sectors which differ. Written sectors are read back and verified. An interrupted restore can be resumed.
+  * Since the progress is stored in the index, an interrupted restore should only be resumed on the same device.
+  * <p>
+  * Example:
+  * <pre>
+  * ZtexFlashImage.dump( ztex, false, "flash.img", true, null );	// creates flash.img and flash.img.idx
+  * ...
+  * int written = ZtexFlashImage.restore( ztex, false, "flash.img", true, null );
+  * </pre>
+  */
+
+// *****************************************************************************
+// ******* ZtexFlashImage ******************************************************
+// *****************************************************************************
+public class ZtexFlashImage {
+/** * Suffix of the index file. */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x5a464931;	// "ZFI1"
+    private static final int HEADER_SIZE = 32;		// magic, sector size, sectors, dumped sectors, restored sectors, reserved
+    private static final int WINDOW = 1 << 20;
+
+    private final int sectorSize;
+    private final int sectors;
+    private final int winSectors;
+    private final FileChannel image;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+
+// ******* ZtexFlashImage ******************************************************
+// opens an image, if create is true an image with a different geometry or a missing image is (re)created
+    private ZtexFlashImage ( String fileName, int p_sectorSize, int p_sectors, boolean create ) throws IOException {
+	sectorSize = p_sectorSize;
+	sectors = p_sectors;
+	winSectors = Math.max(1, WINDOW / sectorSize);
+	long indexSize = HEADER_SIZE + 4L*sectors;
+	long imageSize = (long)sectors * sectorSize;
+	File idx = new File( fileName + INDEX_SUFFIX );
+	if ( !create && !idx.exists() )
+	    throw new FileNotFoundException( "Image index not found: " + idx.getPath() );
+
+	image = create ? FileChannel.open( new File(fileName).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE )
+		       : FileChannel.open( new File(fileName).toPath(), StandardOpenOption.READ );
+	FileChannel ic = null;
+	try {
+	    ic = FileChannel.open( idx.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+	    boolean valid = ic.size() == indexSize;
+	    if ( !valid && !create )
+		throw new IOException( idx.getPath() + ": Invalid index size" );
+	    if ( ic.size() > indexSize )
+		ic.truncate( indexSize );
+	    index = ic.map( FileChannel.MapMode.READ_WRITE, 0, indexSize );
+	    valid = valid && index.getInt(0) == MAGIC && index.getInt(4) == sectorSize && index.getInt(8) == sectors;
+	    if ( ! valid ) {
+		if ( ! create )
+		    throw new IOException( idx.getPath() + ": Image geometry does not match: expected " + sectors + " sectors of " + sectorSize + " bytes" );
+		index.putInt( 0, MAGIC );
+		index.putInt( 4, sectorSize );
+		index.putInt( 8, sectors );
+		index.putInt( 12, 0 );
+		index.putInt( 16, 0 );
+		index.force();
+	    }
+	    if ( create && image.size() > imageSize )
+		image.truncate( imageSize );
+	    if ( !create && image.size() != imageSize )
+		throw new IOException( fileName + ": Invalid image size: " + image.size() + ", expected " + imageSize );
+	}
+	catch ( IOException e ) {
+	    image.close();
+	    if ( ic != null ) ic.close();
+	    throw e;
+	}
+	indexChannel = ic;
+    }
+
+// ******* close ***************************************************************
+    private void close () {
+	try {
+	    image.close();
+	}
+	catch ( IOException e ) {
+	}
+	try {
+	    indexChannel.close();
+	}
+	catch ( IOException e ) {
+	}
+    }
+
+// ******* index access ********************************************************
+    private int dumped () {
+	return index.getInt(12);
+    }
+
+    private void setDumped ( int n ) {
+	index.putInt( 12, n );
+	index.force();
+    }
+
+    private int restored () {
+	return index.getInt(16);
+    }
+
+    private void setRestored ( int n ) {
+	index.putInt( 16, n );
+	index.force();
+    }
+
+    private int crc ( int sector ) {
+	return index.getInt( HEADER_SIZE + 4*sector );
+    }
+
+    private void setCrc ( int sector, int crc ) {
+	index.putInt( HEADER_SIZE + 4*sector, crc );
+    }
+
+// ******* crc *****************************************************************
+// computes the CRC-32C checksum of a sector
+    private static int crc ( ByteBuffer buf, int off, int len ) {
+	CRC32C c = new CRC32C();
+	ByteBuffer b = buf.duplicate();
+	b.limit( off+len );
+	b.position( off );
+	c.update( b );
+	return (int) c.getValue();
+    }
+
+    private static int crc ( byte[] buf, int off, int len ) {
+	CRC32C c = new CRC32C();
+	c.update( buf, off, len );
+	return (int) c.getValue();
+    }
+
+// ******* window **************************************************************
+// maps the window starting at sector first
+    private MappedByteBuffer window ( int first, FileChannel.MapMode mode ) throws IOException {
+	return image.map( mode, (long)first*sectorSize, (long)Math.min(winSectors, sectors-first)*sectorSize );
+    }
+
+// ******* verified ************************************************************
+// returns the number of leading sectors (up to n) whose content matches the checksums
+    private int verified ( int n ) throws IOException {
+	for ( int w=0; w<n; w+=winSectors ) {
+	    MappedByteBuffer win = window( w, FileChannel.MapMode.READ_ONLY );
+	    for ( int s=w; s<n && s<w+winSectors; s++ )
+		if ( crc(win, (s-w)*sectorSize, sectorSize) != crc(s) )
+		    return s;
+	}
+	return n;
+    }
+
+// ******* DumpChannel *********************************************************
+// writes the received data into the image, computes the checksums and records the progress after each window
+    private class DumpChannel implements WritableByteChannel {
+	private int sector;
+	private int fill = 0;
+	private int winFirst = -1;
+	private MappedByteBuffer win = null;
+
+	DumpChannel ( int first ) {
+	    sector = first;
+	}
+
+	public int write ( ByteBuffer src ) throws IOException {
+	    int r = src.remaining();
+	    while ( src.hasRemaining() ) {
+		if ( win == null || sector >= winFirst+winSectors ) {
+		    winFirst = sector;
+		    win = window( winFirst, FileChannel.MapMode.READ_WRITE );
+		}
+		int l = Math.min( src.remaining(), sectorSize-fill );
+		ByteBuffer part = src.duplicate();
+		part.limit( part.position()+l );
+		win.position( (sector-winFirst)*sectorSize + fill );
+		win.put( part );
+		src.position( src.position()+l );
+		fill += l;
+		if ( fill == sectorSize ) {
+		    setCrc( sector, crc(win, (sector-winFirst)*sectorSize, sectorSize) );
+		    sector++;
+		    fill = 0;
+		    if ( sector == winFirst+winSectors || sector == sectors ) {	// the window must be on disk before it is recorded as dumped
+			win.force();
+			index.force();
+			setDumped( sector );
+		    }
+		}
+	    }
+	    return r;
+	}
+
+	public boolean isOpen () {
+	    return true;
+	}
+
+	public void close () {
+	}
+    }
+
+// ******* ArrayChannel ********************************************************
+// writes the received data into an array
+    private static class ArrayChannel implements WritableByteChannel {
+	private final byte[] buf;
+	private int pos = 0;
+
+	ArrayChannel ( byte[] p_buf ) {
+	    buf = p_buf;
+	}
+
+	public int write ( ByteBuffer src ) {
+	    int r = src.remaining();
+	    src.get( buf, pos, r );
+	    pos += r;
+	    return r;
+	}
+
+	public boolean isOpen () {
+	    return true;
+	}
+
+	public void close () {
+	}
+    }
+
+// ******* geometry ************************************************************
+// returns sector size and number of sectors
+    private static int[] geometry ( Ztex1v1 ztex, boolean flash2 ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	if ( flash2 ) {
+	    if ( ! ztex.flash2Enabled() )
+		throw new CapabilityException(ztex, "No 2nd Flash installed or");
+	    return new int[] { ztex.flash2SectorSize(), ztex.flash2Sectors() };
+	}
+	if ( ! ztex.flashEnabled() )
+	    throw new CapabilityException(ztex, "No Flash memory installed or");
+	return new int[] { ztex.flashSectorSize(), ztex.flashSectors() };
+    }
+
+// ******* dump ****************************************************************
+/**
+  * Dumps the Flash memory into an image file.
+  * The data is read using read-ahead (see {@link Ztex1v1#flashRead(int,int,WritableByteChannel,ZtexProgressListener)}) and written
+  * directly into the memory mapped image file.
+  * @param ztex The device.
+  * @param flash2 If true the 2nd Flash memory is dumped.
+  * @param fileName The name of the image file. The index is stored in fileName+{@link #INDEX_SUFFIX}.
+  * @param resume If true and the index describes an incomplete dump of a Flash memory with the same geometry, the dump is continued
+  *        after the last sector which matches its checksum. Otherwise the whole Flash memory is dumped.
+  * @param listener Informed about the progress, or null.
+  * @return The number of sectors read from the Flash memory.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IOException if an error occurred while accessing the image files.
+  */
+    public static int dump ( Ztex1v1 ztex, boolean flash2, String fileName, boolean resume, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	ztex.beginSequence();
+	try {
+	    int[] g = geometry( ztex, flash2 );
+	    ZtexFlashImage img = new ZtexFlashImage( fileName, g[0], g[1], true );
+	    try {
+		int first = 0;
+		if ( resume && img.dumped() < img.sectors )
+		    first = img.verified( img.dumped() );
+		img.setDumped( first );
+		int num = img.sectors - first;
+		if ( num > 0 ) {
+		    DumpChannel ch = img.new DumpChannel( first );
+		    if ( flash2 )
+			ztex.flash2Read( first, num, ch, listener );
+		    else
+			ztex.flashRead( first, num, ch, listener );
+		}
+		return num;
+	    }
+	    finally {
+		img.close();
+	    }
+	}
+	finally {
+	    ztex.endSequence();
+	}
+    }
+
+// ******* restore *************************************************************
+/**
+  * Restores the Flash memory from an image file.
+  * The Flash memory is read window by window and only sectors whose checksum differs from the image are written.
+  * Written sectors are read back and verified.
+  * @param ztex The device.
+  * @param flash2 If true the 2nd Flash memory is restored.
+  * @param fileName The name of the image file. The index is read from fileName+{@link #INDEX_SUFFIX}.
+  * @param resume If true and the index describes an incomplete restore, the restore is continued after the last verified window.
+  * @param listener Informed about the progress, or null.
+  * @return The number of sectors written.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs or if the verification failed.
+  * @throws CapabilityException if Flash memory access is not possible.
+  * @throws IOException if an error occurred while accessing the image files, if the image is incomplete or if its geometry does not match.
+  */
+    public static int restore ( Ztex1v1 ztex, boolean flash2, String fileName, boolean resume, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	ztex.beginSequence();
+	try {
+	    int[] g = geometry( ztex, flash2 );
+	    ZtexFlashImage img = new ZtexFlashImage( fileName, g[0], g[1], false );
+	    try {
+		return img.restore( ztex, flash2, resume, listener );
+	    }
+	    finally {
+		img.close();
+	    }
+	}
+	finally {
+	    ztex.endSequence();
+	}
+    }
+
+    private int restore ( Ztex1v1 ztex, boolean flash2, boolean resume, ZtexProgressListener listener ) throws UsbException, InvalidFirmwareException, CapabilityException, IOException {
+	if ( dumped() < sectors )
+	    throw new IOException( "Incomplete image: " + dumped() + " of " + sectors + " sectors" );
+	int first = resume && restored() < sectors ? restored() : 0;
+	setRestored( first );
+
+	int nz = Math.max(1, 2048 / sectorSize);	// maximum number of sectors per write request
+	byte[] cur = new byte[winSectors * sectorSize];
+	byte[] buf = new byte[nz * sectorSize];
+	long total = (long)sectors * sectorSize;
+	int written = 0;
+	for ( int w=first; w<sectors; w+=winSectors ) {
+	    int n = Math.min( winSectors, sectors-w );
+	    if ( flash2 )
+		ztex.flash2Read( w, n, new ArrayChannel(cur), null );
+	    else
+		ztex.flashRead( w, n, new ArrayChannel(cur), null );
+
+	    MappedByteBuffer win = null;
+	    int i = 0;
+	    while ( i < n ) {
+		if ( crc(cur, i*sectorSize, sectorSize) == crc(w+i) ) {
+		    i++;
+		    continue;
+		}
+		int k = i+1;
+		while ( k<n && k-i<nz && crc(cur, k*sectorSize, sectorSize) != crc(w+k) )
+		    k++;
+		if ( win == null )
+		    win = window( w, FileChannel.MapMode.READ_ONLY );
+		win.position( i*sectorSize );
+		win.get( buf, 0, (k-i)*sectorSize );
+		if ( flash2 ) {
+		    ztex.flash2WriteSector( w+i, k-i, buf );
+		    ztex.flash2ReadSector( w+i, k-i, buf );
+		}
+		else {
+		    ztex.flashWriteSector( w+i, k-i, buf );
+		    ztex.flashReadSector( w+i, k-i, buf );
+		}
+		for ( int j=0; j<k-i; j++ )
+		    if ( crc(buf, j*sectorSize, sectorSize) != crc(w+i+j) )
+			throw new UsbException( "Flash Write: Verification of sector " + (w+i+j) + " failed" );
+		written += k-i;
+		i = k;
+	    }
+
+	    setRestored( w+n );
+	    if ( listener != null )
+		listener.progress( (long)(w+n) * sectorSize, total );
+	}
+	return written;
+    }
+
+// ******* verify **************************************************************
+/**
+  * Verifies an image file against the checksums of its index.
+  * @param fileName The name of the image file. The index is read from fileName+{@link #INDEX_SUFFIX}.
+  * @return The number of leading sectors which have been dumped and match their checksums. If the image is complete and valid, this is the number of sectors of the Flash memory.
+  * @throws IOException if an error occurred while accessing the image files or if the index is invalid.
+  */
+    public static int verify ( String fileName ) throws IOException {
+	ByteBuffer h = ByteBuffer.allocate( HEADER_SIZE );
+	try ( FileChannel ch = FileChannel.open( new File(fileName + INDEX_SUFFIX).toPath(), StandardOpenOption.READ ) ) {
+	    while ( h.hasRemaining() && ch.read(h) >= 0 ) ;
+	}
+	if ( h.hasRemaining() || h.getInt(0) != MAGIC || h.getInt(4) <= 0 || h.getInt(8) < 0 )
+	    throw new IOException( fileName + INDEX_SUFFIX + ": Invalid index" );
+	ZtexFlashImage img = new ZtexFlashImage( fileName, h.getInt(4), h.getInt(8), false );
+	try {
+	    return img.verified( img.dumped() );
+	}
+	finally {
+	    img.close();
+	}
+    }
+}
@@ -0,0 +1,323 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+  * A striped volume consisting of the Flash memory and the 2nd Flash memory of a device.
+  * <p>
+  * Logical sectors (stripe units) are interleaved between both Flash memories: even sectors are stored in the Flash memory, odd sectors
+  * in the 2nd Flash memory. The size of a logical sector is the larger one of both physical sector sizes. A logical sector occupies
+  * one physical sector of the Flash memory with the larger sectors and several consecutive physical sectors of the other one,
+  * e.g. 128 sectors of 512 bytes (SD card) per 64 KByte sector (SPI Flash). Thus logical sector n is stored in the physical sectors
+  * (n/2)*m ... (n/2)*m+m-1 of Flash memory n%2, where m is the logical sector size divided by the physical sector size of that memory.
+  * The sector sizes must be powers of two. The size of the volume is twice the size of the smaller Flash memory.
+  * <p>
+  * Transfers are performed using asynchronous control transfers which alternate between both Flash memories: while one
+  * memory erases or programs a sector, the data for the other one is transferred. Up to {@link #queueDepth} requests are
+  * kept in flight. If the physical sector size of a Flash memory is larger than 2048 bytes, its sectors are transferred by a sequence
+  * of requests; in this case only one request of that Flash memory is in flight.
+  * <p>
+  * Example:
+  * <pre>
+  * ZtexFlashStripe stripe = new ZtexFlashStripe( ztex );
+  * byte[] buf = new byte[stripe.sectorSize()*16];
+  * stripe.readSector( 0, 16, buf );
+  * stripe.writeSector( 0, 16, buf );
+  * </pre>
+  */
+
+// *****************************************************************************
+// ******* ZtexFlashStripe *****************************************************
+// *****************************************************************************
+public class ZtexFlashStripe {
+    private final Ztex1v1 ztex;
+    private final int sectorSize;	// logical sector size (stripe unit)
+    private final int sectors;
+    private final int[] ss = new int[2];	// physical sector sizes
+    private final int[] m = new int[2];		// physical sectors per logical sector
+    private final boolean[] large = new boolean[2];	// true if physical sectors are transferred by more than one request
+    private final int[] nz = new int[2];	// maximum number of physical sectors per request
+    private final int[] iz = new int[2];	// number of 2048 byte parts of a large physical sector minus 1
+
+    /**
+      * Maximum number of requests in flight (both Flash memories together). Default value is 8.
+      */
+    public volatile int queueDepth = 8;
+
+// ******* Request *************************************************************
+// a submitted request of count physical sectors starting at sector, the payload of each sector is located at
+// offset(chip,sector+i,...)+off in the user buffer and has a length of len bytes
+    private static class Request {
+	final int chip;
+	final int sector;
+	final int off;
+	final int count;
+	final int len;
+	CompletableFuture<ByteBuffer> future;
+
+	Request ( int p_chip, int p_sector, int p_off, int p_count, int p_len ) {
+	    chip = p_chip;
+	    sector = p_sector;
+	    off = p_off;
+	    count = p_count;
+	    len = p_len;
+	}
+    }
+
+// ******* ZtexFlashStripe *****************************************************
+/**
+  * Creates a striped volume for a device with two Flash memories.
+  * @param p_ztex The device.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws CapabilityException if access to one of the Flash memories is not possible or if the sector sizes are not powers of two.
+  */
+    public ZtexFlashStripe ( Ztex1v1 p_ztex ) throws UsbException, InvalidFirmwareException, CapabilityException {
+	ztex = p_ztex;
+	if ( ! ztex.flashEnabled() )
+	    throw new CapabilityException(ztex, "No Flash memory installed or");
+	if ( ! ztex.flash2Enabled() )
+	    throw new CapabilityException(ztex, "No 2nd Flash installed or");
+	ss[0] = ztex.flashSectorSize();
+	ss[1] = ztex.flash2SectorSize();
+	sectorSize = Math.max( ss[0], ss[1] );
+	for ( int c=0; c<2; c++ ) {
+	    if ( ss[c] < 1 || Integer.bitCount(ss[c]) != 1 )
+		throw new CapabilityException(ztex, "Striping of Flash memories with sector size " + ss[c]);
+	    m[c] = sectorSize / ss[c];
+	    large[c] = ss[c] > 2048;
+	    nz[c] = Math.max(1, 2048 / ss[c]);
+	    iz[c] = (ss[c]-1) >> 11;
+	}
+	sectors = 2 * Math.min( ztex.flashSectors() / m[0], ztex.flash2Sectors() / m[1] );
+    }
+
+// ******* sectorSize **********************************************************
+/**
+  * Returns the logical sector size, i.e. the larger one of both physical sector sizes.
+  * @return The logical sector size in bytes.
+  */
+    public int sectorSize () {
+	return sectorSize;
+    }
+
+// ******* sectors *************************************************************
+/**
+  * Returns the number of logical sectors.
+  * @return The number of logical sectors.
+  */
+    public int sectors () {
+	return sectors;
+    }
+
+// ******* sectorsPerUnit ******************************************************
+/**
+  * Returns the number of physical sectors of a Flash memory per logical sector.
+  * @param chip 0 for the Flash memory, 1 for the 2nd Flash memory.
+  * @return The number of physical sectors per logical sector.
+  */
+    public int sectorsPerUnit ( int chip ) {
+	return m[chip];
+    }
+
+// ******* size ****************************************************************
+/**
+  * Returns the size of the volume.
+  * @return The size of the volume in bytes.
+  */
+    public long size () {
+	return (long) sectors * sectorSize;
+    }
+
+// ******* readSector **********************************************************
+/**
+  * Reads an integer number of logical sectors.
+  * @param sector The number of the first logical sector to be read.
+  * @param num The number of sectors to be read.
+  * @param buf A buffer for the storage of the data.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws IndexOutOfBoundsException If the buffer is to small or the sectors are out of range.
+  */
+    public void readSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, IndexOutOfBoundsException {
+	transfer( false, sector, num, buf );
+    }
+
+// ******* writeSector *********************************************************
+/**
+  * Writes an integer number of logical sectors.
+  * @param sector The number of the first logical sector to be written.
+  * @param num The number of sectors to be written.
+  * @param buf The data.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws UsbException if a communication error occurs.
+  * @throws IndexOutOfBoundsException If the buffer is to small or the sectors are out of range.
+  */
+    public void writeSector ( int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, IndexOutOfBoundsException {
+	transfer( true, sector, num, buf );
+    }
+
+// ******* transfer ************************************************************
+    private void transfer ( boolean write, int sector, int num, byte[] buf ) throws UsbException, InvalidFirmwareException, IndexOutOfBoundsException {
+	if ( num<1 ) return;
+	if ( buf.length < sectorSize*num )
+	    throw new IndexOutOfBoundsException( "Buffer to small: " + buf.length + " < " + (num*sectorSize));
+	if ( sector<0 || sector+num>sectors )
+	    throw new IndexOutOfBoundsException( "Invalid sector range: " + sector + ".." + (sector+num-1) + ", volume has " + sectors + " sectors" );
+
+	// physical sector ranges of both Flash memories
+	int[] next = new int[2];
+	int[] end = new int[2];
+	int[] part = new int[2];
+	int[] inFlight = new int[2];
+	int[] perChip = new int[2];
+	for ( int c=0; c<2; c++ ) {
+	    int first = sector + ((c-sector) & 1);
+	    next[c] = (first >> 1) * m[c];
+	    end[c] = first < sector+num ? (((sector+num-1-c) >> 1) + 1) * m[c] : next[c];
+	    // the order of the requests of one Flash memory is preserved if only one request is in flight
+	    perChip[c] = large[c] ? 1 : Math.max(1, (queueDepth+1) / 2);
+	}
+
+	ArrayDeque<Request> queue = new ArrayDeque<Request>();
+	Request failed = null;
+	Throwable error = null;
+	boolean interrupted = false;
+	int oto = ztex.controlMsgTimeout;
+	if ( write )
+	    ztex.controlMsgTimeout = 12000;	// erase may take long
+	ztex.beginSequence();
+	ZtexEventHandler eventHandler = new ZtexEventHandler(ztex);
+	eventHandler.start();
+	try {
+	    while ( true ) {
+		// submit requests alternately to both Flash memories
+		boolean submitted = true;
+		while ( submitted ) {
+		    submitted = false;
+		    for ( int c=0; c<2; c++ ) {
+			if ( next[c] < end[c] && inFlight[c] < perChip[c] ) {
+			    queue.add( submit(write, c, next, end, part, sector, buf) );
+			    inFlight[c]++;
+			    submitted = true;
+			}
+		    }
+		}
+
+		if ( queue.isEmpty() )
+		    break;
+		Request r = queue.poll();
+		inFlight[r.chip]--;
+		ByteBuffer b;
+		try {
+		    b = r.future.get();
+		}
+		catch ( ExecutionException e ) {
+		    failed = r;
+		    error = e.getCause() != null ? e.getCause() : e;
+		    break;
+		}
+		catch ( InterruptedException e ) {
+		    failed = r;
+		    error = e;
+		    interrupted = true;
+		    break;
+		}
+		if ( ! write ) {
+		    for ( int i=0; i<r.count; i++ )
+			b.get( buf, offset(r.chip, r.sector+i, sector) + r.off, r.len );
+		}
+	    }
+	}
+	finally {
+	    while ( ! queue.isEmpty() ) {		// wait until all pending requests are finished
+		try {
+		    queue.poll().future.get();
+		}
+		catch ( InterruptedException e ) {
+		    interrupted = true;
+		}
+		catch ( ExecutionException e ) {
+		}
+	    }
+	    eventHandler.terminate();
+	    if ( interrupted )
+		Thread.currentThread().interrupt();
+	    ztex.controlMsgTimeout = oto;
+	    ztex.endSequence();
+	}
+
+	if ( failed != null )
+	    throw new UsbException( ztex.dev().dev(), (failed.chip==0 ? "Flash" : "Flash 2") + (write ? " Write" : " Read"), error );
+    }
+
+// ******* offset **************************************************************
+// returns the buffer offset of physical sector p of Flash memory c if the transfer starts at logical sector 'sector'
+    private int offset ( int c, int p, int sector ) {
+	return (2*(p / m[c]) + c - sector) * sectorSize + (p % m[c]) * ss[c];
+    }
+
+// ******* submit **************************************************************
+// submits the next request of Flash memory c
+    private Request submit ( boolean write, int c, int[] next, int[] end, int[] part, int sector, byte[] buf ) {
+	int cmd = write ? (c==0 ? 0x42 : 0x46) : (c==0 ? 0x41 : 0x45);
+	String func = (c==0 ? "Flash" : "Flash 2") + (write ? " Write" : " Read");
+	int p = next[c];
+	Request r;
+	if ( large[c] ) {
+	    int pt = part[c];
+	    int len = pt<iz[c] ? 2048 : ss[c]-iz[c]*2048;
+	    int index = pt==0 ? 0 : pt<iz[c] ? 256 : 512;
+	    r = new Request( c, p, pt*2048, 1, len );
+	    r.future = write ? ztex.vendorCommandAsync( cmd, func, p, index, ByteBuffer.wrap(buf, offset(c, p, sector) + r.off, len).slice() )
+			     : ztex.vendorRequest2Async( cmd, func, p, index, len );
+	    if ( ++part[c] > iz[c] ) {
+		part[c] = 0;
+		next[c]++;
+	    }
+	}
+	else {
+	    int n = Math.min( nz[c], end[c]-p );
+	    r = new Request( c, p, 0, n, ss[c] );
+	    if ( write ) {
+		ByteBuffer b = ByteBuffer.allocate( n*ss[c] );
+		for ( int i=0; i<n; i++ )
+		    b.put( buf, offset(c, p+i, sector), ss[c] );
+		b.clear();
+		r.future = ztex.vendorCommandAsync( cmd, func, p, p >> 16, b );
+	    }
+	    else {
+		r.future = ztex.vendorRequest2Async( cmd, func, p, p >> 16, n*ss[c] );
+	    }
+	    next[c] += n;
+	}
+	return r;
+    }
+}
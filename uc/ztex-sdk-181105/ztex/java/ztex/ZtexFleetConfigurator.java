@@ -0,0 +1,291 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.usb4java.*;
+
+/**
+  * Configures the FPGA's of a set of devices concurrently.
+  * <p>
+  * The Bitstream is preprocessed once and the resulting {@link ZtexBitstream} is shared read-only by all devices.
+  * The number of devices which are configured at the same time is limited per USB bus (i.e. per host controller) by {@link #maxPerBus}.
+  * Results are collected per device, failures of individual devices do not affect the other ones.
+  * <p>
+  * Example:
+  * <pre>
+  * ZtexScanBus1 bus = new ZtexScanBus1( ZtexDevice1.ztexVendorId, -1, false, false, 1 );
+  * ZtexFleetConfigurator fleet = new ZtexFleetConfigurator( bus, null );
+  * bus.unref();
+  * ZtexFleetConfigurator.Result[] results = fleet.configure( "fpga.bit", -1, false, true, null );
+  * fleet.close();
+  * </pre>
+  */
+
+// *****************************************************************************
+// ******* ZtexFleetConfigurator ***********************************************
+// *****************************************************************************
+public class ZtexFleetConfigurator {
+
+/**
+  * The result of the configuration of a single device.
+  */
+    public static class Result {
+	/** * The device. */
+	public final ZtexDevice1 device;
+	/** * Configuration time in ms as returned by {@link Ztex1v1#configureFpga(ZtexBitstream,boolean)}, -1 if the configuration was skipped or failed. */
+	public final long configurationTime;
+	/** * Total time in ms including opening the device and waiting for a free slot on the USB bus. */
+	public final long totalTime;
+	/** * The error or null if the configuration was successful. */
+	public final Exception error;
+
+	private Result ( ZtexDevice1 p_device, long p_configurationTime, long p_totalTime, Exception p_error ) {
+	    device = p_device;
+	    configurationTime = p_configurationTime;
+	    totalTime = p_totalTime;
+	    error = p_error;
+	}
+
+/**
+  * Returns true if the configuration was successful or skipped.
+  * @return true if the configuration was successful or skipped.
+  */
+	public boolean ok () {
+	    return error == null;
+	}
+
+/**
+  * Returns true if the configuration was skipped because the FPGA was already configured with the Bitstream.
+  * @return true if the configuration was skipped.
+  */
+	public boolean skipped () {
+	    return error == null && configurationTime < 0;
+	}
+
+/**
+  * Returns a string representation of the result.
+  * @return A string representation of the result.
+  */
+	public String toString () {
+	    String sn = device.valid() ? device.snString() : "";
+	    return device.name() + "  sn=" + sn + ":  "
+		+ ( error != null ? "failed: " + error.getLocalizedMessage() : skipped() ? "already configured" : "configuration time: " + configurationTime + " ms" )
+		+ "  (total: " + totalTime + " ms)";
+	}
+    }
+
+/**
+  * A listener which is informed about progress. It is called by the thread which invoked {@link ZtexFleetConfigurator#configure(ZtexBitstream,boolean,boolean,ProgressListener)}.
+  */
+    public interface ProgressListener {
+/**
+  * Called after a device has been finished.
+  * @param result The result of the device.
+  * @param finished Number of devices finished so far.
+  * @param total Total number of devices.
+  */
+	public void progress ( Result result, int finished, int total );
+    }
+
+    /**
+      * Maximum number of concurrent configurations per USB bus. Default value is 2.
+      */
+    public int maxPerBus = 2;
+
+    private final ZtexDevice1[] devices;
+    private boolean closed = false;
+
+// ******* ZtexFleetConfigurator ***********************************************
+/**
+  * Creates the configurator for a given set of devices. The devices are referenced until {@link #close()} is called.
+  * @param p_devices The devices.
+  * @throws UsbException if an error occurred while referencing the devices.
+  */
+    public ZtexFleetConfigurator ( ZtexDevice1[] p_devices ) throws UsbException {
+	devices = p_devices.clone();
+	for (int i=0; i<devices.length; i++ ) {
+	    try {
+		devices[i].ref();
+	    }
+	    catch ( UsbException e ) {
+		for (int j=0; j<i; j++ )
+		    devices[j].unref();
+		throw e;
+	    }
+	}
+    }
+
+/**
+  * Creates the configurator for the devices found by a bus scan. The devices are referenced until {@link #close()} is called, i.e.
+  * the scan result may be released after the configurator has been created.
+  * @param bus The result of a bus scan.
+  * @param snStrings If not null, only devices with one of these serial numbers are used.
+  * @throws UsbException if an error occurred while referencing the devices.
+  */
+    public ZtexFleetConfigurator ( ZtexScanBus1 bus, Collection<String> snStrings ) throws UsbException {
+	this( select(bus, snStrings) );
+    }
+
+// ******* select **************************************************************
+    private static ZtexDevice1[] select ( ZtexScanBus1 bus, Collection<String> snStrings ) {
+	ArrayList<ZtexDevice1> l = new ArrayList<ZtexDevice1>();
+	for (int i=0; i<bus.numberOfDevices(); i++ ) {
+	    ZtexDevice1 dev = bus.device(i);
+	    if ( snStrings == null || ( dev.valid() && snStrings.contains(dev.snString()) ) )
+		l.add(dev);
+	}
+	return l.toArray( new ZtexDevice1[l.size()] );
+    }
+
+// ******* size ****************************************************************
+/**
+  * Returns the number of devices.
+  * @return The number of devices.
+  */
+    public int size () {
+	return devices.length;
+    }
+
+// ******* configure ***********************************************************
+/**
+  * Configures the FPGA's of all devices using high speed mode (if available) or low speed mode.
+  * @param bitstream The preprocessed Bitstream, see {@link ZtexBitstreamCache}.
+  * @param force If set to true existing configurations will be overwritten.
+  * @param ifDifferent If set to true, the configuration is skipped on devices which are already configured with the Bitstream, see {@link Ztex1v1#configureFpgaIfDifferent(ZtexBitstream)}.
+  * @param listener The progress listener. May be null.
+  * @return The results in the order of the devices.
+  * @throws InterruptedException if the calling thread has been interrupted. In this case pending configurations are cancelled.
+  */
+    public Result[] configure ( final ZtexBitstream bitstream, final boolean force, final boolean ifDifferent, ProgressListener listener ) throws InterruptedException {
+	if ( closed )
+	    throw new IllegalStateException("Configurator closed");
+
+	final HashMap<Integer,Semaphore> slots = new HashMap<Integer,Semaphore>();
+	for ( ZtexDevice1 dev : devices ) {
+	    int b = LibUsb.getBusNumber(dev.dev());
+	    if ( ! slots.containsKey(b) ) slots.put(b, new Semaphore( Math.max(1, maxPerBus) ));
+	}
+
+	Result[] results = new Result[devices.length];
+	if ( devices.length == 0 )
+	    return results;
+	ExecutorService executor = Executors.newFixedThreadPool( Math.min(devices.length, slots.size()*Math.max(1, maxPerBus)), new ThreadFactory() {
+	    public Thread newThread ( Runnable r ) {
+		Thread t = new Thread(r, "ZtexFleetConfigurator");
+		t.setDaemon(true);
+		return t;
+	    }
+	} );
+	ExecutorCompletionService<Integer> ecs = new ExecutorCompletionService<Integer>(executor);
+	final Result[] r = results;
+	try {
+	    for (int i=0; i<devices.length; i++ ) {
+		final int idx = i;
+		ecs.submit( new Callable<Integer>() {
+		    public Integer call() throws InterruptedException {
+			ZtexDevice1 dev = devices[idx];
+			Semaphore s = slots.get( LibUsb.getBusNumber(dev.dev()) );
+			long t0 = System.nanoTime();
+			s.acquire();
+			Ztex1v1 ztex = null;
+			try {
+			    ztex = new Ztex1v1(dev);
+			    long t = ifDifferent ? ztex.configureFpgaIfDifferent(bitstream) : ztex.configureFpga(bitstream, force);
+			    r[idx] = new Result( dev, t, (System.nanoTime()-t0)/1000000, null );
+			}
+			catch ( Exception e ) {
+			    r[idx] = new Result( dev, -1, (System.nanoTime()-t0)/1000000, e );
+			}
+			finally {
+			    if ( ztex != null ) ztex.dispose();
+			    s.release();
+			}
+			return idx;
+		    }
+		} );
+	    }
+
+	    for (int i=0; i<devices.length; i++ ) {
+		int idx;
+		try {
+		    idx = ecs.take().get();
+		}
+		catch ( ExecutionException e ) {	// shouldn't occur
+		    continue;
+		}
+		if ( listener != null ) listener.progress( results[idx], i+1, devices.length );
+	    }
+	}
+	finally {
+	    executor.shutdownNow();
+	}
+	return results;
+    }
+
+/**
+  * Configures the FPGA's of all devices using high speed mode (if available) or low speed mode.
+  * The Bitstream is preprocessed once using {@link ZtexBitstreamCache#shared()}.
+  * @param fwFileName The file name of the Bitstream. The file can be a regular file or a system resource (e.g. a file from the current jar archive).
+  * @param bs 0: disable bit swapping, 1: enable bit swapping, all other values: automatic detection of bit order.
+  * @param force If set to true existing configurations will be overwritten.
+  * @param ifDifferent If set to true, the configuration is skipped on devices which are already configured with the Bitstream, see {@link Ztex1v1#configureFpgaIfDifferent(ZtexBitstream)}.
+  * @param listener The progress listener. May be null.
+  * @return The results in the order of the devices.
+  * @throws BitstreamReadException if an error occurred while attempting to read the Bitstream.
+  * @throws InterruptedException if the calling thread has been interrupted. In this case pending configurations are cancelled.
+  */
+    public Result[] configure ( String fwFileName, int bs, boolean force, boolean ifDifferent, ProgressListener listener ) throws BitstreamReadException, InterruptedException {
+	return configure( ZtexBitstreamCache.shared().get(fwFileName, bs), force, ifDifferent, listener );
+    }
+
+// ******* failures ************************************************************
+/**
+  * Returns the number of failed configurations.
+  * @param results The results returned by one of the configure methods.
+  * @return The number of failed configurations.
+  */
+    public static int failures ( Result[] results ) {
+	int n = 0;
+	for ( Result r : results )
+	    if ( r == null || ! r.ok() ) n++;
+	return n;
+    }
+
+// ******* close ***************************************************************
+/**
+  * Releases the devices.
+  */
+    public synchronized void close () {
+	if ( closed )
+	    return;
+	closed = true;
+	for ( ZtexDevice1 dev : devices )
+	    dev.unref();
+    }
+}
@@ -0,0 +1,80 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+/**
+  * The result of the configuration of a single FPGA of a multi-FPGA module, see {@link Ztex1v1#configureFpgas(ZtexBitstream,int[],boolean,boolean)}.
+  */
+
+// *****************************************************************************
+// ******* ZtexFpgaResult ******************************************************
+// *****************************************************************************
+public class ZtexFpgaResult {
+/** * The FPGA number. */
+    public final int fpga;
+/** * Configuration time in ms, -1 if the configuration was skipped or failed. */
+    public final long configurationTime;
+/** * true if the FPGA was configured together with the other FPGA's of the module using parallel configuration. */
+    public final boolean parallel;
+/** * The error or null if the configuration was successful. */
+    public final Exception error;
+
+// ******* ZtexFpgaResult ******************************************************
+    ZtexFpgaResult ( int p_fpga, long p_configurationTime, boolean p_parallel, Exception p_error ) {
+	fpga = p_fpga;
+	configurationTime = p_configurationTime;
+	parallel = p_parallel;
+	error = p_error;
+    }
+
+// ******* ok ******************************************************************
+/**
+  * Returns true if the configuration was successful or skipped.
+  * @return true if the configuration was successful or skipped.
+  */
+    public boolean ok () {
+	return error == null;
+    }
+
+// ******* skipped *************************************************************
+/**
+  * Returns true if the configuration was skipped because the FPGA was already configured with the Bitstream.
+  * @return true if the configuration was skipped.
+  */
+    public boolean skipped () {
+	return error == null && configurationTime < 0;
+    }
+
+// ******* toString ************************************************************
+/**
+  * Returns a string representation of the result.
+  * @return A string representation of the result.
+  */
+    public String toString () {
+	return "FPGA " + fpga + ":  "
+	    + ( error != null ? "failed: " + error.getLocalizedMessage() : skipped() ? "already configured" : "configuration time: " + configurationTime + " ms" + ( parallel ? " (parallel)" : "" ) );
+    }
+}
@@ -0,0 +1,104 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+/**
+  * A reentrant lock with two priority levels which serializes the transfers of one lane (e.g. the control endpoint) of a device.
+  * If the lane is released, threads which requested priority access (e.g. short queries) are served first.
+  */
+
+// *****************************************************************************
+// ******* ZtexLane ************************************************************
+// *****************************************************************************
+public class ZtexLane {
+    private Thread owner = null;
+    private int holdCount = 0;
+    private int priorityWaiters = 0;
+    private long acquisitions = 0;
+    private long contentions = 0;
+
+// ******* acquire *************************************************************
+/**
+  * Acquires the lane. The calling thread is blocked until the lane is available. Interrupts are deferred until the lane has been acquired.
+  * @param priority If true, the calling thread is served before all threads which are waiting without priority.
+  */
+    public synchronized void acquire ( boolean priority ) {
+	Thread t = Thread.currentThread();
+	if ( owner == t ) {
+	    holdCount++;
+	    return;
+	}
+	acquisitions++;
+	boolean interrupted = false;
+	if ( owner != null || (!priority && priorityWaiters > 0) ) {
+	    contentions++;
+	    if ( priority ) priorityWaiters++;
+	    while ( owner != null || (!priority && priorityWaiters > 0) ) {
+		try {
+		    wait();
+		}
+		catch ( InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+	    if ( priority ) priorityWaiters--;
+	}
+	owner = t;
+	holdCount = 1;
+	if ( interrupted ) t.interrupt();
+    }
+
+// ******* release *************************************************************
+/**
+  * Releases the lane.
+  * @throws IllegalMonitorStateException if the calling thread does not own the lane.
+  */
+    public synchronized void release () {
+	if ( owner != Thread.currentThread() ) throw new IllegalMonitorStateException("Lane not owned by current thread");
+	if ( --holdCount == 0 ) {
+	    owner = null;
+	    notifyAll();
+	}
+    }
+
+// ******* acquisitions ********************************************************
+/**
+  * Returns the number of (non-reentrant) acquisitions.
+  * @return The number of acquisitions.
+  */
+    public synchronized long acquisitions () {
+	return acquisitions;
+    }
+
+// ******* contentions *********************************************************
+/**
+  * Returns the number of acquisitions which had to wait.
+  * @return The number of contentions.
+  */
+    public synchronized long contentions () {
+	return contentions;
+    }
+}
@@ -0,0 +1,39 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+/**
+  * A listener which is informed about the progress of long running operations, e.g. {@link Ztex1v1#flashUploadBitstream(java.io.InputStream,int,ZtexProgressListener)}.
+  * It is called by the thread which performs the operation.
+  */
+public interface ZtexProgressListener {
+/**
+  * Called after a step of the operation has been finished.
+  * @param done Number of bytes processed so far.
+  * @param total Total number of bytes or -1 if unknown.
+  */
+    public void progress ( long done, long total );
+}
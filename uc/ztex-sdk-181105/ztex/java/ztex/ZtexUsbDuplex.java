@@ -0,0 +1,326 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+  * A full-duplex session for simultaneous reading and writing of an input and an output endpoint.
+  * <p>
+  * The session owns an event handler (see {@link ZtexEventHandler}), a {@link ZtexUsbWriter} and a {@link ZtexUsbReader}.
+  * Output transfers are subject to a credit based flow control: Data is only submitted if the amount of data written but not yet
+  * read from the input endpoint (i.e. the data in flight) does not exceed the credit window. This ensures that the input endpoint can
+  * always absorb the data which is sent back by the device, i.e. output submissions do not starve input completions.
+  * The default credit window is the total buffer size of the reader.
+  * <p>
+  * For loopback designs (where each output byte causes one input byte) a request/response correlation hook is available:
+  * If a buffer is written with a tag (see {@link #write(ByteBuffer,Object,long,TimeUnit)}) the listener (see {@link #setListener(ResponseListener)})
+  * is called as soon as the same amount of data has been read, i.e. when the response to that request has been received.
+  * <p>
+  * Writing must be done by one thread and reading by one other thread.
+  */
+
+// *****************************************************************************
+// ******* ZtexUsbDuplex *******************************************************
+// *****************************************************************************
+public class ZtexUsbDuplex {
+    private final ZtexEventHandler eventHandler;
+    private final ZtexUsbWriter writer;
+    private final ZtexUsbReader reader;
+
+    private final Object credit = new Object();
+    private volatile long outBytes = 0;		// bytes submitted to the output endpoint
+    private volatile long inBytes = 0;		// bytes read from the input endpoint and released
+    private final ArrayDeque<Integer> borrowed = new ArrayDeque<Integer>();	// lengths of borrowed buffers
+    private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+    private volatile ResponseListener listener = null;
+    private long startT = 0;
+    private long outCount0 = 0, inCount0 = 0;
+    private volatile boolean started = false;
+
+    /**
+      * The credit window in bytes, i.e. the maximum amount of data written but not yet read.
+      * A value &lt;=0 disables flow control.
+      */
+    public volatile long creditWindow;
+
+// ******* ResponseListener ****************************************************
+/**
+  * The request/response correlation hook, see {@link ZtexUsbDuplex#write(ByteBuffer,Object,long,TimeUnit)}.
+  */
+    public interface ResponseListener {
+/**
+  * Called by the reading thread if the response to a tagged request has been read.
+  * @param tag The tag of the request.
+  * @param latency Time between submission of the request and reception of the response in ns.
+  */
+	public void response ( Object tag, long latency );
+    }
+
+// ******* Request *************************************************************
+    private static class Request {
+	final Object tag;
+	final long end;		// value of outBytes after the request
+	final long t;		// submission time in ns
+
+	Request ( Object p_tag, long p_end, long p_t ) {
+	    tag = p_tag;
+	    end = p_end;
+	    t = p_t;
+	}
+    }
+
+// ******* ZtexUsbDuplex *******************************************************
+/**
+  * Creates the session for a given ZTEX device and endpoint numbers.
+  * @param ztex The ZTEX device.
+  * @param inEp The number of the input endpoint.
+  * @param outEp The number of the output endpoint.
+  * @param bufNum Number of buffers of reader and writer.
+  * @param bufSize Size of each buffer.
+  */
+    public ZtexUsbDuplex ( Ztex1 ztex, int inEp, int outEp, int bufNum, int bufSize ) {
+	eventHandler = new ZtexEventHandler(ztex);
+	reader = new ZtexUsbReader(ztex, inEp, false, bufNum, bufSize);
+	writer = new ZtexUsbWriter(ztex, outEp, false, bufNum, bufSize);
+	creditWindow = (long)bufNum*bufSize;
+    }
+
+/**
+  * Creates the session for the default interface of a ZTEX device.
+  * @param ztex The ZTEX device.
+  * @param bufNum Number of buffers of reader and writer.
+  * @param bufSize Size of each buffer.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws CapabilityException if default interface if not present or version number is lower than required
+  * @throws UsbExcption if a communication error occurred.
+  */
+    public ZtexUsbDuplex ( Ztex1v1 ztex, int bufNum, int bufSize ) throws InvalidFirmwareException, UsbException, CapabilityException {
+	eventHandler = new ZtexEventHandler(ztex);
+	reader = new ZtexUsbReader(ztex, bufNum, bufSize);
+	writer = new ZtexUsbWriter(ztex, bufNum, bufSize);
+	creditWindow = (long)bufNum*bufSize;
+    }
+
+// ******* start ***************************************************************
+/**
+  * Starts the event handler and the reader.
+  * @throws UsbExecption if an error occurred.
+  */
+    public void start () throws UsbException {
+	if ( started ) return;
+	eventHandler.start();
+	reader.start(0);
+	startT = System.nanoTime();
+	outCount0 = writer.byteCount();
+	inCount0 = reader.byteCount();
+	started = true;
+    }
+
+// ******* close ***************************************************************
+/**
+  * Cancels all transfers and stops the event handler.
+  * @param timeout Timeout in ms.
+  * @return True if all transfers have been cancelled and the event handler terminated.
+  * @throws UsbExecption if an error occurred.
+  */
+    public boolean close ( int timeout ) throws UsbException {
+	boolean b = writer.cancelWait(timeout);
+	b = reader.cancelWait(timeout) && b;
+	b = eventHandler.terminate() && b;
+	started = false;
+	synchronized ( credit ) {
+	    credit.notifyAll();
+	}
+	return b;
+    }
+
+// ******* setListener *********************************************************
+/**
+  * Sets the request/response correlation hook.
+  * @param l The listener or null.
+  */
+    public void setListener ( ResponseListener l ) {
+	listener = l;
+    }
+
+// ******* awaitCredit *********************************************************
+// waits until len bytes can be written, returns false if timeout occurs
+    private boolean awaitCredit ( int len, long timeout ) {
+	final long deadline = System.nanoTime() + timeout;
+	synchronized ( credit ) {
+	    while ( creditWindow > 0 && outBytes > inBytes && outBytes + len - inBytes > creditWindow ) {
+		long ns = deadline - System.nanoTime();
+		if ( ns <= 0 || !started ) return false;
+		try { TimeUnit.NANOSECONDS.timedWait(credit, ns); } catch ( InterruptedException e) { return false; }
+	    }
+	}
+	return true;
+    }
+
+// ******* write ***************************************************************
+/**
+  * Writes a buffer and registers it as a request for the correlation hook. The data is copied from the current position to the limit
+  * of the source buffer. This method blocks until enough credits are available.
+  * @param src The source buffer.
+  * @param tag The tag which is passed to the listener or null if the data should not be correlated.
+  * @param timeout Timeout for each transfer.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes written. This is less than the remaining data of the source buffer if timeout occurs.
+  * @throws UsbExecption if an error occurred.
+  */
+    public int write ( ByteBuffer src, Object tag, long timeout, TimeUnit unit ) throws UsbException {
+	final long to = unit.toNanos(timeout);
+	final long t = System.nanoTime();
+	int sum = 0;
+	while ( src.hasRemaining() ) {
+	    int k = Math.min(src.remaining(), writer.bufSize());
+	    if ( ! awaitCredit(k, to) ) break;
+	    k = writer.transmitBuffer(src, timeout, unit);
+	    if ( k < 0 ) break;
+	    sum += k;
+	    outBytes += k;
+	}
+	if ( tag != null && sum > 0 ) requests.add( new Request(tag, outBytes, t) );
+	return sum;
+    }
+
+/**
+  * Writes a buffer. The data is copied from the current position to the limit of the source buffer.
+  * This method blocks until enough credits are available.
+  * @param src The source buffer.
+  * @param timeout Timeout for each transfer.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes written. This is less than the remaining data of the source buffer if timeout occurs.
+  * @throws UsbExecption if an error occurred.
+  */
+    public int write ( ByteBuffer src, long timeout, TimeUnit unit ) throws UsbException {
+	return write(src, null, timeout, unit);
+    }
+
+// ******* borrowBuffer ********************************************************
+/**
+  * Lends the next input buffer, see {@link ZtexUsbReader#borrowBuffer(long,TimeUnit)}.
+  * @param timeout Timeout. If timeout occurs the function returns null.
+  * @param unit The unit of the timeout.
+  * @return A read-only buffer or null if timeout occurs.
+  * @throws UsbExecption if an error occurred.
+  */
+    public ByteBuffer borrowBuffer ( long timeout, TimeUnit unit ) throws UsbException {
+	ByteBuffer b = reader.borrowBuffer(timeout, unit);
+	if ( b != null ) borrowed.add(b.remaining());
+	return b;
+    }
+
+// ******* releaseBuffer *******************************************************
+/**
+  * Returns the oldest borrowed input buffer, see {@link ZtexUsbReader#releaseBuffer()}. This grants credits to the writer and calls the
+  * correlation hook for all requests which have been answered.
+  * @throws UsbExecption if an error occurred.
+  */
+    public void releaseBuffer () throws UsbException {
+	reader.releaseBuffer();
+	Integer len = borrowed.poll();
+	if ( len == null ) return;
+	synchronized ( credit ) {
+	    inBytes += len;
+	    credit.notifyAll();
+	}
+	Request r;
+	while ( (r = requests.peek()) != null && r.end <= inBytes ) {
+	    requests.poll();
+	    ResponseListener l = listener;
+	    if ( l != null ) l.response(r.tag, System.nanoTime() - r.t);
+	}
+    }
+
+// ******* read ****************************************************************
+/**
+  * Reads the next input buffer.
+  * @param buf The byte array where to store the data.
+  * @param timeout Timeout. If timeout occurs the function returns -1.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes read or -1 if timeout occurs.
+  * @throws UsbExecption if an error occurred.
+  */
+    public int read ( byte[] buf, long timeout, TimeUnit unit ) throws UsbException {
+	ByteBuffer b = borrowBuffer(timeout, unit);
+	if ( b == null ) return -1;
+	final int k = Math.min(b.remaining(), buf.length);
+	b.get(buf, 0, k);
+	releaseBuffer();
+	return k;
+    }
+
+// ******* inFlight ************************************************************
+/**
+  * Returns the amount of data written but not yet read.
+  * @return The amount of data in bytes.
+  */
+    public long inFlight () {
+	return outBytes - inBytes;
+    }
+
+// ******* outRate *************************************************************
+/**
+  * Returns the average data rate of the output endpoint since start of the session.
+  * @return The data rate in bytes per second.
+  */
+    public double outRate () {
+	long t = System.nanoTime() - startT;
+	return started && t > 0 ? (writer.byteCount() - outCount0) * 1e9 / t : 0;
+    }
+
+// ******* inRate **************************************************************
+/**
+  * Returns the average data rate of the input endpoint since start of the session.
+  * @return The data rate in bytes per second.
+  */
+    public double inRate () {
+	long t = System.nanoTime() - startT;
+	return started && t > 0 ? (reader.byteCount() - inCount0) * 1e9 / t : 0;
+    }
+
+// ******* reader **************************************************************
+/**
+  * Returns the reader.
+  * @return The reader.
+  */
+    public ZtexUsbReader reader () {
+	return reader;
+    }
+
+// ******* writer **************************************************************
+/**
+  * Returns the writer.
+  * @return The writer.
+  */
+    public ZtexUsbWriter writer () {
+	return writer;
+    }
+}
@@ -0,0 +1,268 @@
+/*%
+   Java host software API of ZTEX SDK
+   Copyright (C) 2009-2017 ZTEX GmbH.
+   http://www.ztex.de
+
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this file,
+   You can obtain one at http://mozilla.org/MPL/2.0/.
+
+   Alternatively, the contents of this file may be used under the terms
+   of the GNU General Public License Version 3, as described below:
+
+   This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as
+   published by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful, but
+   WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+   General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, see http://www.gnu.org/licenses/.
+%*/
+
+package ztex;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+  * A {@link Flow.Publisher} on top of {@link ZtexUsbReader} which publishes the received buffers to one or more subscribers.
+  * <p>
+  * The publisher thread borrows buffers from the reader (see {@link ZtexUsbReader#borrowBuffer(long,TimeUnit)}) only if all subscribers
+  * have requested data. Each subscriber receives its own read-only view of the same buffer, i.e. the data is not copied.
+  * The view is only valid during {@link Flow.Subscriber#onNext(Object)}; subscribers which need the data later must copy it.
+  * After all subscribers have been served the buffer is released and the transfer is re-submitted.
+  * <p>
+  * Thus subscriber demand controls how many transfers are re-submitted: A slow subscriber throttles the USB side instead of causing overruns,
+  * and buffering is bounded by the number of buffers of the reader. If no subscriber exists, no data is read.
+  * <p>
+  * The reader is started by the publisher thread. Reading ends and {@link Flow.Subscriber#onComplete()} is called if the maximum amount of buffers
+  * (see {@link ZtexUsbReader#start(long)}) has been read or if the publisher is terminated using {@link #terminate()}.
+  * Errors are reported using {@link Flow.Subscriber#onError(Throwable)}. The error caused by a non-positive request is delivered by the publisher thread
+  * like all other signals of a running publisher, i.e. the signals to a subscriber are serial.
+  * <p>
+  * An event handler (see {@link ZtexEventHandler}) is required.
+  */
+
+// *****************************************************************************
+// ******* ZtexUsbPublisher ****************************************************
+// *****************************************************************************
+public class ZtexUsbPublisher extends Thread implements Flow.Publisher<ByteBuffer> {
+    private final ZtexUsbReader reader;
+    private final long maxCount;
+    private final List<Sub> subs = new CopyOnWriteArrayList<Sub>();
+    private final Object lock = new Object();
+    private volatile boolean terminate = false;
+    private volatile boolean isAlive = false;
+    private volatile boolean done = false;
+    private volatile long publishCount = 0;
+
+// ******* Sub *****************************************************************
+// a subscription
+    private class Sub implements Flow.Subscription {
+	final Flow.Subscriber<? super ByteBuffer> subscriber;
+	long demand = 0;			// guarded by lock
+	volatile boolean cancelled = false;
+	volatile Throwable error = null;	// error caused by an invalid request, delivered by the publisher thread
+
+	Sub ( Flow.Subscriber<? super ByteBuffer> s ) {
+	    subscriber = s;
+	}
+
+	public void request ( long n ) {
+	    if ( n <= 0 ) {		// signals must be serial, i.e. onError must not be called by this thread
+		synchronized ( lock ) {
+		    if ( error == null ) error = new IllegalArgumentException("Non-positive request: " + n);
+		    lock.notifyAll();
+		}
+		return;
+	    }
+	    synchronized ( lock ) {
+		demand += n;
+		if ( demand < 0 ) demand = Long.MAX_VALUE;
+		lock.notifyAll();
+	    }
+	}
+
+	public void cancel () {
+	    cancelled = true;
+	    subs.remove(this);
+	    synchronized ( lock ) {
+		lock.notifyAll();
+	    }
+	}
+    }
+
+// ******* ZtexUsbPublisher ****************************************************
+/**
+  * Creates the publisher.
+  * @param p_reader The reader. It is started by the publisher thread.
+  * @param p_maxCount Maximum amount of buffers to read or 0 for infinite transfers, see {@link ZtexUsbReader#start(long)}. Speed test mode is not supported.
+  */
+    public ZtexUsbPublisher ( ZtexUsbReader p_reader, long p_maxCount ) {
+	super ();
+	reader = p_reader;
+	maxCount = Math.max(0, p_maxCount);
+    }
+
+/**
+  * Creates the publisher for infinite transfers.
+  * @param p_reader The reader. It is started by the publisher thread.
+  */
+    public ZtexUsbPublisher ( ZtexUsbReader p_reader ) {
+	this(p_reader, 0);
+    }
+
+// ******* subscribe ***********************************************************
+/**
+  * Adds a subscriber. Subscribers which are added while the publisher is running receive the data from the next buffer on.
+  * If the publisher has already finished {@link Flow.Subscriber#onComplete()} is called immediately.
+  * @param subscriber The subscriber.
+  */
+    public void subscribe ( Flow.Subscriber<? super ByteBuffer> subscriber ) {
+	if ( subscriber == null ) throw new NullPointerException();
+	Sub s = new Sub(subscriber);
+	subscriber.onSubscribe(s);
+	if ( s.cancelled ) return;
+	subs.add(s);
+	if ( done && subs.remove(s) ) {
+	    if ( s.error != null ) subscriber.onError(s.error);
+	    else subscriber.onComplete();
+	    return;
+	}
+	synchronized ( lock ) {
+	    lock.notifyAll();
+	}
+    }
+
+// ******* subscribers *********************************************************
+/**
+  * Returns the number of subscribers.
+  * @return The number of subscribers.
+  */
+    public int subscribers () {
+	return subs.size();
+    }
+
+// ******* publishCount ********************************************************
+/**
+  * Returns the number of published buffers.
+  * @return The number of published buffers.
+  */
+    public long publishCount () {
+	return publishCount;
+    }
+
+// ******* terminate ***********************************************************
+/**
+  * Stops the publisher. This call waits up to 1.5s
+  * @return true if the publisher terminated correctly.
+  */
+    public boolean terminate() {
+	terminate = true;
+	synchronized ( lock ) {
+	    lock.notifyAll();
+	}
+	for (int i=0; isAlive && i<=1500; i+=20 ) {
+	    try { sleep(20); } catch ( InterruptedException e) { }
+	}
+	return !isAlive;
+    }
+
+// ******* ready ***************************************************************
+// waits until all subscribers have requested data, returns false if terminated
+    private boolean ready () {
+	while ( ! terminate ) {
+	    deliverErrors();
+	    synchronized ( lock ) {
+		boolean b = ! subs.isEmpty();
+		boolean err = false;
+		for ( Sub s : subs ) {
+		    b = b && s.demand > 0;
+		    err = err || s.error != null;
+		}
+		if ( b && !err ) return true;
+		if ( !err && !terminate ) {
+		    try { lock.wait(100); } catch ( InterruptedException e) { terminate = true; }
+		}
+	    }
+	}
+	return false;
+    }
+
+// ******* deliverErrors *******************************************************
+// signals the errors caused by invalid requests and cancels the subscriptions, only called by the publisher thread
+    private void deliverErrors () {
+	for ( Sub s : subs ) {
+	    Throwable e = s.error;
+	    if ( e != null && !s.cancelled ) {
+		s.cancel();
+		s.subscriber.onError(e);
+	    }
+	}
+    }
+
+// ******* finish **************************************************************
+// signals completion or an error to all subscribers
+    private void finish ( Throwable e ) {
+	done = true;
+	for ( Sub s : subs ) {
+	    if ( ! subs.remove(s) ) continue;	// already completed by subscribe()
+	    if ( s.cancelled ) continue;
+	    if ( s.error != null ) s.subscriber.onError(s.error);
+	    else if ( e == null ) s.subscriber.onComplete();
+	    else s.subscriber.onError(e);
+	}
+    }
+
+/**
+  * The thread body.
+  */
+    public void run() {
+	isAlive = true;
+	Throwable err = null;
+	try {
+	    reader.start(maxCount);
+	    while ( ready() ) {
+		ByteBuffer b = reader.borrowBuffer(100, TimeUnit.MILLISECONDS);
+		if ( b == null ) continue;
+		if ( ! b.hasRemaining() ) {	// maximum amount of buffers read
+		    reader.releaseBuffer();
+		    break;
+		}
+		for ( Sub s : subs ) {
+		    synchronized ( lock ) {
+			if ( s.demand <= 0 || s.error != null ) continue;	// subscribed or invalid request after ready() returned
+			s.demand--;
+		    }
+		    if ( ! s.cancelled ) {
+			try {
+			    s.subscriber.onNext(b.duplicate());
+			}
+			catch ( Throwable e ) {
+			    s.cancel();
+			    s.subscriber.onError(e);
+			}
+		    }
+		}
+		reader.releaseBuffer();
+		publishCount++;
+	    }
+	    if ( terminate ) reader.cancelWait(1000);
+	}
+	catch ( Throwable e ) {
+	    err = e;
+	    try {
+		reader.cancelWait(1000);
+	    }
+	    catch ( Exception e2 ) {
+	    }
+	}
+	finish(err);
+	isAlive = false;
+    }
+}
@@ -28,11 +28,23 @@ package ztex;
 import java.io.*;
 import java.util.*;
 import java.nio.*;
+import java.util.concurrent.*;
+import java.lang.management.*;
 
 import org.usb4java.*;
 
 /**
   * A helper class to implement asynchronous bulk and interrupt read transfers. This class also has a speed test mode.
+  * <p>
+  * Completed transfers are reported by the transfer callback through a {@link ZtexCompletionQueue}, i.e.
+  * {@link #getBuffer(byte[],long,TimeUnit)} blocks without polling until the next buffer is available.
+  * <p>
+  * Alternatively to {@link #getBuffer(byte[],long,TimeUnit)}, which copies the data, the received buffers can be lent using
+  * {@link #borrowBuffer(long,TimeUnit)}. In this case the data is accessed in place and the transfer is
+  * re-submitted when the buffer is returned using {@link #releaseBuffer()}.
+  * <p>
+  * If the reader is created with a {@link ZtexAutoTuner} the number of in-flight transfers and the buffer size are adapted at runtime.
+  * Operating point changes are applied after all buffers have been read, i.e. the buffer size may change between two buffers.
   */
 
 // *****************************************************************************
@@ -43,39 +55,62 @@ public class ZtexUsbReader {
     private DeviceHandle handle;
     private int ep;
     private boolean isInt;
-    private int bufNum;
-    private int bufSize;
+    private int bufNum;				// number of buffers of current operating point
+    private int bufSize;			// buffer size of current operating point
+    private ZtexAutoTuner tuner = null;
 
     private ByteBuffer[] bufs;
     private Transfer[] transfers;
     private volatile boolean[] pending;
+    private long[] submitT;			// submission time of each transfer in ns
+    private int[] gen;				// generation of the current submission of each transfer
+    private int[] doneGen;			// generation of the last completion of each transfer seen by the consumer
+    private ZtexCompletionQueue completions;
     private long getCount = 0;
+    private long releaseCount = 0;
+    private long submitCount = 0;
+    private long base = 0;			// value of the counters when operating point has been changed
     private volatile long byteCount = 0;
     
     private volatile boolean speedTest = false;
     private volatile long remaining;
+    private Submitter submitter = null;		// replaces LibUsb.submitTransfer if not null, see main
     
     /*
      * Timeout for USB transfers in ms. Default value is 5000.
      */
     public int usbTimeOut = 5000;
 
+// ******* Submitter ***********************************************************
+// submission of transfers to a simulated endpoint, see main
+    private interface Submitter {
+	int submit ( Transfer transfer );
+    }
+
     private final TransferCallback callback = new TransferCallback() {
     	public void processTransfer(Transfer transfer) {
 	byteCount += transfer.actualLength();
-    	// find index
-    	int i=0;
-    	while ( (i<bufNum) && (!transfer.equals(transfers[i])) ) i++;
-    	if ( i < bufNum ) {
+	// generation and index of the submission are stored as user data, see submit(int)
+	Object o = transfer.userData();
+	int v = o instanceof Integer ? (Integer)o : -1;
+	int i = v & 0xffff;
+	if ( v>=0 && i<transfers.length ) {
+	    if ( tuner != null ) tuner.completed(transfer.actualLength(), System.nanoTime()-submitT[i]);
+	    pending[i] = false;
     	    if ( speedTest ) {
     		try {
-    		    submit(i);
+		    if ( remaining > 0 ) {
+			remaining--;
+			submit(i);
+		    }
     		}
     		catch (Exception e) {
     		    System.err.println(e);
     		}
     	    }
-    	    else pending[i] = false;
+	    else {
+		if ( ! completions.offer(v) ) System.err.println("Internal error: completion queue overflow");
+    	    }
     	}
     	else System.err.println("Internal error: unknown transfer");
     	}
@@ -98,14 +133,41 @@ public class ZtexUsbReader {
         isInt = p_isInt;
         bufNum = p_bufNum;
         bufSize = p_bufSize;
-        bufs = new ByteBuffer[bufNum];
-        transfers = new Transfer[bufNum];
-        pending = new boolean[bufNum];
-	for (int i=0; i<bufNum; i++) {
+	init(bufNum);
+	for (int i=0; i<bufNum; i++)
 	    bufs[i] = BufferUtils.allocateByteBuffer(bufSize);
-	    transfers[i] = null;
-	    pending[i] = false;
-	}
+    }
+
+// creates a reader for a simulated endpoint, see main
+    private ZtexUsbReader ( int p_bufNum, int p_bufSize, Submitter p_submitter ) {
+	dev = null;
+	handle = null;
+	ep = 0x82;
+	isInt = false;
+	bufNum = p_bufNum;
+	bufSize = p_bufSize;
+	submitter = p_submitter;
+	init(bufNum);
+	for (int i=0; i<bufNum; i++)
+	    bufs[i] = BufferUtils.allocateByteBuffer(bufSize);
+    }
+
+/**
+  * Creates the reader for a given USB device and endpoint number which adapts the number of in-flight transfers and the buffer size at runtime.
+  * @param p_handle The device handle used for communication (must be opened).
+  * @param p_ep The input endpoint.
+  * @param p_isInt True if it is an interrupt transfer.
+  * @param p_tuner The tuner which determines the operating point. Buffers are allocated on demand.
+  */
+    public ZtexUsbReader ( DeviceHandle p_handle, int p_ep, boolean p_isInt, ZtexAutoTuner p_tuner ) {
+        dev = LibUsb.getDevice(p_handle);
+        handle = p_handle;
+        ep = p_ep;
+        isInt = p_isInt;
+	tuner = p_tuner;
+	bufNum = tuner.bufNum();
+	bufSize = tuner.bufSize();
+	init(tuner.maxBufNum());
     }
 
 /**
@@ -132,22 +194,149 @@ public class ZtexUsbReader {
     public ZtexUsbReader ( Ztex1v1 ztex, int p_bufNum, int p_bufSize ) throws InvalidFirmwareException, UsbException, CapabilityException {
 	this(ztex.handle(), ztex.defaultInEP(), false, p_bufNum, p_bufSize);
     }
+
+/**
+  * Creates the reader for the input endpoint of the default interface of a ZTEX device which adapts the number of in-flight transfers and
+  * the buffer size at runtime.
+  * @param ztex The ZTEX device.
+  * @param p_tuner The tuner which determines the operating point.
+  * @throws InvalidFirmwareException if interface 1 is not supported.
+  * @throws CapabilityException if default interface if not present or version number is lower than required
+  * @throws UsbExcption if a communication error occurred.
+  */
+    public ZtexUsbReader ( Ztex1v1 ztex, ZtexAutoTuner p_tuner ) throws InvalidFirmwareException, UsbException, CapabilityException {
+	this(ztex.handle(), ztex.defaultInEP(), false, p_tuner);
+    }
+
+// ******* init ****************************************************************
+    private void init(int n) {
+	bufs = new ByteBuffer[n];
+	transfers = new Transfer[n];
+	pending = new boolean[n];
+	submitT = new long[n];
+	gen = new int[n];
+	doneGen = new int[n];
+	completions = new ZtexCompletionQueue(n*2);
+	for (int i=0; i<n; i++) {
+	    bufs[i] = null;
+	    transfers[i] = null;
+	    pending[i] = false;
+	    gen[i] = 0;
+	    doneGen[i] = -1;
+	}
+    }
+
+// ******* slot ****************************************************************
+// returns the index of buffer k
+    private int slot(long k) {
+	return (int)((k - base) % bufNum);
+    }
+
+// ******* fillUp **************************************************************
+// submits transfers until all buffers are in flight or borrowed
+// changes of the operating point are applied if all buffers are released
+    private void fillUp() throws UsbException {
+	if ( tuner != null && (tuner.bufNum() != bufNum || tuner.bufSize() != bufSize) ) {
+	    if ( submitCount != releaseCount ) return;	// wait until all buffers are released
+	    base = submitCount;
+	    bufNum = tuner.bufNum();
+	    bufSize = tuner.bufSize();
+	    for (int i=0; i<bufs.length; i++) {
+		if ( i>=bufNum || bufs[i]==null || bufs[i].capacity()!=bufSize ) bufs[i] = null;
+		if ( i>=bufNum && transfers[i]!=null ) {
+		    LibUsb.freeTransfer(transfers[i]);
+		    transfers[i] = null;
+		}
+	    }
+	}
+	while ( remaining>0 && submitCount-releaseCount<bufNum ) {
+	    int j = slot(submitCount);
+	    if ( bufs[j] == null ) {
+		bufs[j] = BufferUtils.allocateByteBuffer(bufSize);
+		if ( transfers[j] != null ) {
+		    transfers[j].setBuffer(bufs[j]);
+		    transfers[j].setLength(bufSize);
+		}
+	    }
+	    if ( transfers[j] == null ) {
+		transfers[j] = LibUsb.allocTransfer();
+		if ( transfers[j] == null ) throw new UsbException(dev, "Error allocating transfer buffer "+j);
+		if ( isInt ) LibUsb.fillInterruptTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, Integer.valueOf(j), usbTimeOut);
+		else LibUsb.fillBulkTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, Integer.valueOf(j), usbTimeOut);
+	    }
+	    remaining--;
+	    submitCount++;
+	    submit(j);
+	}
+    }
     
 // ******* submit **************************************************************
+// the generation is stored in the user data of the submission, i.e. late completions of previous submissions are not mistaken for current ones
     private void submit(int i) throws UsbException {
-	if ( transfers[i] == null ) return;
-	if ( remaining <=0 ) {
-	    LibUsb.freeTransfer(transfers[i]);
-	    transfers[i] = null;
-	    return;
+	if ( pending[i] ) throw new UsbException(dev, "Error submitting buffer " + i + ": Transfer is still pending");
+	int g = (gen[i] + 1) & 0x7fff;
+	transfers[i].setUserData(Integer.valueOf((g << 16) | i));
+	pending[i] = true;
+	submitT[i] = System.nanoTime();
+	int result = submitter != null ? submitter.submit(transfers[i]) : LibUsb.submitTransfer(transfers[i]);
+	if ( result != LibUsb.SUCCESS ) {
+	    pending[i] = false;
+	    throw new UsbException(dev, "Error submitting buffer " + i, result);
+    	}
+	gen[i] = g;
+    }
+
+// ******* awaitIdle ***********************************************************
+// cancels pending transfers and waits until they are finished, returns false if timeout occurs
+    private boolean awaitIdle(long timeout) throws UsbException {
+	final long deadline = System.nanoTime() + timeout;
+	boolean cancelled = false;
+	while ( true ) {
+	    boolean b = false;
+	    for (int i=0; i<transfers.length; i++ )
+		b = b || ( transfers[i] != null && pending[i] );
+	    if ( !b ) return true;
+	    if ( System.nanoTime() >= deadline ) return false;
+	    if ( !cancelled ) {
+		cancel();
+		cancelled = true;
+	    }
+	    try { Thread.sleep(1); } catch ( InterruptedException e) { }
 	}
-	remaining--;
-        int result = LibUsb.submitTransfer(transfers[i]);
-        if ( (result!=LibUsb.SUCCESS) && (result!=LibUsb.ERROR_BUSY) ) throw new UsbException(dev, "Error submitting buffer " + i, result);
-        pending[i] = true;
+    }
+
+// ******* await ***************************************************************
+// waits until transfer j completed, returns false if timeout occurs
+    private boolean await(int j, long timeout) {
+	final long deadline = System.nanoTime() + timeout;
+	while ( doneGen[j] != gen[j] ) {
+	    int k = completions.poll( Math.max(0, deadline - System.nanoTime()) );
+	    if ( k < 0 ) return false;
+	    doneGen[k & 0xffff] = k >>> 16;	// completions of older submissions are overwritten by later ones
+	}
+	return true;
     }
     
 // ******* getBuffer ***********************************************************
+/**
+  * Get the next buffer. This does not work in speed test mode, see see {@link #start(long)}.
+  * The calling thread is blocked until the transfer completed or timeout occurs.
+  * @param buf The byte array where to store the data.
+  * @param timeout Timeout. If timeout occurs the function returns -1.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes read or -1 if timeout occurs.
+  * @throws UsbExecption if an error occurred or if borrowed buffers have not been released.
+  */
+    public int getBuffer(byte[] buf, long timeout, TimeUnit unit) throws UsbException {
+	if ( getCount != releaseCount ) throw new UsbException(dev, "Unable to get buffer: Borrowed buffers have not been released");
+	ByteBuffer b = borrowBuffer(timeout, unit);
+	if ( b == null ) return -1;
+	final int k = Math.min(b.remaining(), buf.length);
+	b.get(buf, 0, k);
+	releaseBuffer();
+	return k;
+    }
+
 /**
   * Get the next buffer. This does not work in speed test mode, see see {@link #start(long)}.
   * @param buf The byte array where to store the data.
@@ -156,33 +345,71 @@ public class ZtexUsbReader {
   * @throws UsbExecption if an error occurred.
   */
     public int getBuffer(byte[] buf, int timeout) throws UsbException {
-	if ( speedTest ) throw new UsbException(dev, "Unable to get buffer: Device is in speed test mode");
-	int j = (int)(getCount % bufNum);
-	for (int i=0; pending[j] && (i<timeout); i++ ) {
-   	    try { Thread.sleep(1); } catch ( InterruptedException e) { } 
-	}
-	if ( pending[j] ) return -1;
-	else if ( transfers[j] == null ) {
+	return getBuffer(buf, timeout, TimeUnit.MILLISECONDS);
+    }
+
+// ******* borrowBuffer ********************************************************
+/**
+  * Lends the next buffer without copying the data. This does not work in speed test mode, see {@link #start(long)}.
+  * <p>
+  * The returned buffer is a read-only view of the direct buffer used by the transfer. Position is 0 and limit is the number of bytes read.
+  * The transfer is not re-submitted until the buffer is returned using {@link #releaseBuffer()}, i.e. the data remains valid until then.
+  * Up to {@link #bufNum()} buffers can be borrowed. They must be released in the same order as they were borrowed.
+  * <p>
+  * An empty buffer is returned if the maximum amount of buffers defined by {@link #start(long)} has been read. This buffer has to be released too.
+  * @param timeout Timeout. If timeout occurs the function returns null.
+  * @param unit The unit of the timeout.
+  * @return A read-only buffer or null if timeout occurs.
+  * @throws UsbExecption if an error occurred or if all buffers are borrowed.
+  */
+    public ByteBuffer borrowBuffer(long timeout, TimeUnit unit) throws UsbException {
+	if ( speedTest ) throw new UsbException(dev, "Unable to borrow buffer: Device is in speed test mode");
+	if ( getCount - releaseCount >= bufNum ) throw new UsbException(dev, "Unable to borrow buffer: All buffers are borrowed");
+	if ( getCount >= submitCount ) {
 	    getCount++;
-	    return 0;
+	    submitCount++;
+	    return ByteBuffer.allocate(0).asReadOnlyBuffer();
 	}
-	else if ( transfers[j].status() != LibUsb.TRANSFER_COMPLETED ) throw new UsbException(dev, "Error receving buffer " + getCount + ": " + transfers[j].status());
+	int j = slot(getCount);
+	if ( ! await(j, unit.toNanos(timeout)) ) return null;
+	if ( transfers[j].status() != LibUsb.TRANSFER_COMPLETED ) throw new UsbException(dev, "Error receving buffer " + getCount + ": " + transfers[j].status());
 
-	final int k = Math.min(transfers[j].actualLength(), buf.length);
-	bufs[j].rewind();
-	bufs[j].get(buf, 0, k);
-	submit(j);
+	ByteBuffer b = bufs[j].asReadOnlyBuffer();
+	b.clear();
+	b.limit(transfers[j].actualLength());
 	getCount++;
-	return k;
+	return b;
     }
 
+// ******* releaseBuffer *******************************************************
+/**
+  * Returns the oldest borrowed buffer, see {@link #borrowBuffer(long,TimeUnit)}, and re-submits the transfer.
+  * The buffer must not be accessed anymore after this call.
+  * @throws UsbExecption if an error occurred or if no buffer is borrowed.
+  */
+    public void releaseBuffer() throws UsbException {
+	if ( releaseCount >= getCount ) throw new UsbException(dev, "Unable to release buffer: No buffer borrowed");
+	releaseCount++;
+	fillUp();
+    }
+
+// ******* borrowedBuffers *****************************************************
+/**
+  * Return the number of borrowed buffers which have not been released yet.
+  * @return The number of borrowed buffers.
+  */
+    public int borrowedBuffers () {
+	return (int)(getCount - releaseCount);
+    } 
+
 // ******* transferStatus ******************************************************
 /**
   * Return status of current transfer (see LibUsb.TRANSFER_*), -1 if transfer is pending or -2 if transfer has not been started.
   * @return Transfer status.
   */
     public int transferStatus() {
-	int j = (int)(getCount % bufNum);
+	if ( getCount >= submitCount ) return -2;
+	int j = slot(getCount);
 	return transfers[j] == null ? -2 : pending[j] ? -1 : transfers[j].status();
     }
 
@@ -197,13 +424,31 @@ public class ZtexUsbReader {
 
 // ******* bufSize *************************************************************
 /**
-  * Return the buffer size.
+  * Return the buffer size. If the reader has been created with a {@link ZtexAutoTuner} this is the size of the current operating point.
   * @return The buffer size.
   */
     public int bufSize () {
 	return bufSize;
     } 
 
+// ******* bufNum **************************************************************
+/**
+  * Return the number of buffers. If the reader has been created with a {@link ZtexAutoTuner} this is the number of the current operating point.
+  * @return The number of buffers.
+  */
+    public int bufNum () {
+	return bufNum;
+    } 
+
+// ******* tuner ***************************************************************
+/**
+  * Return the tuner which determines the operating point.
+  * @return The tuner or null if number and size of the buffers are fixed.
+  */
+    public ZtexAutoTuner tuner () {
+	return tuner;
+    } 
+
 // ******* cancel **************************************************************
 /**
   * Cancels all pending transfers, also see {@link #cancelWait(int)},
@@ -212,7 +457,7 @@ public class ZtexUsbReader {
     public void cancel() throws UsbException {
 	speedTest = false;
 	remaining = 0;
-	for (int i=0; i<bufNum; i++ ) {
+	for (int i=0; i<transfers.length; i++ ) {
 	    if ( (transfers[i] != null) && pending[i] ) {
 		int result = LibUsb.cancelTransfer(transfers[i]);
 	    	if ( (result!=LibUsb.SUCCESS) && (result!=LibUsb.ERROR_NOT_FOUND) ) throw new UsbException(dev, "Unable to cancel transfer", result);
@@ -233,7 +478,7 @@ public class ZtexUsbReader {
 	boolean b = true;
 	for (int i=0; b && i<=timeout; i+=20 ) {
 	    b = false;
-	    for (int j=0; j<bufNum; j++ ) {
+	    for (int j=0; j<transfers.length; j++ ) {
 		if ( transfers[j] != null ) {
 		    b = b || pending[j];
 		    if ( !pending[j] ) {
@@ -253,22 +498,94 @@ public class ZtexUsbReader {
   * The amount of buffers to be read is defined using the parameter maxCount.
   * A value of 0 starts infinite reads, a value of -1 starts the reader in speed test mode.
   * In this mode the buffer content is ignored and new read transfer are initiated immediately.
+  * All borrowed buffers must be released before, see {@link #releaseBuffer()}. Transfers of a previous run which are still pending are cancelled.
   * @param maxCount Maximum amount of bytes to read or 0 for infinite transfers or <0 for speed test mode.
-  * @throws UsbExecption if an error occurred.
+  * @throws UsbExecption if an error occurred, if borrowed buffers have not been released or if pending transfers could not be cancelled.
   */
     public void start(long maxCount) throws UsbException {
+	if ( getCount != releaseCount ) throw new UsbException(dev, "Unable to start reader: Borrowed buffers have not been released");
+	if ( ! awaitIdle(usbTimeOut*1000000L) ) throw new UsbException(dev, "Unable to start reader: Pending transfers could not be cancelled");
 	byteCount = 0;
 	speedTest = maxCount < 0;
 	remaining = maxCount < 1 ? Long.MAX_VALUE : maxCount;
-	for (int i=0; i<bufNum && remaining>0; i++) {
-	    int j = (int)((getCount+i) % bufNum);
-	    if ( transfers[j] == null ) {
-		transfers[j] = LibUsb.allocTransfer();
-		if ( transfers[j] == null ) throw new UsbException(dev, "Error allocating transfer buffer "+j);
-		if ( isInt ) LibUsb.fillInterruptTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, this, usbTimeOut);
-		else LibUsb.fillBulkTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, this, usbTimeOut);
+	completions.clear();
+	submitCount = getCount;
+	if ( tuner != null ) tuner.reset();
+	fillUp();
+    }
+
+// ******* main ****************************************************************
+/**
+  * Measures the latency between the completion of a transfer and the return of {@link #borrowBuffer(long,TimeUnit)} and the CPU time of the consumer.
+  * The transfers of a reader with 8 buffers are submitted to a simulated endpoint instead of libusb. The endpoint completes one transfer per
+  * interval on a separate thread and calls the transfer callback of the reader, like {@link ZtexEventHandler} does. The consumer either waits
+  * using the completion queue or by polling the pending flag using Thread.sleep(1), as this class did before.
+  * @param args Number of simulated transfers (default: 2000) and interval between two completions in us (default: 250).
+  * @throws UsbException if an error occurred.
+  * @throws InterruptedException if the benchmark is interrupted.
+  */
+    public static void main ( String[] args ) throws UsbException, InterruptedException {
+	int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+	long interval = (args.length > 1 ? Integer.parseInt(args[1]) : 250) * 1000L;
+	for ( int run=0; run<3; run++ ) {	// the first run warms up the JIT
+	    report( run, "completion queue", simulate(n, interval, true) );
+	    report( run, "sleep(1) polling", simulate(n, interval, false) );
+	}
+    }
+
+// ******* simulate ************************************************************
+// reads n buffers from a simulated endpoint and returns the latencies in ns followed by the CPU time of the consumer in ns
+    private static long[] simulate ( final int n, final long interval, final boolean useQueue ) throws UsbException, InterruptedException {
+	final int slots = 8;
+	final ConcurrentLinkedQueue<Transfer> submitted = new ConcurrentLinkedQueue<Transfer>();
+	final long[] completionT = new long[slots];
+	final long[] result = new long[n+1];
+	final ZtexUsbReader reader = new ZtexUsbReader( slots, 512, new Submitter() {
+	    public int submit ( Transfer transfer ) {
+		submitted.add(transfer);
+		return LibUsb.SUCCESS;
 	    }
-	    submit(j);
+	} );
+
+	Thread endpoint = new Thread() {
+	    public void run () {
+		long t0 = System.nanoTime();
+		for ( int k=0; k<n; k++ ) {
+		    Transfer t;
+		    while ( System.nanoTime() - t0 < k*interval || (t = submitted.poll()) == null )
+			Thread.onSpinWait();
+		    completionT[(Integer)t.userData() & 0xffff] = System.nanoTime();
+		    reader.callback.processTransfer(t);
+		}
+	    }
+	};
+	reader.start(n);
+	endpoint.start();
+
+	ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+	long c0 = mx.getCurrentThreadCpuTime();
+	for ( int k=0; k<n; k++ ) {
+	    int j = reader.slot(reader.getCount);
+	    if ( ! useQueue ) {
+		while ( reader.pending[j] )
+		    Thread.sleep(1);
+	    }
+	    if ( reader.borrowBuffer(1, TimeUnit.SECONDS) == null ) throw new UsbException("Timeout in simulated transfer " + k);
+	    result[k] = System.nanoTime() - completionT[j];
+	    reader.releaseBuffer();
 	}
+	result[n] = mx.getCurrentThreadCpuTime() - c0;
+	endpoint.join();
+	reader.cancelWait(0);			// frees the transfers
+	return result;
+    }
+
+// ******* report **************************************************************
+    private static void report ( int run, String name, long[] r ) {
+	int n = r.length-1;
+	long[] l = Arrays.copyOf(r, n);
+	Arrays.sort(l);
+	System.out.println("run " + run + ":  " + name + ":  median latency: " + l[n/2]/1000 + " us   99%: " + l[n*99/100]/1000 + " us   max: " + l[n-1]/1000
+	    + " us   consumer CPU time per transfer: " + r[n]/n/1000.0 + " us");
     }
 }
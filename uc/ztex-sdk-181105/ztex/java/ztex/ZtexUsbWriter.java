@@ -28,11 +28,26 @@ package ztex;
 import java.io.*;
 import java.util.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
 
 import org.usb4java.*;
 
 /**
   * A helper class to implement asynchronous bulk and interrupt write transfers.
+  * <p>
+  * Besides single buffers ({@link #transmitBuffer(byte[],int,int)}, {@link #transmitBuffer(ByteBuffer,long,TimeUnit)})
+  * the writer supports a streaming mode which transmits a sequence of buffers ({@link #transmit(ByteBuffer[],long,TimeUnit)}),
+  * a region of a file ({@link #transmit(FileChannel,long,long,long,TimeUnit)}) or the content of a channel
+  * ({@link #transmit(ReadableByteChannel,long,long,TimeUnit)}). In this mode all transfer buffers are kept in flight and the data is copied directly
+  * from the source (e.g. from the memory mapped pages of a file) into the transfer buffers, i.e. no heap arrays are involved.
+  * The sustained data rate of the last streaming operation is returned by {@link #streamRate()}.
+  * <p>
+  * Completed transfers are reported by the transfer callback through a {@link ZtexCompletionQueue}, i.e. the transmitting thread
+  * is blocked without polling until a buffer becomes available.
+  * <p>
+  * If the writer is created with a {@link ZtexAutoTuner} the number of in-flight transfers and the buffer size are adapted at runtime.
+  * Operating point changes are applied after all pending transfers are finished.
   */
 
 // *****************************************************************************
@@ -42,26 +57,46 @@ public class ZtexUsbWriter {
     private Device dev;
     private DeviceHandle handle;
     private int ep;
-    private int bufNum;
-    private int bufSize;
+    private int bufNum;				// number of buffers of current operating point
+    private int bufSize;			// buffer size of current operating point
     private boolean isInt;
+    private ZtexAutoTuner tuner = null;
 
     private ByteBuffer[] bufs;
     private Transfer[] transfers;
     private volatile boolean[] pending;
+    private long[] submitT;			// submission time of each transfer in ns
+    private int[] gen;				// generation of the current submission of each transfer
+    private int[] doneGen;			// generation of the last completion of each transfer seen by the transmitting thread
+    private ZtexCompletionQueue completions;
     private int transmitCount = 0;
+    private int base = 0;			// value of transmitCount when operating point has been changed
+    private int fillLen = 0;			// amount of data in the current buffer which has not been submitted yet (streaming mode)
     private volatile long byteCount = 0;
     private boolean cancelled = false; 	// transfer.status() seem not to work under windows
+
+    private long streamStartT = 0;		// start time of last streaming operation in ns
+    private long streamStartCount = 0;		// byteCount at start of last streaming operation
+    private volatile long lastCompletionT = 0;	// time of last completed transfer in ns
+
+    /**
+      * Size of the windows in bytes which are mapped by {@link #transmit(FileChannel,long,long,long,TimeUnit)}. Default value is 64 MByte.
+      */
+    public int mapWindowSize = 64*1024*1024;
     
     private final TransferCallback callback = new TransferCallback() {
     	public void processTransfer(Transfer transfer) {
 	    byteCount += transfer.actualLength();
+	    lastCompletionT = System.nanoTime();
 	    if ( (transfer.actualLength()!=transfer.length()) && (!cancelled) && (transfer.status()!=LibUsb.TRANSFER_CANCELLED) ) System.err.println( ZtexDevice1.name(dev) + ": Invalid length of sent data: " + transfer.actualLength() + " bytes sent, expected " + transfer.length() );
-    	    // find index
-    	    int i=0;
-    	    while ( (i<bufNum) && (!transfer.equals(transfers[i])) ) i++;
-    	    if ( i < bufNum ) {
+	    // generation and index of the submission are stored as user data, see submit(int)
+	    Object o = transfer.userData();
+	    int v = o instanceof Integer ? (Integer)o : -1;
+	    int i = v & 0xffff;
+	    if ( v>=0 && i<transfers.length ) {
+		if ( tuner != null ) tuner.completed(transfer.actualLength(), lastCompletionT-submitT[i]);
     		pending[i] = false;
+		if ( ! completions.offer(v) ) System.err.println("Internal error: completion queue overflow");
     	    }
     	    else System.err.println("Internal error: unknown transfer");
     	}
@@ -81,16 +116,30 @@ public class ZtexUsbWriter {
         dev = LibUsb.getDevice(p_handle);
         handle = p_handle;
         ep = p_ep;
+	isInt = p_isInt;
         bufNum = p_bufNum;
         bufSize = p_bufSize;
-        bufs = new ByteBuffer[bufNum];
-        transfers = new Transfer[bufNum];
-        pending = new boolean[bufNum];
-	for (int i=0; i<bufNum; i++) {
+	init(bufNum);
+	for (int i=0; i<bufNum; i++)
 	    bufs[i] = BufferUtils.allocateByteBuffer(bufSize);
-	    transfers[i] = null;
-	    pending[i] = false;
-	}
+    }
+
+/**
+  * Creates the writer for a given USB device and endpoint number which adapts the number of in-flight transfers and the buffer size at runtime.
+  * @param p_handle The device handle used for communication (must be opened).
+  * @param p_ep The output endpoint.
+  * @param p_isInt True if it is an interrupt transfer.
+  * @param p_tuner The tuner which determines the operating point. Buffers are allocated on demand.
+  */
+    public ZtexUsbWriter ( DeviceHandle p_handle, int p_ep, boolean p_isInt, ZtexAutoTuner p_tuner ) {
+        dev = LibUsb.getDevice(p_handle);
+        handle = p_handle;
+        ep = p_ep;
+	isInt = p_isInt;
+	tuner = p_tuner;
+	bufNum = tuner.bufNum();
+	bufSize = tuner.bufSize();
+	init(tuner.maxBufNum());
     }
 
 /**
@@ -114,7 +163,110 @@ public class ZtexUsbWriter {
     public ZtexUsbWriter ( Ztex1v1 ztex, int p_bufNum, int p_bufSize ) throws InvalidFirmwareException, UsbException, CapabilityException {
 	this(ztex.handle(), ztex.defaultOutEP(), false, p_bufNum, p_bufSize);
     }
+
+/**
+  * Creates the writer for the output endpoint of the default interface of a ZTEX device which adapts the number of in-flight transfers and
+  * the buffer size at runtime.
+  * @param ztex The ZTEX device.
+  * @param p_tuner The tuner which determines the operating point.
+  */
+    public ZtexUsbWriter ( Ztex1v1 ztex, ZtexAutoTuner p_tuner ) throws InvalidFirmwareException, UsbException, CapabilityException {
+	this(ztex.handle(), ztex.defaultOutEP(), false, p_tuner);
+    }
+
+// ******* init ****************************************************************
+    private void init(int n) {
+	bufs = new ByteBuffer[n];
+	transfers = new Transfer[n];
+	pending = new boolean[n];
+	submitT = new long[n];
+	gen = new int[n];
+	doneGen = new int[n];
+	completions = new ZtexCompletionQueue(n*2);
+	for (int i=0; i<n; i++) {
+	    bufs[i] = null;
+	    transfers[i] = null;
+	    pending[i] = false;
+	    gen[i] = 0;
+	    doneGen[i] = 0;
+	}
+    }
     
+// ******* await ***************************************************************
+// waits until transfer j completed, returns false if timeout occurs
+    private boolean await(int j, long timeout) {
+	final long deadline = System.nanoTime() + timeout;
+	while ( doneGen[j] != gen[j] ) {
+	    int k = completions.poll( Math.max(0, deadline - System.nanoTime()) );
+	    if ( k < 0 ) return false;
+	    doneGen[k & 0xffff] = k >>> 16;	// completions of older submissions are overwritten by later ones
+	}
+	return true;
+    }
+
+// ******* drain ***************************************************************
+// processes all queued completions without waiting, i.e. the queue never holds more entries than transfers are in flight,
+// even if the slots are already free when they are reused
+    private void drain() {
+	int k;
+	while ( (k = completions.poll()) >= 0 )
+	    doneGen[k & 0xffff] = k >>> 16;
+    }
+
+// ******* acquire *************************************************************
+// waits until the next buffer is available and returns it, returns null if timeout occurs
+// changes of the operating point are applied if no pending transfers exist
+    private ByteBuffer acquire(long timeout) throws UsbException {
+	drain();
+	if ( tuner != null && fillLen == 0 && (tuner.bufNum() != bufNum || tuner.bufSize() != bufSize) ) {
+	    for (int i=0; i<bufNum; i++)
+		if ( pending[i] && !await(i, timeout) ) return null;
+	    base = transmitCount;
+	    bufNum = tuner.bufNum();
+	    bufSize = tuner.bufSize();
+	    for (int i=0; i<bufs.length; i++) {
+		if ( i>=bufNum || bufs[i]==null || bufs[i].capacity()!=bufSize ) bufs[i] = null;
+		if ( i>=bufNum && transfers[i]!=null ) {
+		    LibUsb.freeTransfer(transfers[i]);
+		    transfers[i] = null;
+		}
+	    }
+	}
+	int j = (transmitCount - base) % bufNum;
+	if ( pending[j] && !await(j, timeout) ) return null;
+	if ( bufs[j] == null ) {
+	    bufs[j] = BufferUtils.allocateByteBuffer(bufSize);
+	    if ( transfers[j] != null ) transfers[j].setBuffer(bufs[j]);
+	}
+	if ( transfers[j] == null ) {
+	    transfers[j] = LibUsb.allocTransfer();
+	    if ( transfers[j] == null ) throw new UsbException(dev, "Error allocating transfer buffer " + transmitCount);
+	    if ( isInt ) LibUsb.fillInterruptTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, Integer.valueOf(j), 5000);
+	    else LibUsb.fillBulkTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, Integer.valueOf(j), 5000);
+	}
+	return bufs[j];
+    }
+
+// ******* submit **************************************************************
+// submits the next buffer
+// the generation is stored in the user data of the submission, i.e. late completions of previous submissions are not mistaken for current ones
+    private void submit(int len) throws UsbException {
+	int j = (transmitCount - base) % bufNum;
+	transfers[j].setLength(len);
+	int g = (gen[j] + 1) & 0x7fff;
+	transfers[j].setUserData(Integer.valueOf((g << 16) | j));
+	pending[j] = true;
+	submitT[j] = System.nanoTime();
+        int result = LibUsb.submitTransfer(transfers[j]);
+	if ( result!=LibUsb.SUCCESS ) {
+	    pending[j] = false;
+	    throw new UsbException(dev, "Error submitting buffer " + transmitCount, result);
+	}
+	gen[j] = g;
+	transmitCount++;
+	cancelled = false;
+    }
+
 // ******* transmitBuffer ******************************************************
 /**
   * Transmit the next buffer. 
@@ -125,36 +277,32 @@ public class ZtexUsbWriter {
   * @throws UsbExecption if an error occurred.
   */
     public int transmitBuffer(byte[] buf, int maxLen, int timeout) throws UsbException {
-	int j = transmitCount % bufNum;
-//	System.out.println("TB1 "+transmitCount);
-	for (int i=0; pending[j] && (i<timeout); i++ ) {
-   	    try { Thread.sleep(1); } catch ( InterruptedException e) { } 
-	}
-	if ( pending[j] ) {
-	    return -1;
-	}
-//	System.out.println("TB2 "+transmitCount);
-	if ( transfers[j] == null ) {
-	    transfers[j] = LibUsb.allocTransfer();
-	    if ( transfers[j] == null ) throw new UsbException(dev, "Error allocating transfer buffer " + transmitCount);
-	    if ( isInt ) LibUsb.fillInterruptTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, this, 5000);
-	    else LibUsb.fillBulkTransfer(transfers[j], handle, (byte)ep, bufs[j], callback, this, 5000);
-	}
-//	System.out.println("TB "+transmitCount);
+	ByteBuffer b = acquire(TimeUnit.MILLISECONDS.toNanos(timeout));
+	if ( b == null ) return -1;
 	final int k = Math.min(Math.min(bufSize, maxLen), buf.length);
-	bufs[j].rewind();
-	bufs[j].put(buf, 0, k);
-	transfers[j].setLength(k);
-//	System.out.println("TB3 "+k);
-        int result = LibUsb.submitTransfer(transfers[j]);
-        if ( result!=LibUsb.SUCCESS ) throw new UsbException(dev, "Error submitting buffer " + transmitCount, result);
-	pending[j] = true;
-	transmitCount++;
-	cancelled = false;
-//	System.out.println("TB4 "+transmitCount);
+	b.clear();
+	b.put(buf, 0, k);
+	submit(k);
 	return k;
     }
 
+/**
+  * Transmit the next buffer. The data is copied from the current position of the source buffer and the position is advanced.
+  * If the source is a direct or mapped buffer no heap arrays are involved.
+  * @param src The source buffer. If more data remain than the buffer size only the first bytes are transmitted.
+  * @param timeout Timeout. If timeout occurs the function returns -1 and the position of the source buffer is not changed.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes transmitted or -1 if timeout occurs.
+  * @throws UsbExecption if an error occurred.
+  */
+    public int transmitBuffer(ByteBuffer src, long timeout, TimeUnit unit) throws UsbException {
+	ByteBuffer b = acquire(unit.toNanos(timeout));
+	if ( b == null ) return -1;
+	b.clear();
+	final int k = copy(src, b);
+	submit(k);
+	return k;
+    }
 
 /**
   * Transmit the next buffer. 
@@ -167,6 +315,152 @@ public class ZtexUsbWriter {
 	return transmitBuffer(buf, buf.length, timeout);
     }
 
+// ******* copy ****************************************************************
+// copies as much data as possible from src to dst, returns the number of bytes copied
+    private static int copy(ByteBuffer src, ByteBuffer dst) {
+	final int k = Math.min(src.remaining(), dst.remaining());
+	if ( k == src.remaining() ) {
+	    dst.put(src);
+	}
+	else {
+	    ByteBuffer s = src.duplicate();
+	    s.limit(s.position() + k);
+	    dst.put(s);
+	    src.position(src.position() + k);
+	}
+	return k;
+    }
+
+// ******* fill ****************************************************************
+// streaming mode: appends data to the current buffer and submits it if it is full
+    private void fill(ByteBuffer src, long timeout) throws UsbException {
+	while ( src.hasRemaining() ) {
+	    ByteBuffer b = acquire(timeout);
+	    if ( b == null ) throw new UsbException(dev, "Timeout while transmitting buffer " + transmitCount);
+	    b.clear();
+	    b.position(fillLen);
+	    fillLen += copy(src, b);
+	    if ( fillLen >= bufSize ) {
+		fillLen = 0;
+		submit(bufSize);
+	    }
+	}
+    }
+
+// ******* flush ***************************************************************
+// streaming mode: submits the current buffer if it contains data
+    private void flush() throws UsbException {
+	if ( fillLen > 0 ) {
+	    int k = fillLen;
+	    fillLen = 0;
+	    submit(k);
+	}
+    }
+
+// ******* startStream *********************************************************
+    private void startStream() {
+	fillLen = 0;
+	streamStartT = System.nanoTime();
+	streamStartCount = byteCount;
+	lastCompletionT = streamStartT;
+    }
+
+// ******* transmit ************************************************************
+/**
+  * Transmits a sequence of buffers (gather write). The data is packed into transfers of full buffer size, i.e. the boundaries of the source buffers
+  * are not preserved and only the last transfer may be shorter. All transfer buffers are kept in flight.
+  * The function returns after the last transfer has been submitted, see {@link #wait(int)}.
+  * The positions of the source buffers are advanced.
+  * @param srcs The source buffers. Data is transmitted from the current position to the limit.
+  * @param timeout Timeout for each buffer.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes transmitted.
+  * @throws UsbExecption if an error occurred or if timeout occurs.
+  */
+    public long transmit(ByteBuffer[] srcs, long timeout, TimeUnit unit) throws UsbException {
+	startStream();
+	final long to = unit.toNanos(timeout);
+	long sum = 0;
+	for ( ByteBuffer src : srcs ) {
+	    sum += src.remaining();
+	    fill(src, to);
+	}
+	flush();
+	return sum;
+    }
+
+/**
+  * Transmits a region of a file. The file is mapped into memory in windows of {@link #mapWindowSize} bytes and the data is copied
+  * directly from the mapped pages into the transfer buffers. All transfer buffers are kept in flight.
+  * The function returns after the last transfer has been submitted, see {@link #wait(int)}.
+  * @param ch The file channel. It must be opened for reading.
+  * @param pos The position in the file where to start.
+  * @param count Maximum amount of bytes to transmit.
+  * @param timeout Timeout for each buffer.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes transmitted. This may be less than count if the end of file is reached.
+  * @throws UsbExecption if an error occurred or if timeout occurs.
+  * @throws IOException if an error occurred while mapping the file.
+  */
+    public long transmit(FileChannel ch, long pos, long count, long timeout, TimeUnit unit) throws UsbException, IOException {
+	startStream();
+	final long to = unit.toNanos(timeout);
+	final long end = Math.min(pos + count, ch.size());
+	final int ws = Math.max(bufSize, mapWindowSize / bufSize * bufSize);
+	long p = pos;
+	while ( p < end ) {
+	    int l = (int)Math.min(ws, end - p);
+	    fill(ch.map(FileChannel.MapMode.READ_ONLY, p, l), to);
+	    p += l;
+	}
+	flush();
+	return Math.max(0, end - pos);
+    }
+
+/**
+  * Transmits the data read from a channel. The data is read directly into the transfer buffers. All transfer buffers are kept in flight.
+  * The function returns after the last transfer has been submitted, see {@link #wait(int)}.
+  * @param ch The channel. Non-blocking channels are not supported.
+  * @param count Maximum amount of bytes to transmit or a value &lt;= 0 in order to transmit all data until end of stream is reached.
+  * @param timeout Timeout for each buffer.
+  * @param unit The unit of the timeout.
+  * @return The number of bytes transmitted.
+  * @throws UsbExecption if an error occurred or if timeout occurs.
+  * @throws IOException if an error occurred while reading from the channel.
+  */
+    public long transmit(ReadableByteChannel ch, long count, long timeout, TimeUnit unit) throws UsbException, IOException {
+	startStream();
+	final long to = unit.toNanos(timeout);
+	if ( count <= 0 ) count = Long.MAX_VALUE;
+	long sum = 0;
+	boolean eof = false;
+	while ( !eof && sum < count ) {
+	    ByteBuffer b = acquire(to);
+	    if ( b == null ) throw new UsbException(dev, "Timeout while transmitting buffer " + transmitCount);
+	    b.clear();
+	    b.limit((int)Math.min(bufSize, count - sum));
+	    while ( b.hasRemaining() && !eof ) {
+		eof = ch.read(b) < 0;
+	    }
+	    if ( b.position() > 0 ) {
+		sum += b.position();
+		submit(b.position());
+	    }
+	}
+	return sum;
+    }
+
+// ******* streamRate **********************************************************
+/**
+  * Returns the sustained data rate of the last streaming operation, i.e. of the last call of one of the transmit methods.
+  * The rate is calculated from the amount of data transferred until the most recent completed transfer.
+  * @return The data rate in bytes per second.
+  */
+    public double streamRate () {
+	long t = lastCompletionT - streamStartT;
+	return t > 0 ? (byteCount - streamStartCount) * 1e9 / t : 0;
+    } 
+
 // ******* byteCount ***********************************************************
 /**
   * Return the number of bytes transmitted.
@@ -178,13 +472,31 @@ public class ZtexUsbWriter {
 
 // ******* bufSize *************************************************************
 /**
-  * Return the buffer size.
+  * Return the buffer size. If the writer has been created with a {@link ZtexAutoTuner} this is the size of the current operating point.
   * @return The buffer size.
   */
     public int bufSize () {
 	return bufSize;
     } 
 
+// ******* bufNum **************************************************************
+/**
+  * Return the number of buffers. If the writer has been created with a {@link ZtexAutoTuner} this is the number of the current operating point.
+  * @return The number of buffers.
+  */
+    public int bufNum () {
+	return bufNum;
+    } 
+
+// ******* tuner ***************************************************************
+/**
+  * Return the tuner which determines the operating point.
+  * @return The tuner or null if number and size of the buffers are fixed.
+  */
+    public ZtexAutoTuner tuner () {
+	return tuner;
+    } 
+
 // ******* cancel **************************************************************
 /**
   * Cancels all pending transfers, also see {@link #cancelWait(int)}.
@@ -192,7 +504,7 @@ public class ZtexUsbWriter {
   */
     public void cancel() throws UsbException {
 	cancelled = true;
-	for (int i=0; i<bufNum; i++ ) {
+	for (int i=0; i<transfers.length; i++ ) {
 	    if ( (transfers[i] != null) && pending[i] ) {
 		int result = LibUsb.cancelTransfer(transfers[i]);
 	    	if ( (result!=LibUsb.SUCCESS) && (result!=LibUsb.ERROR_NOT_FOUND) ) throw new UsbException(dev, "Unable to cancel transfer", result);
@@ -211,17 +523,19 @@ public class ZtexUsbWriter {
 	boolean b = true;
 	for (int i=0; b && i<=timeout; i+=20 ) {
 	    b = false;
-	    for (int j=0; j<bufNum; j++ ) {
+	    for (int j=0; j<transfers.length; j++ ) {
 		if ( transfers[j] != null ) {
 		    b = b || pending[j];
 		    if ( !pending[j] ) {
 			LibUsb.freeTransfer(transfers[j]);
 			transfers[j] = null;
+			doneGen[j] = gen[j];
 		    }
 		}
 	    }
 	    try { if ( b ) Thread.sleep(20); } catch ( InterruptedException e) { } 
 	}
+	if ( !b ) completions.clear();		// all transfers are finished, i.e. the queued completions are obsolete
 	return !b;
     }
 